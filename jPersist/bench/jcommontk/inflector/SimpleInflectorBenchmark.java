@@ -0,0 +1,46 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.  
+ * All Rights Reserved.
+ *
+ * This file is part of jCommonTk.
+ *
+ * jCommonTk is distributed in the hope that it will be useful, but WITHOUT 
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license 
+ * for more details.
+ *
+ * You should have received a copy of the license along with jCommonTk; if not, 
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jcommontk.inflector;
+
+/**
+ * A simple benchmark of SimpleInflector.pluralize(), with distinct (uncached) 
+ * words and with repeated (cached) words.  The optional argument is the 
+ * number of words.  Benchmarks are kept out of the shipped source tree, and 
+ * are run with the jCommonTk classes on the classpath.
+ */
+
+public class SimpleInflectorBenchmark
+  {
+    public static void main(String[] args)
+      {
+        int count = args.length > 0 ? Integer.parseInt(args[0]) : 100000;
+        String[] nouns = new String[] { "customer", "OrderLine", "address", "company", "status", "Person", "box", "Category", "invoice_item", "mouse" };
+        long start = System.nanoTime(), words = 0;
+
+        for (int i = 0; i < count; i++)
+          words += SimpleInflector.inflectPlural(nouns[i % nouns.length] + "X" + i + nouns[i % nouns.length]).length;
+
+        System.out.println("uncached: " + (System.nanoTime() - start) / count + "ns per word");
+
+        start = System.nanoTime();
+
+        for (int i = 0; i < count; i++)
+          words += SimpleInflector.pluralize(nouns[i % nouns.length]).length;
+
+        System.out.println("cached: " + (System.nanoTime() - start) / count + "ns per word");
+        System.out.println("plurals returned: " + words);
+      }
+  }
@@ -0,0 +1,84 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jCommonTk.
+ *
+ * jCommonTk is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jCommonTk; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jcommontk.utils;
+
+import java.math.BigDecimal;
+import java.sql.Timestamp;
+import java.util.zip.CRC32;
+
+/**
+ * A simple benchmark comparing hashing rows of values with a ValueHasher
+ * against a CRC32 of each value's string bytes.  Optional arguments are the
+ * number of rows and the number of rounds.  Benchmarks are kept out of the 
+ * shipped source tree, and are run with the jCommonTk classes on the classpath.
+ */
+
+public class ValueHasherBenchmark
+  {
+    public static void main(String[] args)
+      {
+        int rows = args.length > 0 ? Integer.parseInt(args[0]) : 1000000,
+            rounds = args.length > 1 ? Integer.parseInt(args[1]) : 5;
+        Object[][] values = new Object[1000][];
+
+        for (int i = 0; i < values.length; i++)
+          values[i] = new Object[] { "customer" + i, Integer.valueOf(i), Long.valueOf(i * 31L), Double.valueOf(i / 3.0),
+                                     new BigDecimal(i + ".25"), new Timestamp(1000000000000L + i), Boolean.valueOf((i & 1) == 0) };
+
+        ValueHasher hasher = new ValueHasher();
+        CRC32 crc = new CRC32();
+        long hashes = 0;
+
+        for (int round = 0; round < rounds; round++)
+          {
+            long start = System.nanoTime();
+
+            for (int r = 0; r < rows; r++)
+              {
+                Object[] row = values[r % values.length];
+
+                crc.reset();
+
+                for (int c = 0; c < row.length; c++)
+                  crc.update(row[c].toString().getBytes());
+
+                hashes += crc.getValue();
+              }
+
+            long crcTime = System.nanoTime() - start;
+
+            start = System.nanoTime();
+
+            for (int r = 0; r < rows; r++)
+              {
+                Object[] row = values[r % values.length];
+
+                hasher.reset();
+
+                for (int c = 0; c < row.length; c++)
+                  hasher.update(row[c]);
+
+                hashes += hasher.getValue();
+              }
+
+            long hasherTime = System.nanoTime() - start;
+
+            System.out.println("round " + (round + 1) + ": crc32/toString " + crcTime / 1000000 + "ms, ValueHasher " + hasherTime / 1000000 + "ms");
+          }
+
+        System.out.println("combined hash: " + Long.toHexString(hashes));
+      }
+  }
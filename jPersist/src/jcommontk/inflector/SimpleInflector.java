@@ -18,10 +18,12 @@ package jcommontk.inflector;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.StringTokenizer;
+import java.util.regex.Pattern;
 
 import jcommontk.utils.StringUtils;
 
@@ -174,6 +176,18 @@ public class SimpleInflector
                                                              { arrayToSet(new String[] { "afreet", "afrit", "efreet" }), "i" },
                                                              { arrayToSet(new String[] { "cherub", "goy", "seraph" }), "im" }};
 
+    /* The suffix patterns compiled once, with the literal ending each requires (checked before matching) */
+    static SuffixMatcher[] pluralSuffixMatchers = compileSuffixes(pluralSuffixes),
+                           inflectionSuffixMatchers = compileSuffixes(inflectionSuffixColumn(0));
+
+    /* The number of pluralizations remembered (most recently used) */
+    static final int MAX_CACHED_PLURALS = 1024;
+
+    static Map pluralCache = new LinkedHashMap(MAX_CACHED_PLURALS, 0.75f, true)
+      {
+        protected boolean removeEldestEntry(Map.Entry eldest) { return size() > MAX_CACHED_PLURALS; }
+      };
+
     /**
      * This method pluralizes words (nouns only).  In the event of a multiple segment
      * word (camel case/underline) only the last segment will be pluralized.
@@ -182,6 +196,28 @@ public class SimpleInflector
      * @return returns an array of one or more pluralizations (modern followed by classic)
      */
     public static String[] pluralize(String word)
+      {
+        String[] plurals;
+
+        synchronized (pluralCache)
+          {
+            plurals = (String[])pluralCache.get(word);
+          }
+
+        if (plurals == null)
+          {
+            plurals = inflectPlural(word);
+
+            synchronized (pluralCache)
+              {
+                pluralCache.put(word, plurals);
+              }
+          }
+
+        return (String[])plurals.clone();
+      }
+
+    static String[] inflectPlural(String word)
       {
         String[] words = parseWord(word), pluralizedWords = null;
 
@@ -205,7 +241,7 @@ public class SimpleInflector
                 if (pluralizedWords == null)
                   {
                     for (int i = 0; pluralizedWords == null && i < inflectionSuffixes.length; i++)
-                      if (word.matches(inflectionSuffixes[i][0]))
+                      if (inflectionSuffixMatchers[i].matches(word))
                         pluralizedWords = new String[] { getInflection(word, inflectionSuffixes[i][1], inflectionSuffixes[i][2]) };
 
                     if (pluralizedWords == null)
@@ -249,8 +285,8 @@ public class SimpleInflector
     
     static boolean doNotInflectPlural(String word)
       {
-        for (int i = 0; i < pluralSuffixes.length; i++)
-          if (word.matches(pluralSuffixes[i]))
+        for (int i = 0; i < pluralSuffixMatchers.length; i++)
+          if (pluralSuffixMatchers[i].matches(word))
             return true;
         
         return false;
@@ -286,6 +322,53 @@ public class SimpleInflector
         return word.substring(0,word.length() - suffix.length()) + newSuffix;
       }
     
+    static String[] inflectionSuffixColumn(int column)
+      {
+        String[] patterns = new String[inflectionSuffixes.length];
+
+        for (int i = 0; i < inflectionSuffixes.length; i++)
+          patterns[i] = inflectionSuffixes[i][column];
+
+        return patterns;
+      }
+
+    static SuffixMatcher[] compileSuffixes(String[] patterns)
+      {
+        SuffixMatcher[] matchers = new SuffixMatcher[patterns.length];
+
+        for (int i = 0; i < patterns.length; i++)
+          matchers[i] = new SuffixMatcher(patterns[i]);
+
+        return matchers;
+      }
+
+    /*
+     * A compiled suffix pattern.  Words not ending with the pattern's trailing
+     * letters (i.e. "ouse" of ".*[lm]ouse") are rejected without running the 
+     * regular expression.
+     */
+    static class SuffixMatcher
+      {
+        Pattern pattern;
+        String ending;
+
+        SuffixMatcher(String regex)
+          {
+            int i = regex.length();
+
+            while (i > 0 && Character.isLetter(regex.charAt(i - 1)))
+              i--;
+
+            pattern = Pattern.compile(regex);
+            ending = regex.substring(i);
+          }
+
+        boolean matches(String word)
+          {
+            return word.endsWith(ending) && pattern.matcher(word).matches();
+          }
+      }
+
     static Set arrayToSet(Object[] array)
       {
         Set set = new HashSet();
@@ -0,0 +1,213 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jCommonTk.
+ *
+ * jCommonTk is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jCommonTk; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jcommontk.object;
+
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ConcurrentHashMap;
+
+import jcommontk.utils.StringUtils;
+
+/**
+ * ObjectAccessors holds the public get methods, set methods and fields of a
+ * class, resolved once per class.  The methods are kept in Class.getMethods()
+ * order, along with their parameter types and the value names derived from
+ * them, so callers don't have to call getMethods() and match method names
+ * on every object they process.
+ */
+
+@SuppressWarnings("unchecked")
+public final class ObjectAccessors
+  {
+    private static ClassValue accessorsCache = new ClassValue()
+      {
+        protected Object computeValue(Class c)
+          {
+            return new ObjectAccessors(c);
+          }
+      };
+
+    private Class objectClass;
+    private Method[] methods;
+    private Accessor[] getters, setters, fields;
+    private ConcurrentHashMap namedMethods = new ConcurrentHashMap();
+
+    /**
+     * Returns the accessors for the given class.
+     *
+     * @param c the class
+     *
+     * @return the accessors for the class
+     */
+
+    public static ObjectAccessors getAccessors(Class c)
+      {
+        return (ObjectAccessors)accessorsCache.get(c);
+      }
+
+    private ObjectAccessors(Class objectClass)
+      {
+        List getterList = new ArrayList(), setterList = new ArrayList();
+        Field[] publicFields = objectClass.getFields();
+
+        this.objectClass = objectClass;
+        this.methods = objectClass.getMethods();
+
+        for (int i = 0; i < methods.length; i++)
+          if (methods[i].getName().startsWith("get"))
+            getterList.add(new Accessor(methods[i]));
+          else if (methods[i].getName().startsWith("set"))
+            setterList.add(new Accessor(methods[i]));
+
+        getters = (Accessor[])getterList.toArray(new Accessor[getterList.size()]);
+        setters = (Accessor[])setterList.toArray(new Accessor[setterList.size()]);
+        fields = new Accessor[publicFields.length];
+
+        for (int i = 0; i < publicFields.length; i++)
+          fields[i] = new Accessor(publicFields[i]);
+      }
+
+    public Class getObjectClass() { return objectClass; }
+
+    /**
+     * Returns the public methods of the class (the array is shared and must not be modified).
+     *
+     * @return the public methods of the class
+     */
+
+    public Method[] getMethods() { return methods; }
+
+    /**
+     * Returns the public methods starting with "get" (the array is shared and must not be modified).
+     *
+     * @return the public methods starting with "get"
+     */
+
+    public Accessor[] getGetters() { return getters; }
+
+    /**
+     * Returns the public methods starting with "set" (the array is shared and must not be modified).
+     *
+     * @return the public methods starting with "set"
+     */
+
+    public Accessor[] getSetters() { return setters; }
+
+    /**
+     * Returns the public fields (the array is shared and must not be modified).
+     *
+     * @return the public fields
+     */
+
+    public Accessor[] getFields() { return fields; }
+
+    /**
+     * Returns the public methods with the given name (the array is shared and must not be modified).
+     *
+     * @param name the method name
+     *
+     * @return the public methods with the given name
+     */
+
+    public Method[] getMethods(String name)
+      {
+        Method[] matches = (Method[])namedMethods.get(name);
+
+        if (matches == null)
+          {
+            List matchList = new ArrayList();
+
+            for (int i = 0; i < methods.length; i++)
+              if (methods[i].getName().equals(name))
+                matchList.add(methods[i]);
+
+            namedMethods.put(name, matches = (Method[])matchList.toArray(new Method[matchList.size()]));
+          }
+
+        return matches;
+      }
+
+    /**
+     * An accessor (a get method, set method or field) along with the names derived from it.
+     */
+
+    public static final class Accessor
+      {
+        private Method method;
+        private Field field;
+        private Class[] parameterTypes;
+        private Class type;
+        private String propertyName, valueName, lowerCaseValueName, underlineValueName;
+
+        Accessor(Method method)
+          {
+            this.method = method;
+            this.parameterTypes = method.getParameterTypes();
+            this.propertyName = method.getName().substring(3);
+            this.type = method.getName().startsWith("get") ? method.getReturnType()
+                      : parameterTypes.length > 0 ? parameterTypes[0] : null;
+
+            if (propertyName.length() > 0)
+              setValueName(propertyName.substring(0,1).toLowerCase() + propertyName.substring(1));
+          }
+
+        Accessor(Field field)
+          {
+            this.field = field;
+            this.parameterTypes = new Class[0];
+            this.propertyName = field.getName();
+            this.type = field.getType();
+
+            setValueName(propertyName);
+          }
+
+        private void setValueName(String valueName)
+          {
+            this.valueName = valueName;
+            this.lowerCaseValueName = valueName.toLowerCase();
+            this.underlineValueName = StringUtils.camelCaseToLowerCaseUnderline(valueName);
+          }
+
+        /** Returns the method, or null for a field. */
+        public Method getMethod() { return method; }
+
+        /** Returns the field, or null for a method. */
+        public Field getField() { return field; }
+
+        /** Returns the declaring class of the method or field. */
+        public Class getDeclaringClass() { return method != null ? method.getDeclaringClass() : field.getDeclaringClass(); }
+
+        /** Returns the method's parameter types (shared, must not be modified). */
+        public Class[] getParameterTypes() { return parameterTypes; }
+
+        /** Returns the get method's return type, the set method's first parameter type, or the field type. */
+        public Class getType() { return type; }
+
+        /** Returns the method name without the get/set prefix, or the field name. */
+        public String getPropertyName() { return propertyName; }
+
+        /** Returns the property name with a lower case first character, or null for "get"/"set". */
+        public String getValueName() { return valueName; }
+
+        /** Returns the value name in lower case. */
+        public String getLowerCaseValueName() { return lowerCaseValueName; }
+
+        /** Returns the value name converted from camel case to lower case underline. */
+        public String getUnderlineValueName() { return underlineValueName; }
+      }
+  }
@@ -15,14 +15,10 @@
 
 package jcommontk.object;
 
-import java.lang.reflect.Field;
 import java.lang.reflect.InvocationTargetException;
-import java.lang.reflect.Method;
 import java.util.HashSet;
 import java.util.Set;
 
-import jcommontk.utils.StringUtils;
-
 /**
  * Object filler will fill an objects public members with values from a map.
  */
@@ -94,44 +90,41 @@ public class ObjectFiller
   
     public static <T> T fillObject(GetHandler getHandler, T object, Class<T> c, boolean fillPublicSetMethods, boolean fillPublicFields, Set<String> ignoreValueNames, boolean setNulls) throws IllegalAccessException, InvocationTargetException
       {
+        ObjectAccessors accessors = ObjectAccessors.getAccessors(c != null ? c : object.getClass());
         Set memberSet = new HashSet();
         
         if (fillPublicSetMethods)
           {
-            Method[] methods = c != null ? c.getMethods() : object.getClass().getMethods();
+            ObjectAccessors.Accessor[] setters = accessors.getSetters();
             
-            for (int i = 0; i < methods.length; i++)
+            for (int i = 0; i < setters.length; i++)
               {
-                Method method = methods[i];
-                String methodName = method.getName();
+                ObjectAccessors.Accessor setter = setters[i];
+                String valueName = setter.getValueName();
 
-                if (c == null || methods[i].getDeclaringClass().equals(c))
-                  if (methodName.startsWith("set") && !methodName.equalsIgnoreCase("set"))
+                if (c == null || setter.getDeclaringClass().equals(c))
+                  if (valueName != null && !memberSet.contains(valueName))
                     {
-                      String valueName = methodName.substring(3,4).toLowerCase() + methodName.substring(4);
+                      memberSet.add(valueName);
 
-                      if (!memberSet.contains(valueName))
+                      if (setter.getParameterTypes().length > 0 && (ignoreValueNames == null || !ignoreValueNames.contains(valueName)))
                         {
-                          memberSet.add(valueName);
-
-                          if (method.getParameterTypes().length > 0 && (ignoreValueNames == null || !ignoreValueNames.contains(valueName)))
+                          try
                             {
-                              try
-                                {
-                                  Object value = getHandler.get(valueName, method.getParameterTypes()[0]);
+                              Class type = setter.getType();
+                              Object value = getHandler.get(valueName, type);
 
-                                  if (value == null)
-                                    value = getHandler.get(StringUtils.camelCaseToLowerCaseUnderline(valueName), method.getParameterTypes()[0]);
+                              if (value == null)
+                                value = getHandler.get(setter.getUnderlineValueName(), type);
 
-                                  if (value == null)
-                                    value = getHandler.get(valueName.toLowerCase(), method.getParameterTypes()[0]);
+                              if (value == null)
+                                value = getHandler.get(setter.getLowerCaseValueName(), type);
 
-                                  if (setNulls || value != null)
-                                    if (method.getParameterTypes() != null && method.getParameterTypes().length == 1)
-                                      method.invoke(object, new Object[] { ObjectConverter.convertObject(method.getParameterTypes()[0], value) });
-                                }
-                              catch (ItemNotFoundException e) { }
+                              if (setNulls || value != null)
+                                if (setter.getParameterTypes().length == 1)
+                                  setter.getMethod().invoke(object, new Object[] { ObjectConverter.convertObject(type, value) });
                             }
+                          catch (ItemNotFoundException e) { }
                         }
                     }
               }
@@ -139,11 +132,11 @@ public class ObjectFiller
         
         if (fillPublicFields)
           {
-            Field[] fields = c != null ? c.getFields() : object.getClass().getFields();
+            ObjectAccessors.Accessor[] fields = accessors.getFields();
             
             for (int i = 0; i < fields.length; i++)
               {
-                String fieldName = fields[i].getName();
+                String fieldName = fields[i].getValueName();
                 
                 if (c == null || fields[i].getDeclaringClass().equals(c))
                   if (!memberSet.contains(fieldName))
@@ -154,16 +147,17 @@ public class ObjectFiller
                         {
                           try
                             {
-                              Object value = getHandler.get(fieldName, fields[i].getType());
+                              Class type = fields[i].getType();
+                              Object value = getHandler.get(fieldName, type);
 
                               if (value == null)
-                                value = getHandler.get(fieldName.toLowerCase(), fields[i].getType());
+                                value = getHandler.get(fields[i].getLowerCaseValueName(), type);
 
                               if (value == null)
-                                value = getHandler.get(StringUtils.camelCaseToLowerCaseUnderline(fieldName), fields[i].getType());
+                                value = getHandler.get(fields[i].getUnderlineValueName(), type);
 
                               if (setNulls || value != null)
-                                fields[i].set(object, new Object[] { ObjectConverter.convertObject(fields[i].getType(), value) });
+                                fields[i].getField().set(object, ObjectConverter.convertObject(type, value));
                             }
                           catch (ItemNotFoundException e) { }
                         }
@@ -1,154 +1,405 @@
 /**
- * Copyright (C) 2006 - present Software Sensation Inc.  
+ * Copyright (C) 2006 - present Software Sensation Inc.
  * All Rights Reserved.
  *
  * This file is part of jCommonTk.
  *
- * jCommonTk is distributed in the hope that it will be useful, but WITHOUT 
- * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
- * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license 
+ * jCommonTk is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
  * for more details.
  *
- * You should have received a copy of the license along with jCommonTk; if not, 
+ * You should have received a copy of the license along with jCommonTk; if not,
  * go to http://www.softwaresensation.com and download the latest version.
  */
 
 package jcommontk.utils;
 
+import java.io.IOException;
+import java.io.ObjectInputStream;
+import java.lang.ref.WeakReference;
+import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Enumeration;
 import java.util.Iterator;
+import java.util.List;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
 
+/**
+ * A map whose entries expire once they haven't been accessed for the expiration
+ * time.  Expired entries are never returned (they're removed when accessed),
+ * and are swept from all of the maps by a single shared daemon thread, which
+ * only holds weak references to the maps, so maps that are dropped are simply
+ * garbage collected.  A map can also be bounded in size, in which case the
+ * least recently accessed entries are evicted to make room.
+ */
+
 @SuppressWarnings("unchecked")
 public class ExpiringMap extends ConcurrentHashMap
   {
-    private static final long serialVersionUID = 100L;
-  
-    long expiration_time;
-    boolean stop_thread;
-    ExpiringMap thisInstance = this;
-    
+    private static final long serialVersionUID = 101L;
+
+    /* The bounds of the time between sweeps of a map (a fraction of its expiration time) */
+    static final long MIN_SWEEP_INTERVAL = 1000, MAX_SWEEP_INTERVAL = 60000;
+
+    private static List sweptMaps = new ArrayList();
+    private static Thread sweeper;
+
+    long expiration_time, expirationNanos;
+    int maxSize;
+    transient long nextSweep;
+    transient Object evictionLock = new Object();
+
+    /**
+     * Creates a map with entries that expire after not being accessed for the expiration time.
+     *
+     * @param expiration_time the expiration time in milliseconds (0 or less for no expiration)
+     */
     public ExpiringMap(long expiration_time)
+      {
+        this(expiration_time, 0);
+      }
+
+    /**
+     * Creates a map with entries that expire after not being accessed for the
+     * expiration time, and that holds at most maxSize entries.
+     *
+     * @param expiration_time the expiration time in milliseconds (0 or less for no expiration)
+     * @param maxSize the maximum number of entries (0 or less for no maximum)
+     */
+    public ExpiringMap(long expiration_time, int maxSize)
       {
         this.expiration_time = expiration_time;
-        
+        this.expirationNanos = expiration_time * 1000000L;
+        this.maxSize = maxSize;
+        this.nextSweep = System.nanoTime();
+
         if (expiration_time > 0)
-          new TimedCleanup().start();
+          register(this);
       }
-    
+
+    public long getExpirationTime() { return expiration_time; }
+
+    public int getMaxSize() { return maxSize; }
+
     public Object get(Object key)
       {
         TimedMapObject t_obj = (TimedMapObject)super.get(key);
-        
+
         if (t_obj != null)
-          return t_obj.getObject();
-        
+          {
+            if (!isExpired(t_obj, System.nanoTime()))
+              return t_obj.getObject();
+
+            super.remove(key, t_obj);
+          }
+
         return null;
       }
 
-    public Object put(Object key, Object obj) 
+    public boolean containsKey(Object key)
       {
-        TimedMapObject t_obj = (TimedMapObject)super.put(key, new TimedMapObject(obj)); 
+        TimedMapObject t_obj = (TimedMapObject)super.get(key);
 
-        if (t_obj != null)
-          return t_obj.getObject();
+        return t_obj != null && !isExpired(t_obj, System.nanoTime());
+      }
+
+    public boolean containsValue(Object obj)
+      {
+        for (Iterator it = iterator(); it.hasNext();)
+          if (obj.equals(it.next()))
+            return true;
+
+        return false;
+      }
+
+    public Object put(Object key, Object obj)
+      {
+        TimedMapObject t_obj = (TimedMapObject)super.put(key, new TimedMapObject(obj));
+
+        if (maxSize > 0 && t_obj == null && size() > maxSize)
+          evict();
+
+        if (t_obj != null && !isExpired(t_obj, System.nanoTime()))
+          return t_obj.obj;
 
         return null;
       }
 
-    public Iterator iterator()
+    public void putAll(Map map)
       {
-        return new Iterator() 
+        for (Iterator it = map.entrySet().iterator(); it.hasNext();)
           {
-            Iterator it = entrySet().iterator();
+            Map.Entry entry = (Map.Entry)it.next();
 
-            public boolean hasNext() 
-              {
-                return it.hasNext();
-              }
+            put(entry.getKey(), entry.getValue());
+          }
+      }
 
-            public Object next() 
-              {
-                return ((TimedMapObject)it.next()).getObject();
-              }
+    public Object putIfAbsent(Object key, Object obj)
+      {
+        TimedMapObject newObj = new TimedMapObject(obj), t_obj;
 
-            public void remove() 
-              {
-                it.remove();
-              }
-          };
+        while ((t_obj = (TimedMapObject)super.putIfAbsent(key, newObj)) != null)
+          {
+            if (!isExpired(t_obj, System.nanoTime()))
+              return t_obj.getObject();
+
+            super.remove(key, t_obj);
+          }
+
+        if (maxSize > 0 && size() > maxSize)
+          evict();
+
+        return null;
       }
-    
+
+    public Object remove(Object key)
+      {
+        TimedMapObject t_obj = (TimedMapObject)super.remove(key);
+
+        if (t_obj != null && !isExpired(t_obj, System.nanoTime()))
+          return t_obj.obj;
+
+        return null;
+      }
+
+    /**
+     * Returns an iterator over the (unexpired) values.
+     *
+     * @return an iterator over the values
+     */
+    public Iterator iterator()
+      {
+        return new ValueIterator(super.values().iterator());
+      }
+
     public Enumeration elements()
       {
-        return new Enumeration() 
+        return new Enumeration()
           {
-            Enumeration e = elements();
+            Iterator it = iterator();
 
             public boolean hasMoreElements()
               {
-                return e.hasMoreElements();
+                return it.hasNext();
               }
-            
+
             public Object nextElement()
               {
-                return ((TimedMapObject)e.nextElement()).getObject();
+                return it.next();
               }
           };
       }
-    
-    protected void finalize()
+
+    /* entries are stamped with System.nanoTime(), which is also fine grained enough to order accesses for eviction */
+    boolean isExpired(TimedMapObject t_obj, long now)
+      {
+        return expiration_time > 0 && now - t_obj.time > expirationNanos;
+      }
+
+    /* removes the expired entries */
+    void sweep(long now)
+      {
+        for (Iterator it = super.entrySet().iterator(); it.hasNext();)
+          {
+            Map.Entry entry = (Map.Entry)it.next();
+
+            if (isExpired((TimedMapObject)entry.getValue(), now))
+              super.remove(entry.getKey(), entry.getValue());
+          }
+      }
+
+    /*
+     * Evicts the least recently accessed entries, plus a tenth of the maximum
+     * size, so that evicting (which scans the map) only happens occasionally.
+     */
+    void evict()
+      {
+        synchronized (evictionLock)
+          {
+            int excess = size() - maxSize;
+
+            if (excess <= 0)
+              return;
+
+            Object[] entries = super.entrySet().toArray();
+            long[] times = new long[entries.length];
+
+            for (int i = 0; i < entries.length; i++)
+              times[i] = ((TimedMapObject)((Map.Entry)entries[i]).getValue()).time;
+
+            Arrays.sort(times);
+
+            int evictCount = Math.min(times.length, excess + maxSize / 10);
+            long oldest = times[evictCount - 1];
+
+            for (int i = 0; i < entries.length && evictCount > 0; i++)
+              {
+                Map.Entry entry = (Map.Entry)entries[i];
+
+                if (((TimedMapObject)entry.getValue()).time <= oldest && super.remove(entry.getKey(), entry.getValue()))
+                  evictCount--;
+              }
+          }
+      }
+
+    private void readObject(ObjectInputStream in) throws IOException, ClassNotFoundException
       {
-        stop_thread = true;
+        in.defaultReadObject();
+
+        evictionLock = new Object();
+        nextSweep = System.nanoTime();
+
+        if (expiration_time > 0)
+          register(this);
       }
-    
-    class TimedCleanup extends Thread
+
+    static void register(ExpiringMap map)
       {
+        synchronized (sweptMaps)
+          {
+            sweptMaps.add(new WeakReference(map));
+
+            if (sweeper == null)
+              {
+                sweeper = new Sweeper();
+                sweeper.start();
+              }
+          }
+      }
+
+    /*
+     * The thread sweeping all of the maps.  It ends when there are no maps left
+     * (they've all been garbage collected), and is restarted by register().
+     */
+    static class Sweeper extends Thread
+      {
+        Sweeper()
+          {
+            super("ExpiringMap sweeper");
+            setDaemon(true);
+          }
+
         public void run()
           {
-            while (! stop_thread)
+            do
               {
-                try { sleep(5000); } catch (InterruptedException ex) { } //don't care 
-                
-                Iterator it = thisInstance.entrySet().iterator();
+                try { sleep(MIN_SWEEP_INTERVAL); } catch (InterruptedException ex) { } //don't care
+              }
+            while (sweepMaps());
+          }
 
-                while (it.hasNext())
+        /* sweeps the maps that are due, returns false (ending the thread) if there are no maps left */
+        static boolean sweepMaps()
+          {
+            List maps = new ArrayList();
+
+            synchronized (sweptMaps)
+              {
+                for (Iterator it = sweptMaps.iterator(); it.hasNext();)
                   {
-                    Map.Entry entry = (Map.Entry)it.next();
-                    TimedMapObject t_obj = (TimedMapObject)entry.getValue();
+                    ExpiringMap map = (ExpiringMap)((WeakReference)it.next()).get();
 
-                    if (System.currentTimeMillis() - t_obj.getTime() > expiration_time)
+                    if (map == null)
                       it.remove();
+                    else
+                      maps.add(map);
+                  }
+
+                if (sweptMaps.isEmpty())
+                  {
+                    sweeper = null;
+                    return false;
+                  }
+              }
+
+            long now = System.nanoTime();
+
+            for (Iterator it = maps.iterator(); it.hasNext();)
+              {
+                ExpiringMap map = (ExpiringMap)it.next();
+
+                if (now - map.nextSweep >= 0)
+                  {
+                    map.sweep(now);
+                    map.nextSweep = now + Math.max(MIN_SWEEP_INTERVAL, Math.min(MAX_SWEEP_INTERVAL, map.expiration_time / 2)) * 1000000L;
                   }
               }
+
+            return true;
           }
       }
-    
-    static class TimedMapObject
+
+    class ValueIterator implements Iterator
       {
-        long time = System.currentTimeMillis();
+        Iterator it;
+        Object next;
+        long now = System.nanoTime();
+
+        ValueIterator(Iterator it)
+          {
+            this.it = it;
+          }
+
+        public boolean hasNext()
+          {
+            while (next == null && it.hasNext())
+              {
+                TimedMapObject t_obj = (TimedMapObject)it.next();
+
+                if (!isExpired(t_obj, now))
+                  next = t_obj.getObject();
+              }
+
+            return next != null;
+          }
+
+        public Object next()
+          {
+            if (!hasNext())
+              throw new java.util.NoSuchElementException();
+
+            Object obj = next;
+
+            next = null;
+
+            return obj;
+          }
+
+        public void remove()
+          {
+            it.remove();
+          }
+      }
+
+    static class TimedMapObject implements java.io.Serializable
+      {
+        private static final long serialVersionUID = 100L;
+
+        volatile long time = System.nanoTime();
         Object obj;
 
         TimedMapObject(Object obj)
           {
             this.obj = obj;
           }
-        
+
         long getTime() { return time; }
-        
+
         Object getObject()
           {
-            time = System.currentTimeMillis();
-            
+            time = System.nanoTime();
+
             return obj;
           }
       }
-    
+
     public static void main(String[] args)
       {
-        ExpiringMap map = new ExpiringMap(1000);
-        
+        ExpiringMap map = new ExpiringMap(1000, 50);
+
         for (int i = 0; i < 100; i++)
           {
             map.put("test" + i, "this is a test" + i);
@@ -156,8 +407,7 @@ public class ExpiringMap extends ConcurrentHashMap
             try { Thread.sleep(500); } catch (InterruptedException e) { }
             System.out.println(map.size());
           }
-        
+
         System.exit(0);
       }
   }
-
@@ -0,0 +1,194 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jCommonTk.
+ *
+ * jCommonTk is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jCommonTk; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jcommontk.utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+
+/**
+ * A reusable 64 bit hasher that is fed primitives, strings and common value
+ * types directly, without converting them to strings or byte arrays first.
+ * Values are hashed by type (an Integer and a String holding the same digits
+ * hash differently) and the result only depends on the values, so it's the
+ * same across JVMs.
+ */
+
+public class ValueHasher
+  {
+    private static final long SEED = 0x9e3779b97f4a7c15L;
+
+    private static final int NULL = 1, STRING = 2, INTEGRAL = 3, DECIMAL = 4, BOOLEAN = 5,
+                             CHARACTER = 6, BIG_NUMBER = 7, DATE = 8, BYTES = 9, CHARS = 10, OTHER = 11;
+
+    private long hash = SEED;
+
+    /**
+     * Resets the hasher so it can be reused.
+     *
+     * @return this hasher
+     */
+    public ValueHasher reset()
+      {
+        hash = SEED;
+
+        return this;
+      }
+
+    /**
+     * Returns the hash of the values added since the last reset.
+     *
+     * @return the hash
+     */
+    public long getValue()
+      {
+        return mix(hash);
+      }
+
+    public ValueHasher update(long value)
+      {
+        hash = mix(hash ^ value) + SEED;
+
+        return this;
+      }
+
+    public ValueHasher update(int value) { return update((long)value); }
+
+    public ValueHasher update(double value) { return update(Double.doubleToLongBits(value)); }
+
+    public ValueHasher update(boolean value) { return update(value ? 1L : 0L); }
+
+    public ValueHasher update(char value) { return update((long)value); }
+
+    public ValueHasher update(CharSequence value)
+      {
+        int length = value.length(), i = 0;
+
+        update(length);
+
+        for (; i + 4 <= length; i += 4)
+          update((long)value.charAt(i) | (long)value.charAt(i + 1) << 16 | (long)value.charAt(i + 2) << 32 | (long)value.charAt(i + 3) << 48);
+
+        if (i < length)
+          {
+            long last = 0;
+
+            for (int shift = 0; i < length; i++, shift += 16)
+              last |= (long)value.charAt(i) << shift;
+
+            update(last);
+          }
+
+        return this;
+      }
+
+    public ValueHasher update(char[] value)
+      {
+        int length = value.length, i = 0;
+
+        update(length);
+
+        for (; i + 4 <= length; i += 4)
+          update((long)value[i] | (long)value[i + 1] << 16 | (long)value[i + 2] << 32 | (long)value[i + 3] << 48);
+
+        if (i < length)
+          {
+            long last = 0;
+
+            for (int shift = 0; i < length; i++, shift += 16)
+              last |= (long)value[i] << shift;
+
+            update(last);
+          }
+
+        return this;
+      }
+
+    public ValueHasher update(byte[] value)
+      {
+        int length = value.length, i = 0;
+
+        update(length);
+
+        for (; i + 8 <= length; i += 8)
+          {
+            long word = 0;
+
+            for (int b = 0; b < 8; b++)
+              word |= (long)(value[i + b] & 0xff) << (b << 3);
+
+            update(word);
+          }
+
+        if (i < length)
+          {
+            long last = 0;
+
+            for (int shift = 0; i < length; i++, shift += 8)
+              last |= (long)(value[i] & 0xff) << shift;
+
+            update(last);
+          }
+
+        return this;
+      }
+
+    /**
+     * Adds a value of any type.  Strings, boxed primitives, big numbers, dates,
+     * enums and byte/char arrays are hashed directly, anything else by its
+     * string form.
+     *
+     * @param value the value (can be null)
+     *
+     * @return this hasher
+     */
+    public ValueHasher update(Object value)
+      {
+        if (value == null)
+          return update(NULL);
+        else if (value instanceof String)
+          return update(STRING).update((String)value);
+        else if (value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte)
+          return update(INTEGRAL).update(((Number)value).longValue());
+        else if (value instanceof Double || value instanceof Float)
+          return update(DECIMAL).update(((Number)value).doubleValue());
+        else if (value instanceof Boolean)
+          return update(BOOLEAN).update(((Boolean)value).booleanValue());
+        else if (value instanceof Character)
+          return update(CHARACTER).update(((Character)value).charValue());
+        else if (value instanceof BigDecimal || value instanceof BigInteger)
+          return update(BIG_NUMBER).update(value.hashCode());   // both are defined by their digits (and scale)
+        else if (value instanceof java.sql.Timestamp)
+          return update(DATE).update(((java.util.Date)value).getTime()).update(((java.sql.Timestamp)value).getNanos());
+        else if (value instanceof java.util.Date)
+          return update(DATE).update(((java.util.Date)value).getTime());
+        else if (value instanceof Enum)
+          return update(STRING).update(((Enum)value).name());
+        else if (value instanceof byte[])
+          return update(BYTES).update((byte[])value);
+        else if (value instanceof char[])
+          return update(CHARS).update((char[])value);
+
+        return update(OTHER).update(value.toString());
+      }
+
+    static long mix(long h)
+      {
+        h = (h ^ (h >>> 33)) * 0xff51afd7ed558ccdL;
+        h = (h ^ (h >>> 33)) * 0xc4ceb9fe1a85ec53L;
+
+        return h ^ (h >>> 33);
+      }
+  }
@@ -0,0 +1,492 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.util.Collection;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * An asynchronous facade of a DatabaseManager, with methods that return a
+ * CompletableFuture instead of blocking the caller on the database.  The
+ * calls are run on virtual threads when the JVM has them (Java 21 and later),
+ * otherwise on a pool of daemon threads, and no more than the maximum
+ * concurrency (by default the database manager's pool size) are run at once,
+ * so queued calls wait without holding a thread or a connection.
+ *
+ * <p>Failures complete the future exceptionally with the JPersistException.
+ * Each call runs on its own thread, so reads following a write aren't kept on
+ * the primary database when there are read replicas (see
+ * DatabaseManager.addReadReplica()) unless they're run in the same
+ * transaction, which executeAsync() can do with a TransactionManager.
+ *
+ * <p>For example:
+ * <pre>
+ *     AsyncDatabaseManager adbm = new AsyncDatabaseManager(dbm);
+ *
+ *     adbm.loadObjectAsync(new Contact("alincoln"))
+ *         .thenAccept(contact -&gt; ...);
+ * </pre>
+ */
+
+public final class AsyncDatabaseManager
+  {
+    private static Logger logger = Logger.getLogger(AsyncDatabaseManager.class.getName());
+
+    private DatabaseManager databaseManager;
+    private ExecutorService executor;
+    private Semaphore permits;
+    private int maxConcurrency;
+    private boolean usingVirtualThreads;
+
+    /**
+     * Creates an asynchronous facade running as many calls at once as the
+     * database manager has pooled connections.
+     *
+     * @param databaseManager the database manager
+     */
+
+    public AsyncDatabaseManager(DatabaseManager databaseManager)
+      {
+        this(databaseManager, databaseManager.getMaxPoolSize());
+      }
+
+    /**
+     * Creates an asynchronous facade.
+     *
+     * @param databaseManager the database manager
+     * @param maxConcurrency the maximum number of calls run at once (0 or less for no maximum, as with pool sizes)
+     */
+
+    public AsyncDatabaseManager(DatabaseManager databaseManager, int maxConcurrency)
+      {
+        this.databaseManager = databaseManager;
+        this.maxConcurrency = maxConcurrency = maxConcurrency > 0 ? maxConcurrency : Integer.MAX_VALUE;
+        this.executor = newVirtualThreadExecutor();
+        this.usingVirtualThreads = executor != null;
+
+        ThreadFactory threadFactory = new ThreadFactory()
+          {
+            public Thread newThread(Runnable runnable)
+              {
+                Thread thread = new Thread(runnable, "jPersist async worker (" + AsyncDatabaseManager.this.databaseManager.getDatabaseName() + ")");
+
+                thread.setDaemon(true);
+
+                return thread;
+              }
+          };
+
+        if (usingVirtualThreads)
+          {
+            if (maxConcurrency != Integer.MAX_VALUE)
+              permits = new Semaphore(maxConcurrency, true);
+          }
+        else if (maxConcurrency != Integer.MAX_VALUE)
+          executor = Executors.newFixedThreadPool(maxConcurrency, threadFactory);
+        else
+          executor = Executors.newCachedThreadPool(threadFactory);
+
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("Running " + databaseManager.getDatabaseName() + " calls on " + (usingVirtualThreads ? "virtual" : "pooled")
+                      + " threads, " + (maxConcurrency != Integer.MAX_VALUE ? maxConcurrency + " at a time" : "without a limit"));
+      }
+
+    /* returns a virtual thread per task executor (by reflection, to run on older JVMs), or null if there are no virtual threads */
+    static ExecutorService newVirtualThreadExecutor()
+      {
+        try
+          {
+            return (ExecutorService)Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+          }
+        catch (Exception e)
+          {
+            return null;
+          }
+      }
+
+    /**
+     * Returns the database manager.
+     *
+     * @return the database manager
+     */
+
+    public DatabaseManager getDatabaseManager() { return databaseManager; }
+
+    /**
+     * Returns the maximum number of calls run at once.
+     *
+     * @return the maximum concurrency (Integer.MAX_VALUE when there's no maximum)
+     */
+
+    public int getMaxConcurrency() { return maxConcurrency; }
+
+    /**
+     * Returns true if calls are run on virtual threads.
+     *
+     * @return true or false
+     */
+
+    public boolean isUsingVirtualThreads() { return usingVirtualThreads; }
+
+    /**
+     * Runs the callable asynchronously, within the concurrency limit.  This
+     * is for work that isn't covered by the other methods, such as running
+     * a TransactionManager.
+     *
+     * @param callable the work to run
+     *
+     * @return the future result
+     */
+
+    public <T> CompletableFuture<T> executeAsync(final Callable<T> callable)
+      {
+        final CompletableFuture<T> future = new CompletableFuture<T>();
+
+        try
+          {
+            executor.execute(new Runnable()
+              {
+                public void run()
+                  {
+                    if (permits != null)
+                      try
+                        {
+                          permits.acquire();
+                        }
+                      catch (InterruptedException e)
+                        {
+                          future.completeExceptionally(new JPersistException(e));
+
+                          return;
+                        }
+
+                    try
+                      {
+                        if (!future.isDone()) // cancelled while queued
+                          future.complete(callable.call());
+                      }
+                    catch (Throwable t)
+                      {
+                        future.completeExceptionally(t);
+                      }
+                    finally
+                      {
+                        if (permits != null)
+                          permits.release();
+                      }
+                  }
+              });
+          }
+        catch (RejectedExecutionException e)
+          {
+            future.completeExceptionally(new JPersistException("The asynchronous database manager has been shut down"));
+          }
+
+        return future;
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObject(object).
+     *
+     * @param object the object to load (and the example)
+     *
+     * @return the future object, or null if it isn't found
+     */
+
+    public <T> CompletableFuture<T> loadObjectAsync(final T object)
+      {
+        return executeAsync(new Callable<T>()
+          {
+            public T call() throws Exception { return databaseManager.loadObject(object); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObject(object, loadAssociations).
+     *
+     * @param object the object to load (and the example)
+     * @param loadAssociations true to load associations
+     *
+     * @return the future object, or null if it isn't found
+     */
+
+    public <T> CompletableFuture<T> loadObjectAsync(final T object, final boolean loadAssociations)
+      {
+        return executeAsync(new Callable<T>()
+          {
+            public T call() throws Exception { return databaseManager.loadObject(object, loadAssociations); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObject(id, cs).
+     *
+     * @param id the id of the object
+     * @param cs the class of the object
+     *
+     * @return the future object, or null if it isn't found
+     */
+
+    public <T> CompletableFuture<T> loadObjectAsync(final Object id, final Class<T> cs)
+      {
+        return executeAsync(new Callable<T>()
+          {
+            public T call() throws Exception { return databaseManager.loadObject(id, cs); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObject(cs, externalClauses, externalClausesParameters).
+     *
+     * @param cs the class of the object
+     * @param externalClauses where, order by, etc.
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the future object, or null if it isn't found
+     */
+
+    public <T> CompletableFuture<T> loadObjectAsync(final Class<T> cs, final String externalClauses, final Object... externalClausesParameters)
+      {
+        return executeAsync(new Callable<T>()
+          {
+            public T call() throws Exception { return databaseManager.loadObject(cs, externalClauses, externalClausesParameters); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObjects(collection, object).
+     *
+     * @param collection the collection to add the objects to
+     * @param object the example object
+     *
+     * @return the future collection
+     */
+
+    public <T> CompletableFuture<Collection<T>> loadObjectsAsync(final Collection<T> collection, final T object)
+      {
+        return executeAsync(new Callable<Collection<T>>()
+          {
+            public Collection<T> call() throws Exception { return databaseManager.loadObjects(collection, object); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObjects(collection, cs).
+     *
+     * @param collection the collection to add the objects to
+     * @param cs the class of the objects
+     *
+     * @return the future collection
+     */
+
+    public <T> CompletableFuture<Collection<T>> loadObjectsAsync(final Collection<T> collection, final Class<T> cs)
+      {
+        return executeAsync(new Callable<Collection<T>>()
+          {
+            public Collection<T> call() throws Exception { return databaseManager.loadObjects(collection, cs); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.loadObjects(collection, cs, externalClauses, externalClausesParameters).
+     *
+     * @param collection the collection to add the objects to
+     * @param cs the class of the objects
+     * @param externalClauses where, order by, etc.
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the future collection
+     */
+
+    public <T> CompletableFuture<Collection<T>> loadObjectsAsync(final Collection<T> collection, final Class<T> cs, final String externalClauses, final Object... externalClausesParameters)
+      {
+        return executeAsync(new Callable<Collection<T>>()
+          {
+            public Collection<T> call() throws Exception { return databaseManager.loadObjects(collection, cs, externalClauses, externalClausesParameters); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.saveObject(object).
+     *
+     * @param object the object to save
+     *
+     * @return the future number of rows updated
+     */
+
+    public CompletableFuture<Integer> saveObjectAsync(final Object object)
+      {
+        return executeAsync(new Callable<Integer>()
+          {
+            public Integer call() throws Exception { return Integer.valueOf(databaseManager.saveObject(object)); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.saveObject(object, externalClauses, externalClausesParameters).
+     *
+     * @param object the object to save
+     * @param externalClauses where, etc.
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the future number of rows updated
+     */
+
+    public CompletableFuture<Integer> saveObjectAsync(final Object object, final String externalClauses, final Object... externalClausesParameters)
+      {
+        return executeAsync(new Callable<Integer>()
+          {
+            public Integer call() throws Exception { return Integer.valueOf(databaseManager.saveObject(object, externalClauses, externalClausesParameters)); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.saveObjects(objects).
+     *
+     * @param objects the objects to save
+     *
+     * @return the future number of rows updated
+     */
+
+    public CompletableFuture<Integer> saveObjectsAsync(final Collection<?> objects)
+      {
+        return executeAsync(new Callable<Integer>()
+          {
+            public Integer call() throws Exception { return Integer.valueOf(databaseManager.saveObjects(objects)); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.deleteObject(object).
+     *
+     * @param object the object to delete
+     *
+     * @return the future number of rows deleted
+     */
+
+    public CompletableFuture<Integer> deleteObjectAsync(final Object object)
+      {
+        return executeAsync(new Callable<Integer>()
+          {
+            public Integer call() throws Exception { return Integer.valueOf(databaseManager.deleteObject(object)); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.executeQuery(c, sql).
+     *
+     * @param c the collection to add the rows to
+     * @param sql the query
+     *
+     * @return the future collection
+     */
+
+    public CompletableFuture<Collection<Object[]>> executeQueryAsync(final Collection<Object[]> c, final String sql)
+      {
+        return executeAsync(new Callable<Collection<Object[]>>()
+          {
+            public Collection<Object[]> call() throws Exception { return databaseManager.executeQuery(c, sql); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.parameterizedQuery(c, sql, parameters).
+     *
+     * @param c the collection to add the rows to
+     * @param sql the query
+     * @param parameters the parameters of the query
+     *
+     * @return the future collection
+     */
+
+    public CompletableFuture<Collection<Object[]>> parameterizedQueryAsync(final Collection<Object[]> c, final String sql, final Object... parameters)
+      {
+        return executeAsync(new Callable<Collection<Object[]>>()
+          {
+            public Collection<Object[]> call() throws Exception { return databaseManager.parameterizedQuery(c, sql, parameters); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.parameterizedQuery(c, singleObject, sql, parameters).
+     *
+     * @param c the collection to add the rows to
+     * @param singleObject true to add the first column of each row instead of the row
+     * @param sql the query
+     * @param parameters the parameters of the query
+     *
+     * @return the future collection
+     */
+
+    public CompletableFuture<Collection<Object[]>> parameterizedQueryAsync(final Collection<Object[]> c, final boolean singleObject, final String sql, final Object... parameters)
+      {
+        return executeAsync(new Callable<Collection<Object[]>>()
+          {
+            public Collection<Object[]> call() throws Exception { return databaseManager.parameterizedQuery(c, singleObject, sql, parameters); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.executeUpdate(sql).
+     *
+     * @param sql the update
+     *
+     * @return the future number of rows updated
+     */
+
+    public CompletableFuture<Integer> executeUpdateAsync(final String sql)
+      {
+        return executeAsync(new Callable<Integer>()
+          {
+            public Integer call() throws Exception { return Integer.valueOf(databaseManager.executeUpdate(sql)); }
+          });
+      }
+
+    /**
+     * Asynchronous DatabaseManager.parameterizedUpdate(sql, parameters).
+     *
+     * @param sql the update
+     * @param parameters the parameters of the update
+     *
+     * @return the future number of rows updated
+     */
+
+    public CompletableFuture<Integer> parameterizedUpdateAsync(final String sql, final Object... parameters)
+      {
+        return executeAsync(new Callable<Integer>()
+          {
+            public Integer call() throws Exception { return Integer.valueOf(databaseManager.parameterizedUpdate(sql, parameters)); }
+          });
+      }
+
+    /**
+     * Stops accepting calls (calls already made still complete).  The
+     * database manager isn't closed.
+     */
+
+    public void shutdown()
+      {
+        executor.shutdown();
+      }
+  }
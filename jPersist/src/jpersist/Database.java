@@ -35,6 +35,10 @@ import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
 import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Set;
@@ -67,20 +71,84 @@ public final class Database
     private DatabaseManager databaseManager;
     private Statement queryStatement, updateStatement;
     private Connection connection;
+    private MetaData metaData;
     private boolean isClosed, isBatch;
     private int fetchSize, maxRows, resultSetType, resultSetConcurrency;
+    private long createdTime, lastUsedTime;
+    private double lifetimeJitter;
+    private StatementCache statementCache;
+    private boolean compiledRowMapping, streamingMode, upsertMode, lazyAssociations;
+    private Set openStatements = Collections.newSetFromMap(new IdentityHashMap()), changedClasses = new HashSet(), changedStatements = new HashSet();
+
+    /* the fetch size used in streaming mode (for drivers other than MySQL) when one hasn't been set */
+    static final int STREAMING_FETCH_SIZE = 1000;
 
     /* Non-public access ************************************************************/
 
     Database(DatabaseManager databaseManager) //, License license) throws LicenseException
       {
         this.databaseManager = databaseManager;
+        this.createdTime = this.lastUsedTime = System.currentTimeMillis();
+        this.lifetimeJitter = Math.random();
 
         //if (license == null || !license.isLicenseValid())
         //  throw new LicenseException("Invalid License");
       }
 
     DatabaseManager getDatabaseManager() { return databaseManager; }
+
+    /* clears the class's cached objects (see EntityCache), they're cleared again when the transaction ends */
+    void objectChanged(Class objectClass)
+      {
+        if (databaseManager != null)
+          {
+            databaseManager.getEntityCache().invalidate(objectClass);
+            changedClasses.add(objectClass);
+          }
+      }
+
+    /*
+     * Called with each update statement.  Drops the cached query results of the
+     * tables the statement updates (see QueryResultCache), all tables if sql is
+     * null, and tells the manager the thread wrote (see getReadDatabase()).
+     */
+    void tablesChanged(String sql)
+      {
+        if (databaseManager != null)
+          databaseManager.databaseWritten();
+
+        QueryResultCache queryCache = databaseManager != null ? databaseManager.getQueryCache() : null;
+
+        if (queryCache != null)
+          {
+            if (sql != null)
+              queryCache.invalidate(sql);
+            else
+              queryCache.invalidateTables(null);
+
+            changedStatements.add(sql);
+          }
+      }
+
+    /* clears the cached objects and query results changed in the transaction, so queries during the transaction don't leave them stale */
+    void transactionEnded()
+      {
+        if (!changedClasses.isEmpty())
+          {
+            for (Iterator it = changedClasses.iterator(); it.hasNext();)
+              databaseManager.getEntityCache().invalidate((Class)it.next());
+
+            changedClasses.clear();
+          }
+
+        if (!changedStatements.isEmpty())
+          {
+            for (Iterator it = changedStatements.iterator(); it.hasNext();)
+              tablesChanged((String)it.next());
+
+            changedStatements.clear();
+          }
+      }
     
     void setDatabaseName(String databaseName) { this.databaseName = databaseName; }
 
@@ -90,15 +158,28 @@ public final class Database
         queryStatement = updateStatement = null;
         resultsList = new ArrayList();
         queryQueueList = new ArrayList();
+        openStatements.clear();
         isClosed = false;
         fetchSize = maxRows = resultSetType = resultSetConcurrency = 0;
+        streamingMode = false;
       }
 
     void setConnection(Connection connection)
       {
         this.connection = connection; 
+        this.metaData = null;
       }
 
+    Connection getPooledConnection() { return connection; }
+
+    long getCreatedTime() { return createdTime; }
+
+    long getLastUsedTime() { return lastUsedTime; }
+
+    void setLastUsedTime(long lastUsedTime) { this.lastUsedTime = lastUsedTime; }
+
+    double getLifetimeJitter() { return lifetimeJitter; }
+
     void closeResult(Result result)
       {
         try
@@ -106,7 +187,9 @@ public final class Database
             ResultSet resultSet = result.getResultSet();
             Statement statement = resultSet.getStatement();
 
-            if (statement == queryStatement)
+            openStatements.remove(statement);
+
+            if (statement == queryStatement || isStatementCached(statement))
               resultSet.close();
             else
               statement.close();
@@ -120,7 +203,8 @@ public final class Database
           {
             try
               {
-                queryStatement.close();
+                if (!isStatementCached(queryStatement))
+                  queryStatement.close();
               }
             catch (Exception e) { } // don't care.  JDBC spec says close can be called multiple times, but Resin was complaining.
 
@@ -134,7 +218,10 @@ public final class Database
           {
             try
               {
-                updateStatement.close();
+                if (isStatementCached(updateStatement))
+                  updateStatement.clearBatch();
+                else
+                  updateStatement.close();
               }
             catch (Exception e) { } // don't care.  JDBC spec says close can be called multiple times, but Resin was complaining.
 
@@ -142,6 +229,45 @@ public final class Database
           }
       }
     
+    boolean isStatementCached(Statement statement)
+      {
+        return statementCache != null && statementCache.contains(statement);
+      }
+
+    boolean isStatementInUse(Statement statement)
+      {
+        return statement == queryStatement || statement == updateStatement || openStatements.contains(statement);
+      }
+
+    /**
+     * Makes the given statement the current query statement, closing the previous 
+     * one if it's not cached and has no open results (results close their own
+     * uncached statements).
+     */
+
+    void replaceQueryStatement(Statement statement)
+      {
+        if (queryStatement != null && queryStatement != statement 
+            && !isStatementCached(queryStatement) && !openStatements.contains(queryStatement))
+          try
+            {
+              queryStatement.close();
+            }
+          catch (Exception e) { } // don't care.
+
+        queryStatement = statement;
+      }
+
+    void clearStatementCache()
+      {
+        if (statementCache != null)
+          {
+            queryStatement = updateStatement = null;
+            openStatements.clear();
+            statementCache.clear();
+          }
+      }
+
     String getCatalogPattern() { return catalogPattern; }
 
     String getSchemaPattern() { return schemaPattern; }
@@ -207,6 +333,115 @@ public final class Database
         return connection;
       }
 
+    /**
+     * Sets the number of prepared statements cached for the connection.  Cached 
+     * statements are reused by later queries and updates with the same SQL (and
+     * result set type, concurrency and generated keys), and with pooled 
+     * DriverManager connections they survive the database being closed and 
+     * returned to the pool.  Zero (the default) disables the cache.
+     *
+     * @param statementCacheSize the maximum number of cached statements
+     */
+    
+    public void setStatementCacheSize(int statementCacheSize)
+      {
+        if (statementCacheSize <= 0)
+          {
+            if (statementCache != null)
+              {
+                statementCache.setMaxSize(0);
+                statementCache = null;
+              }
+          }
+        else if (statementCache == null)
+          statementCache = new StatementCache(this, statementCacheSize);
+        else if (statementCache.getMaxSize() != statementCacheSize)
+          statementCache.setMaxSize(statementCacheSize);
+      }
+
+    /**
+     * Returns the number of prepared statement requests satisfied by the statement cache.
+     *
+     * @return the number of statement cache hits
+     */
+    
+    public long getStatementCacheHits() { return statementCache != null ? statementCache.getHits() : 0; }
+
+    /**
+     * Returns the number of prepared statement requests that had to prepare a new statement
+     * (while the statement cache is enabled).
+     *
+     * @return the number of statement cache misses
+     */
+    
+    public long getStatementCacheMisses() { return statementCache != null ? statementCache.getMisses() : 0; }
+
+    /**
+     * Enables or disables compiled row mapping.  When enabled, loading objects 
+     * from a result (Result.loadObject(), loadObjects() and iteration) matches 
+     * the object's set methods to result set columns once per result, and then
+     * loads each row by column index with typed ResultSet getters (getInt(), 
+     * getLong(), getDouble(), ...), rather than looking up each column by name.
+     * Classes that don't match tables are always loaded by name.
+     *
+     * @param compiledRowMapping true to enable compiled row mapping
+     */
+    
+    public void setCompiledRowMapping(boolean compiledRowMapping) { this.compiledRowMapping = compiledRowMapping; }
+
+    /**
+     * Returns true if compiled row mapping is enabled (see setCompiledRowMapping()).
+     *
+     * @return true if compiled row mapping is enabled
+     */
+    
+    public boolean getCompiledRowMapping() { return compiledRowMapping; }
+
+    /**
+     * Enables or disables upsert mode.  When enabled, saving an object that 
+     * would be inserted (it wasn't loaded, so isn't known to exist) inserts or 
+     * updates the row in one statement, with MERGE, INSERT ... ON CONFLICT or 
+     * INSERT ... ON DUPLICATE KEY UPDATE, depending on the database (see 
+     * MetaData.getDatabaseProductName()).  The object must have values for all 
+     * of the table's primary keys, otherwise, and with databases that don't 
+     * support an upsert, the object is inserted as usual.
+     *
+     * @param upsertMode true to enable upsert mode
+     */
+    
+    public void setUpsertMode(boolean upsertMode) { this.upsertMode = upsertMode; }
+
+    /**
+     * Returns true if upsert mode is enabled (see setUpsertMode()).
+     *
+     * @return true if upsert mode is enabled
+     */
+    
+    public boolean getUpsertMode() { return upsertMode; }
+
+    /**
+     * Enables or disables lazy associations.  When enabled, and the database 
+     * is from a DatabaseManager, loading associations sets a collection 
+     * (implementing jpersist.interfaces.LazyAssociation) for each association 
+     * set with a List, Queue, Set or SortedSet (setDbAssociation(Type, List) 
+     * etc.), which queries the association, with a database from the 
+     * DatabaseManager, when it's first accessed.  Other associations are 
+     * loaded as usual.  Associations that haven't been accessed aren't saved 
+     * with saveObject().
+     *
+     * @param lazyAssociations true to enable lazy associations
+     */
+    
+    public void setLazyAssociations(boolean lazyAssociations) { this.lazyAssociations = lazyAssociations; }
+
+    /**
+     * Returns true if lazy associations are enabled (see setLazyAssociations()).
+     *
+     * @return true if lazy associations are enabled
+     */
+    
+    public boolean getLazyAssociations() { return lazyAssociations; }
+
     /**
      * Returns the database meta data associated with the current database.  
      * The MetaData class can be used to access information about tables in 
@@ -221,7 +456,10 @@ public final class Database
       {
         try
           {
-            return MetaData.getMetaData(connection); 
+            if (metaData == null)
+              metaData = MetaData.getMetaData(connection);
+
+            return metaData;
           }
         catch (Exception e)
           {
@@ -287,11 +525,12 @@ public final class Database
           }
         finally
           {
+            isClosed = true;
+            transactionEnded();
+
             if (databaseManager != null)
               databaseManager.releaseDatabase(this);
           }
-        
-        isClosed = true;
       }
 
     /**
@@ -408,6 +647,70 @@ public final class Database
         this.resultSetConcurrency = resultSetConcurrency;
       }
 
+    /**
+     * Enables or disables streaming mode.  In streaming mode queries use 
+     * forward only, read only result sets with a fetch size that lets the 
+     * driver stream rows rather than read the whole result into memory 
+     * (Integer.MIN_VALUE for MySQL, otherwise 1000, unless a fetch size has 
+     * been set), and Result iterates with a one row lookahead.  Large results 
+     * can then be processed with constant memory.
+     * 
+     * <p>Notes: PostgreSQL only streams when auto commit is off.  MySQL doesn't 
+     * allow other statements on the connection while a streaming result is open, 
+     * so objects should be loaded without associations.  Results can only be 
+     * read forward (previous(), first(), last(), etc. aren't supported).
+     *
+     * @param streamingMode true to enable streaming mode
+     *
+     * @throws JPersistException
+     */
+    
+    public void setStreamingMode(boolean streamingMode) throws JPersistException
+      {
+        if (isClosed)
+          throw new JPersistException(JPersistException.DATABASE_CLOSED);
+
+        if (logger.isLoggable(Level.FINER))
+          logger.finer("Setting streaming mode to " + streamingMode);
+
+        if (this.streamingMode != streamingMode)
+          querySql = null; // don't reuse the current query statement with the wrong result set type
+
+        this.streamingMode = streamingMode;
+      }
+
+    /**
+     * Returns true if streaming mode is enabled (see setStreamingMode()).
+     *
+     * @return true if streaming mode is enabled
+     */
+    
+    public boolean getStreamingMode() { return streamingMode; }
+
+    int getQueryResultSetType()
+      {
+        if (streamingMode)
+          return ResultSet.TYPE_FORWARD_ONLY;
+
+        return resultSetType > 0 ? resultSetType : ResultSet.TYPE_SCROLL_INSENSITIVE;
+      }
+
+    int getQueryResultSetConcurrency()
+      {
+        if (streamingMode)
+          return ResultSet.CONCUR_READ_ONLY;
+
+        return resultSetConcurrency > 0 ? resultSetConcurrency : ResultSet.CONCUR_READ_ONLY;
+      }
+
+    int getQueryFetchSize() throws JPersistException
+      {
+        if (streamingMode && fetchSize == 0)
+          return getMetaData().getDatabaseUrl().toLowerCase().startsWith("jdbc:mysql") ? Integer.MIN_VALUE : STREAMING_FETCH_SIZE;
+
+        return fetchSize;
+      }
+
     /**
      * Creates a simple statement that is configured more for queries.
      * 
@@ -426,8 +729,8 @@ public final class Database
             if (logger.isLoggable(Level.FINER))
               logger.finer("Creating statement for querying: resultSetType = " + resultSetType + ", resultSetConcurrency = " + resultSetConcurrency);
 
-            Statement statement = connection.createStatement(resultSetType > 0 ? resultSetType : ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                                             resultSetConcurrency > 0 ? resultSetConcurrency : ResultSet.CONCUR_READ_ONLY);
+            Statement statement = connection.createStatement(getQueryResultSetType(), getQueryResultSetConcurrency());
+            int fetchSize = getQueryFetchSize();
 
             if (fetchSize != 0)
               statement.setFetchSize(fetchSize);
@@ -498,25 +801,55 @@ public final class Database
 
         try
           {
-            if (queryStatement != null && queryStatement instanceof PreparedStatement && sql.equals(querySql))
+            if (queryStatement != null && queryStatement instanceof PreparedStatement && !(queryStatement instanceof CallableStatement) && sql.equals(querySql))
               return (PreparedStatement)queryStatement;
 
-            if (logger.isLoggable(Level.FINER))
-              logger.finer("Creating prepared statement for querying:\n" + "sql = " + sql + "\n" 
-                          + "resultSetType = " + resultSetType + ", resultSetConcurrency = " + resultSetConcurrency);
+            int type = getQueryResultSetType(), concurrency = getQueryResultSetConcurrency(), fetchSize = getQueryFetchSize();
+            StatementCache.Key key = null;
+            PreparedStatement statement = null;
 
-            queryStatement = connection.prepareStatement(sql, resultSetType > 0 ? resultSetType : ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                                         resultSetConcurrency > 0 ? resultSetConcurrency : ResultSet.CONCUR_READ_ONLY);
+            if (statementCache != null)
+              {
+                statement = statementCache.get(key = new StatementCache.Key(sql, type, concurrency, null));
 
-            if (fetchSize != 0)
-              queryStatement.setFetchSize(fetchSize);
+                if (statement != null && openStatements.contains(statement))
+                  {
+                    statement = null;
+                    key = null; // still in use, so use an uncached statement
+                    statementCache.recordMiss();
+                  }
+                else if (statement != null)
+                  {
+                    statement.setFetchSize(fetchSize);
+                    statement.setMaxRows(maxRows);
+                    statementCache.recordHit();
+                  }
+                else
+                  statementCache.recordMiss();
+              }
 
-            if (maxRows != 0)
-              queryStatement.setMaxRows(maxRows);
-          
+            if (statement == null)
+              {
+                if (logger.isLoggable(Level.FINER))
+                  logger.finer("Creating prepared statement for querying:\n" + "sql = " + sql + "\n" 
+                              + "resultSetType = " + resultSetType + ", resultSetConcurrency = " + resultSetConcurrency);
+
+                statement = connection.prepareStatement(sql, type, concurrency);
+
+                if (fetchSize != 0)
+                  statement.setFetchSize(fetchSize);
+
+                if (maxRows != 0)
+                  statement.setMaxRows(maxRows);
+
+                if (key != null)
+                  statementCache.put(key, statement);
+              }
+
+            replaceQueryStatement(statement);
             querySql = sql;
 
-            return (PreparedStatement)queryStatement;
+            return statement;
           }
         catch (Exception e)
           {
@@ -543,6 +876,8 @@ public final class Database
         if (sql == null || sql.length() == 0)
           throw new JPersistException(JPersistException.SQL_STATEMENT_NULL);
 
+        tablesChanged(sql);
+
         try
           {
             if (updateStatement != null)
@@ -556,6 +891,21 @@ public final class Database
                   closeUpdateStatement();
                 }
             
+            StatementCache.Key key = null;
+
+            if (statementCache != null)
+              {
+                if ((updateStatement = statementCache.get(key = new StatementCache.Key(sql, 0, 0, keys))) != null)
+                  {
+                    statementCache.recordHit();
+                    updateSql = sql;
+
+                    return (PreparedStatement)updateStatement;
+                  }
+
+                statementCache.recordMiss();
+              }
+
             if (logger.isLoggable(Level.FINER))
               logger.finer("Creating prepared statement for updating");
 
@@ -566,6 +916,9 @@ public final class Database
             else
               updateStatement = getConnection().prepareStatement(sql);
 
+            if (key != null)
+              statementCache.put(key, (PreparedStatement)updateStatement);
+
             updateSql = sql;
 
             return (PreparedStatement)updateStatement;
@@ -604,8 +957,9 @@ public final class Database
               logger.finer("Creating callable statement for querying:\n" + "sql = " + sql + "\n"
                           + "resultSetType = " + resultSetType + ", resultSetConcurrency = " + resultSetConcurrency);
 
-            queryStatement = connection.prepareCall(sql, resultSetType > 0 ? resultSetType : ResultSet.TYPE_SCROLL_INSENSITIVE,
-                                                    resultSetConcurrency > 0 ? resultSetConcurrency : ResultSet.CONCUR_READ_ONLY);
+            replaceQueryStatement(connection.prepareCall(sql, getQueryResultSetType(), getQueryResultSetConcurrency()));
+
+            int fetchSize = getQueryFetchSize();
 
             if (fetchSize != 0)
               queryStatement.setFetchSize(fetchSize);
@@ -642,6 +996,8 @@ public final class Database
         if (sql == null || sql.length() == 0)
           throw new JPersistException(JPersistException.SQL_STATEMENT_NULL);
 
+        tablesChanged(null);
+
         try
           {
             if (updateStatement != null)
@@ -903,6 +1259,35 @@ public final class Database
           }
       }
 
+    /**
+     * Saves a collection of objects in one transaction (or the current transaction 
+     * if auto commit is off).  Objects that will be inserted are grouped by their 
+     * insert statements and inserted with JDBC batches, with auto-generated keys 
+     * set from the batch, while objects that will be updated (or can't be batched) 
+     * are saved the same as saveObject() saves them.
+     * 
+     * @param objects a collection of any Object (POJO, PersistentObject, etc.)
+     *
+     * @return number of rows updated
+     *
+     * @throws JPersistException
+     */
+    
+    public int saveObjects(Collection<?> objects) throws JPersistException
+      {
+        if (isClosed)
+          throw new JPersistException(JPersistException.DATABASE_CLOSED);
+
+        try
+          {
+            return ObjectSupport.saveObjects(this, objects);
+          }
+        catch (Exception e)
+          {
+            throw new JPersistException(e);
+          }
+      }
+
     /**
      * Builds a delete statement from the object.
      * 
@@ -1002,6 +1387,7 @@ public final class Database
             Result result = new Result(this, ((PreparedStatement)queryStatement).executeQuery());
             
             resultsList.add(result);
+            openStatements.add(queryStatement);
             
             return result;
           }
@@ -1072,6 +1458,7 @@ public final class Database
             Result result = new Result(this, preparedStatement.getResultSet());
             
             resultsList.add(result);
+            openStatements.add(preparedStatement);
             
             return result;
           }
@@ -1146,6 +1533,8 @@ public final class Database
         if (logger.isLoggable(Level.FINE))
           logger.fine("sql = " + sql + "\nkeys = " + keys);
 
+        tablesChanged(sql);
+
         try
           {
             int rval = 0;
@@ -1376,6 +1765,11 @@ public final class Database
           {
             throw new JPersistException(e);
           }
+        finally
+          {
+            if (autoCommit)
+              transactionEnded();
+          }
       }
 
     /**
@@ -1446,6 +1840,10 @@ public final class Database
           {
             throw new JPersistException(e);
           }
+        finally
+          {
+            transactionEnded();
+          }
       }
     
     /**
@@ -1470,6 +1868,10 @@ public final class Database
           {
             throw new JPersistException(e);
           }
+        finally
+          {
+            transactionEnded();
+          }
       }
     
     /**
@@ -15,10 +15,12 @@
 
 package jpersist;
 
+import java.io.File;
 import java.io.IOException;
 import java.net.URL;
 import java.sql.Connection;
 import java.sql.DriverManager;
+import java.sql.SQLException;
 import java.util.ArrayList;
 import java.util.Collection;
 import java.util.Collections;
@@ -27,8 +29,12 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.logging.Level;
 import java.util.logging.Logger;
+import java.util.stream.Stream;
 
 import javax.naming.InitialContext;
 import javax.naming.NamingException;
@@ -39,6 +45,7 @@ import jcommontk.utils.StringUtils;
 import jcommontk.utils.XMLParser;
 import jcommontk.utils.XMLParserException;
 import jpersist.interfaces.ColumnMapping;
+import jpersist.interfaces.ObjectCache;
 import jpersist.interfaces.TableMapping;
 import jpersist.utils.ResultSetUtils;
 
@@ -65,13 +72,25 @@ public final class DatabaseManager
     private static Map dbDefinitionsMap = new HashMap();
     
     private String databaseName, databaseDriver, databaseUrl, databaseUsername, databasePassword, catalogPattern, schemaPattern;
-    private int maxPoolSize, databasesAllocated, connectionSourceType = CONNECTION_SOURCE_IS_UNDEFINED;
-    private List connectionsList = Collections.synchronizedList(new ArrayList()),
-                 databaseFreePool = Collections.synchronizedList(new ArrayList());
+    private int maxPoolSize, statementCacheSize, connectionSourceType = CONNECTION_SOURCE_IS_UNDEFINED;
+    private List connectionsList = Collections.synchronizedList(new ArrayList());
+    private DatabasePool databasePool;
+    private boolean compiledRowMapping, upsertMode, lazyAssociations;
+    private String metaDataSnapshot, metaDataFingerprintQuery;
+    private volatile Long metaDataFingerprint;
     private TableMapping tableMapper;
     private ColumnMapping columnMapper;
     private DataSource dataSource;
-    private Map sqlStatements;
+    private Map sqlStatements, idWhereClauses = new ConcurrentHashMap();
+    private EntityCache entityCache = new EntityCache();
+    private volatile QueryResultCache queryCache;
+    private List readReplicas = new CopyOnWriteArrayList();
+    private AtomicInteger nextReplica = new AtomicInteger();
+    private long readAfterWriteInterval = 1000;
+    private ThreadLocal readRouting = new ThreadLocal()
+      {
+        protected Object initialValue() { return new long[2]; } // primary pins, time of the last write
+      };
     //private License license = new License(500);
     private boolean isClosed;
 
@@ -126,9 +145,47 @@ public final class DatabaseManager
                        catalogPattern = StringUtils.emptyToDefault(e2.getAttribute("catalogPattern"),null),
                        schemaPattern = StringUtils.emptyToDefault(e2.getAttribute("schemaPattern"),null),
                        user = StringUtils.emptyToDefault(e2.getAttribute("username"),null),
-                       password = StringUtils.emptyToDefault(e2.getAttribute("password"),null);
+                       password = StringUtils.emptyToDefault(e2.getAttribute("password"),null),
+                       preloadMetaData = StringUtils.emptyToDefault(e2.getAttribute("preloadMetaData"),null),
+                       metaDataSnapshot = StringUtils.emptyToDefault(e2.getAttribute("metaDataSnapshot"),null),
+                       metaDataFingerprintQuery = StringUtils.emptyToDefault(e2.getAttribute("metaDataFingerprintQuery"),null),
+                       queryCacheSize = StringUtils.emptyToDefault(e2.getAttribute("queryCacheSize"),"0"),
+                       queryCacheExpiration = StringUtils.emptyToDefault(e2.getAttribute("queryCacheExpiration"),"60000");
 
                 DefinedDatabase dd = new DefinedDatabase(name, driver, url, catalogPattern, schemaPattern, user, password, new Integer(poolSize).intValue(), useJndi == null ? false : new Boolean(useJndi).booleanValue());
+                dd.preloadMetaData = preloadMetaData == null ? false : new Boolean(preloadMetaData).booleanValue();
+                dd.metaDataSnapshot = metaDataSnapshot;
+                dd.metaDataFingerprintQuery = metaDataFingerprintQuery;
+                dd.queryCacheSize = Long.parseLong(queryCacheSize);
+                dd.queryCacheExpiration = Long.parseLong(queryCacheExpiration);
+
+                NodeList cl = e2.getElementsByTagName("cache");
+
+                for (int i2 = 0; i2 < cl.getLength(); i2++)
+                  {
+                    Element e3 = (Element)cl.item(i2);
+
+                    dd.caches.add(new String[] { e3.getAttribute("class"),
+                                                 StringUtils.emptyToDefault(e3.getAttribute("expiration"),"300000"),
+                                                 StringUtils.emptyToDefault(e3.getAttribute("maxSize"),"1000") });
+                  }
+
+                NodeList rl = e2.getElementsByTagName("replica");
+
+                for (int i2 = 0; i2 < rl.getLength(); i2++)
+                  {
+                    Element e3 = (Element)rl.item(i2);
+
+                    dd.replicas.add(new DefinedDatabase(name + "-replica" + (i2 + 1), 
+                                                        StringUtils.emptyToDefault(e3.getAttribute("driver"),driver),
+                                                        StringUtils.emptyToDefault(e3.getAttribute("url"),null),
+                                                        catalogPattern, schemaPattern,
+                                                        StringUtils.emptyToDefault(e3.getAttribute("username"),user),
+                                                        StringUtils.emptyToDefault(e3.getAttribute("password"),password),
+                                                        new Integer(StringUtils.emptyToDefault(e3.getAttribute("poolSize"),poolSize)).intValue(),
+                                                        dd.useJndi));
+                  }
+
                 dbDefinitionsMap.put(name, dd);
                 logger.config(dd.toString());
               }
@@ -137,9 +194,11 @@ public final class DatabaseManager
 
     static class DefinedDatabase
       {
-        String name, driver, url, catalogPattern, schemaPattern, user, password;
+        String name, driver, url, catalogPattern, schemaPattern, user, password, metaDataSnapshot, metaDataFingerprintQuery;
         int poolSize;
-        boolean useJndi;
+        long queryCacheSize, queryCacheExpiration;
+        boolean useJndi, preloadMetaData;
+        List caches = new ArrayList(), replicas = new ArrayList();
         
         DefinedDatabase(String name, String driver, String url, String catalogPattern, String schemaPattern, String user, String password, int poolSize, boolean useJndi)
           {
@@ -163,13 +222,20 @@ public final class DatabaseManager
         String getPassword() { return password; }
         int getPoolSize() { return poolSize; }
         boolean useJndi() { return useJndi; }
+        boolean preloadMetaData() { return preloadMetaData || metaDataSnapshot != null; }
+        String getMetaDataSnapshot() { return metaDataSnapshot; }
+        String getMetaDataFingerprintQuery() { return metaDataFingerprintQuery; }
+        List getCaches() { return caches; }
+        List getReplicas() { return replicas; }
+        long getQueryCacheSize() { return queryCacheSize; }
+        long getQueryCacheExpiration() { return queryCacheExpiration; }
         
         public String toString()
           {
             if (useJndi)
-              return "Name: " + name + ", poolsize = " + poolSize + ", useJndi = true, url = " + url + ", catalogPattern = " + catalogPattern + ", schemaPattern = " + schemaPattern + ", user = " + user + ", password = " + password;
+              return "Name: " + name + ", poolsize = " + poolSize + ", useJndi = true, url = " + url + ", catalogPattern = " + catalogPattern + ", schemaPattern = " + schemaPattern + ", user = " + user + ", password = " + password + ", preloadMetaData = " + preloadMetaData;
             else
-              return "Name: " + name + ", poolsize = " + poolSize + ", driver = " + driver + ", url = " + url + ", catalogPattern = " + catalogPattern + ", schemaPattern = " + schemaPattern + ", user = " + user + ", password = " + password;
+              return "Name: " + name + ", poolsize = " + poolSize + ", driver = " + driver + ", url = " + url + ", catalogPattern = " + catalogPattern + ", schemaPattern = " + schemaPattern + ", user = " + user + ", password = " + password + ", preloadMetaData = " + preloadMetaData;
           }
       }
 
@@ -179,11 +245,25 @@ public final class DatabaseManager
      * 
      * <pre>
      *     &lt;databases&gt;
-     *         &lt;database name="" useJndi="" url="" [poolSize=""] [catalogPattern=""] [schemaPattern=""] [user=""] [password=""] /&gt;
-     *         &lt;database name="" driver="" url="" [poolSize=""] [catalogPattern=""] [schemaPattern=""] [user=""] [password=""] /&gt;
+     *         &lt;database name="" useJndi="" url="" [poolSize=""] [catalogPattern=""] [schemaPattern=""] [user=""] [password=""] [preloadMetaData=""] 
+     *                   [metaDataSnapshot="" [metaDataFingerprintQuery=""]] [queryCacheSize="" [queryCacheExpiration=""]] /&gt;
+     *         &lt;database name="" driver="" url="" [poolSize=""] [catalogPattern=""] [schemaPattern=""] [user=""] [password=""] [preloadMetaData=""] 
+     *                   [metaDataSnapshot="" [metaDataFingerprintQuery=""]] [queryCacheSize="" [queryCacheExpiration=""]] &gt;
+     *             [&lt;cache class="" [expiration=""] [maxSize=""] /&gt; ...]
+     *             [&lt;replica url="" [driver=""] [poolSize=""] [username=""] [password=""] /&gt; ...]
+     *         &lt;/database&gt;
      *     &lt;/databases&gt;
      * </pre>
      * 
+     * With preloadMetaData="true" the table metadata is loaded when the 
+     * DatabaseManager is created (see preloadMetaData()).  Defining a
+     * metaDataSnapshot file also preloads, from the file when it's current
+     * (see setMetaDataSnapshot()).  Each cache element caches loaded objects 
+     * of the named class (see setObjectCache()), expiration is in milliseconds.
+     * A queryCacheSize (in bytes) caches cachedQuery() results (see setQueryCache()).
+     * Each replica element adds a read replica (see addReadReplica()), using
+     * the database's settings for anything not defined.
+     * 
      * 
      * @param dbName is the name defined in the database element
      * @return an instance os DatabaseManager, or null if not defined
@@ -202,20 +282,43 @@ public final class DatabaseManager
         
         if (definedDatabase != null)
           {
-            if (definedDatabase.useJndi())
-              return new DatabaseManager(dbName, definedDatabase.getPoolSize(), definedDatabase.getUrl(), definedDatabase.getCatalogPattern(), definedDatabase.getSchemaPattern());
-            else
+            DatabaseManager dbm = createDatabaseManager(definedDatabase);
+
+            for (Iterator it = definedDatabase.getReplicas().iterator(); it.hasNext();)
+              dbm.addReadReplica(createDatabaseManager((DefinedDatabase)it.next()));
+
+            if (definedDatabase.getQueryCacheSize() > 0)
+              dbm.setQueryCache(definedDatabase.getQueryCacheSize(), definedDatabase.getQueryCacheExpiration());
+
+            for (Iterator it = definedDatabase.getCaches().iterator(); it.hasNext();)
               {
-                if (definedDatabase.getUsername() == null)
-                  return new DatabaseManager(dbName, definedDatabase.getPoolSize(), definedDatabase.getDriver(), definedDatabase.getUrl(), definedDatabase.getCatalogPattern(), definedDatabase.getSchemaPattern());
-                else
-                  return new DatabaseManager(dbName, definedDatabase.getPoolSize(), definedDatabase.getDriver(), definedDatabase.getUrl(), definedDatabase.getCatalogPattern(), definedDatabase.getSchemaPattern(), definedDatabase.getUsername(), definedDatabase.getPassword());
+                String[] cache = (String[])it.next();
+
+                dbm.entityCache.defineRegion(cache[0], Long.parseLong(cache[1]), Integer.parseInt(cache[2]));
               }
+
+            if (definedDatabase.getMetaDataSnapshot() != null)
+              dbm.setMetaDataSnapshot(definedDatabase.getMetaDataSnapshot(), definedDatabase.getMetaDataFingerprintQuery());
+
+            if (definedDatabase.preloadMetaData())
+              dbm.preloadMetaData();
+
+            return dbm;
           }
         
         throw new JPersistException("Defined Database '" + dbName + "' not found");
       }
 
+    static DatabaseManager createDatabaseManager(DefinedDatabase definedDatabase)
+      {
+        if (definedDatabase.useJndi())
+          return new DatabaseManager(definedDatabase.getName(), definedDatabase.getPoolSize(), definedDatabase.getUrl(), definedDatabase.getCatalogPattern(), definedDatabase.getSchemaPattern());
+        else if (definedDatabase.getUsername() == null)
+          return new DatabaseManager(definedDatabase.getName(), definedDatabase.getPoolSize(), definedDatabase.getDriver(), definedDatabase.getUrl(), definedDatabase.getCatalogPattern(), definedDatabase.getSchemaPattern());
+
+        return new DatabaseManager(definedDatabase.getName(), definedDatabase.getPoolSize(), definedDatabase.getDriver(), definedDatabase.getUrl(), definedDatabase.getCatalogPattern(), definedDatabase.getSchemaPattern(), definedDatabase.getUsername(), definedDatabase.getPassword());
+      }
+
     /**
      * Create a DatabaseManager instance using JNDI.
      * 
@@ -314,6 +417,7 @@ public final class DatabaseManager
       
         this.databaseName = databaseName;
         this.maxPoolSize = poolSize;
+        this.databasePool = new DatabasePool(this, poolSize, false);
         this.dataSource = dataSource;
         this.catalogPattern = catalogPattern;
         this.schemaPattern = schemaPattern;
@@ -337,6 +441,7 @@ public final class DatabaseManager
       
         this.databaseName = databaseName;
         this.maxPoolSize = poolSize;
+        this.databasePool = new DatabasePool(this, poolSize, false);
         this.databaseUrl = jndiUri;
         this.catalogPattern = catalogPattern;
         this.schemaPattern = schemaPattern;
@@ -364,6 +469,7 @@ public final class DatabaseManager
       
         this.databaseName = databaseName;
         this.maxPoolSize = poolSize;
+        this.databasePool = new DatabasePool(this, poolSize, false);
         this.databaseUrl = jndiUri;
         this.catalogPattern = catalogPattern;
         this.schemaPattern = schemaPattern;
@@ -391,6 +497,7 @@ public final class DatabaseManager
                                                                + ", catalogPattern = " + catalogPattern + ", schemaPattern = " + schemaPattern);
         this.databaseName = databaseName;
         this.maxPoolSize = poolSize;
+        this.databasePool = new DatabasePool(this, poolSize, true);
         this.databaseDriver = driver;
         this.databaseUrl = url;
         this.catalogPattern = catalogPattern;
@@ -419,6 +526,7 @@ public final class DatabaseManager
                                                                + ", username = " + username + ", password = " + password);
         this.databaseName = databaseName;
         this.maxPoolSize = poolSize;
+        this.databasePool = new DatabasePool(this, poolSize, true);
         this.databaseDriver = driver;
         this.databaseUrl = url;
         this.catalogPattern = catalogPattern;
@@ -435,18 +543,43 @@ public final class DatabaseManager
     
     public String getDatabaseName() { return databaseName; }
     
+    /**
+     * Returns the maximum number of pooled database handlers (connections).
+     * @return the maximum pool size
+     */
+    
+    public int getMaxPoolSize() { return maxPoolSize; }
+    
     /**
      * Closes all resources associated with the DatabaseManager.  If the DatabaseManager 
      * is managing pooled connections via JNDI, then this method does nothing.  However, 
      * if the connections are allocated by the manager (non-JNDI), they will be closed.
+     * A metadata snapshot that was preloaded is saved first (see saveMetaDataSnapshot()).
      */
     public void close() throws JPersistException
       {
         if (!isClosed)
           try
             {
-              if (getDatabase().getConnection().getMetaData().getURL().indexOf("hsql") != -1)
-                getDatabase().executeUpdate("shutdown;");
+              if (metaDataFingerprint != null)
+                saveMetaDataSnapshot();
+
+              Database db = getDatabase();
+
+              try
+                {
+                  if (db.getConnection().getMetaData().getURL().indexOf("hsql") != -1)
+                    db.executeUpdate("shutdown;");
+                }
+              finally
+                {
+                  db.close();
+                }
+
+              databasePool.close();
+
+              for (Iterator it = readReplicas.iterator(); it.hasNext();)
+                ((DatabaseManager)it.next()).close();
 
               if (connectionSourceType == CONNECTION_SOURCE_IS_DRIVER_MANAGER)
                 synchronized(connectionsList)
@@ -587,6 +720,113 @@ public final class DatabaseManager
         this.schemaPattern = schemaPattern;
       }
     
+    /**
+     * Loads the metadata for all of the tables within the catalog/schema limits
+     * (see setMetaDataLimits()) with a few bulk metadata calls, instead of each
+     * table being searched for and loaded the first time it's used.  Calling 
+     * this at startup keeps the metadata round trips off of the first requests.
+     * 
+     * <p>If a metadata snapshot is defined (see setMetaDataSnapshot()) and is 
+     * current, the metadata is loaded from it instead, otherwise the snapshot 
+     * is (re)written once the metadata is loaded.  The snapshot is saved again,
+     * with the classes resolved to tables since, by close() or saveMetaDataSnapshot().
+     * 
+     * @return the number of tables loaded
+     * 
+     * @throws JPersistException
+     */
+    
+    public int preloadMetaData() throws JPersistException
+      {
+        Database db = getDatabase();
+
+        try
+          {
+            MetaData metaData = db.getMetaData();
+
+            if (metaDataSnapshot == null)
+              return metaData.preloadTables(db.getConnection(), catalogPattern, schemaPattern);
+
+            File file = new File(metaDataSnapshot);
+            long fingerprint = MetaDataSnapshot.getFingerprint(db.getConnection(), catalogPattern, schemaPattern, metaDataFingerprintQuery);
+            int tableCount = MetaDataSnapshot.load(metaData, file, fingerprint);
+
+            metaDataFingerprint = Long.valueOf(fingerprint);
+
+            if (tableCount < 0)
+              {
+                tableCount = metaData.preloadTables(db.getConnection(), catalogPattern, schemaPattern);
+
+                MetaDataSnapshot.save(metaData, file, fingerprint);
+              }
+
+            return tableCount;
+          }
+        catch (SQLException e)
+          {
+            throw new JPersistException(e);
+          }
+        finally
+          {
+            db.close();
+          }
+      }
+    
+    /**
+     * Saves the table metadata, along with the classes resolved to tables so 
+     * far, to the metadata snapshot (see setMetaDataSnapshot()).  This is done 
+     * by close(), and can be called once the application's classes have been 
+     * used, so the next preloadMetaData() doesn't resolve them again.  The 
+     * snapshot is saved with the fingerprint the metadata was preloaded with 
+     * (so metadata from before a schema change is never saved as current).
+     * 
+     * @throws JPersistException
+     */
+    
+    public void saveMetaDataSnapshot() throws JPersistException
+      {
+        if (metaDataSnapshot == null)
+          return;
+
+        Database db = getDatabase();
+
+        try
+          {
+            Long fingerprint = metaDataFingerprint;
+
+            if (fingerprint == null)
+              fingerprint = Long.valueOf(MetaDataSnapshot.getFingerprint(db.getConnection(), catalogPattern, schemaPattern, metaDataFingerprintQuery));
+
+            MetaDataSnapshot.save(db.getMetaData(), new File(metaDataSnapshot), fingerprint.longValue());
+          }
+        catch (SQLException e)
+          {
+            throw new JPersistException(e);
+          }
+        finally
+          {
+            db.close();
+          }
+      }
+
+    /**
+     * Defines a file that the table metadata is saved to, and loaded from by 
+     * preloadMetaData() while the schema's fingerprint hasn't changed.  By 
+     * default the fingerprint is a hash of the column definitions (one 
+     * getColumns() call), which doesn't see changes to keys alone.  A 
+     * fingerprint query, such as one selecting a schema version or last DDL 
+     * time from the system catalog, can be used instead.
+     * 
+     * @param fileName the snapshot file (null to not use a snapshot)
+     * @param fingerprintQuery a query whose results change with the schema (can be null)
+     */
+    
+    public void setMetaDataSnapshot(String fileName, String fingerprintQuery)
+      {
+        this.metaDataSnapshot = fileName;
+        this.metaDataFingerprintQuery = fingerprintQuery;
+      }
+    
     /**
      * This method can be used to add global table and column mappers.
      * Objects implementing TableMapping and/or ColumnMapping override the global mappers.
@@ -598,56 +838,399 @@ public final class DatabaseManager
       {
         this.tableMapper = tableMapper;
         this.columnMapper = columnMapper;
+        idWhereClauses.clear();
+      }
+
+    /**
+     * Sets the maximum amount of time a call to getDatabase() will wait for a
+     * database to be released when all pooled databases are in use.  Once the
+     * time has elapsed a JPersistException is thrown.  The default is 30 seconds.
+     *
+     * @param milliseconds the maximum wait time in milliseconds
+     */
+    
+    public void setPoolWaitTimeout(long milliseconds)
+      {
+        databasePool.setWaitTimeout(milliseconds);
+      }
+
+    /**
+     * Sets the minimum and maximum number of idle databases (connections) the 
+     * pool will hold.  Idle databases are created immediately to satisfy the 
+     * minimum (DriverManager connections only, and without the pool, idle and 
+     * in use, exceeding its size), and databases released while the maximum 
+     * number are already idle are closed.  By default there is no minimum, and 
+     * the maximum is the pool size.
+     *
+     * @param minIdle the minimum number of idle databases to keep open
+     * @param maxIdle the maximum number of idle databases to keep open (0 for the pool size)
+     *
+     * @throws JPersistException
+     */
+    
+    public void setPoolIdleLimits(int minIdle, int maxIdle) throws JPersistException
+      {
+        databasePool.setIdleLimits(minIdle, maxIdle);
+        databasePool.fillToMinimumIdle();
+
+        if (minIdle > 0 && connectionSourceType == CONNECTION_SOURCE_IS_DRIVER_MANAGER)
+          databasePool.startHousekeeping();
+      }
+
+    /**
+     * Sets how pooled connections are validated (DriverManager connections only).  
+     * Idle connections are validated by the housekeeper and before being handed 
+     * out if they haven't been used in the last half second.  By default 
+     * Connection.isValid() is used with a five second timeout.
+     *
+     * @param testQuery a query used to validate connections (e.g. "select 1"), or null to use Connection.isValid()
+     * @param timeoutSeconds the validation timeout in seconds
+     */
+    
+    public void setConnectionValidation(String testQuery, int timeoutSeconds)
+      {
+        databasePool.setValidation(testQuery, timeoutSeconds);
+      }
+
+    /**
+     * Sets the idle timeout and maximum lifetime of pooled connections 
+     * (DriverManager connections only).  Connections idle longer than the idle 
+     * timeout are closed by the housekeeper (while keeping the minimum idle count),
+     * and connections older than the maximum lifetime (less a small random amount,
+     * so they don't all expire together) are closed and replaced.
+     *
+     * @param idleTimeout the idle timeout in milliseconds (0 for none)
+     * @param maxLifetime the maximum lifetime in milliseconds (0 for none)
+     */
+    
+    public void setConnectionLifetimes(long idleTimeout, long maxLifetime)
+      {
+        databasePool.setLifetimes(idleTimeout, maxLifetime);
+      }
+
+    /**
+     * Sets how often the housekeeper validates, evicts, retires and pre-opens 
+     * pooled connections (DriverManager connections only).  The default is 
+     * 30 seconds; zero disables the housekeeper.
+     *
+     * @param milliseconds the housekeeping interval in milliseconds
+     */
+    
+    public void setHousekeepingInterval(long milliseconds)
+      {
+        databasePool.setHousekeepingInterval(milliseconds);
       }
 
     /**
-     * Returns an instance of the defined database.
+     * Sets the number of prepared statements cached per connection (see 
+     * Database.setStatementCacheSize()).  With DriverManager connections the 
+     * cached statements survive databases being returned to the pool; with JNDI 
+     * and DataSource connections they're closed along with the connection when
+     * the database is closed.  Zero (the default) disables the cache.
+     *
+     * @param statementCacheSize the maximum number of cached statements per connection
+     */
+    
+    public void setStatementCacheSize(int statementCacheSize)
+      {
+        this.statementCacheSize = statementCacheSize;
+      }
+
+    /**
+     * Enables or disables compiled row mapping for the databases returned by
+     * getDatabase() (see Database.setCompiledRowMapping()).
+     *
+     * @param compiledRowMapping true to enable compiled row mapping
+     */
+    
+    public void setCompiledRowMapping(boolean compiledRowMapping)
+      {
+        this.compiledRowMapping = compiledRowMapping;
+      }
+
+    /**
+     * Enables or disables upsert mode for the databases returned by
+     * getDatabase() (see Database.setUpsertMode()).
+     *
+     * @param upsertMode true to enable upsert mode
+     */
+    
+    public void setUpsertMode(boolean upsertMode)
+      {
+        this.upsertMode = upsertMode;
+      }
+
+    /**
+     * Enables or disables lazy associations for the databases returned by
+     * getDatabase() (see Database.setLazyAssociations()).
+     *
+     * @param lazyAssociations true to enable lazy associations
+     */
+    
+    public void setLazyAssociations(boolean lazyAssociations)
+      {
+        this.lazyAssociations = lazyAssociations;
+      }
+
+    /**
+     * Caches objects of the class that are loaded with loadObject(id, class),
+     * loadObject(object) and loadObject(object, loadAssociations), in a second 
+     * level cache shared by all users of the DatabaseManager.  Objects expire
+     * the expiration time after they're loaded, and the least recently used 
+     * objects are dropped beyond the maximum size.  Classes can also be cached 
+     * with the Cacheable annotation or in databases.xml.
+     *
+     * <p>Objects are copied in and out of the cache, so changing (and saving) 
+     * a loaded object doesn't change the cache, though associated objects are
+     * shared (the collections holding them are copied).  Saving or
+     * deleting objects of the class (or a super/sub class) with this 
+     * DatabaseManager, or a Database from it, clears the class's cache.  Changes 
+     * made any other way (SQL statements, other applications) are only seen 
+     * once the objects expire, or after clearObjectCache().
+     *
+     * @param cs the class to cache
+     * @param expiration the time, in milliseconds, objects are cached for (0 or less for no expiration)
+     * @param maxSize the maximum number of objects cached (0 or less for no maximum)
+     */
+    
+    public void setObjectCache(Class cs, long expiration, int maxSize)
+      {
+        entityCache.defineRegion(cs.getName(), expiration, maxSize);
+      }
+
+    /**
+     * Caches objects of the class in the provided cache (see setObjectCache(cs, expiration, maxSize)).
+     *
+     * @param cs the class to cache
+     * @param objectCache the cache, or null to remove a cache set with this method
+     */
+    
+    public void setObjectCache(Class cs, ObjectCache objectCache)
+      {
+        entityCache.setCache(cs, objectCache);
+      }
+
+    /**
+     * Clears the cached objects of the class, and of its super and sub classes.
+     *
+     * @param cs the class
+     */
+    
+    public void clearObjectCache(Class cs)
+      {
+        entityCache.invalidate(cs);
+      }
+
+    /**
+     * Clears the cached objects of all classes.
+     */
+    
+    public void clearObjectCaches()
+      {
+        entityCache.invalidate(null);
+      }
+
+    /**
+     * Returns the number of loads that were satisfied by the object caches.
+     *
+     * @return the number of cache hits
+     */
+    
+    public long getObjectCacheHits() { return entityCache.getHits(); }
+
+    /**
+     * Returns the number of loads of cached classes that went to the database.
+     *
+     * @return the number of cache misses
+     */
+    
+    public long getObjectCacheMisses() { return entityCache.getMisses(); }
+
+    EntityCache getEntityCache() { return entityCache; }
+
+    /**
+     * Enables caching the results of cachedQuery(), keyed by SQL and parameters
+     * (other queries always go to the database).  The least recently 
+     * used results are dropped beyond the maximum size, which is the estimated
+     * memory used by the rows, and results expire the expiration time after 
+     * they're queried.  Results holding values that are only valid while the
+     * result set is open (LOBs, etc.) aren't cached, and neither are queries 
+     * that don't read a table, lock rows (for update) or call functions 
+     * returning a new value each time (nextval, now(), rand(), etc.).
+     *
+     * <p>Results are dropped when the tables they read (from, join) are updated
+     * with this DatabaseManager, or a Database from it (executeUpdate(), 
+     * parameterizedUpdate(), saveObject(), deleteObject(), etc.).  Changes made 
+     * any other way (other applications, or tables under a view) are only seen 
+     * once the results expire, or after clearQueryCache().
+     *
+     * @param maxBytes the maximum (estimated) size of the cached results in bytes, 0 or less disables the cache
+     * @param expiration the time, in milliseconds, results are cached for (0 or less for no expiration)
+     */
+    
+    public void setQueryCache(long maxBytes, long expiration)
+      {
+        queryCache = maxBytes > 0 ? new QueryResultCache(maxBytes, expiration) : null;
+      }
+
+    /**
+     * Drops all cached query results.
+     */
+    
+    public void clearQueryCache()
+      {
+        QueryResultCache queryCache = this.queryCache;
+
+        if (queryCache != null)
+          queryCache.invalidateTables(null);
+      }
+
+    /**
+     * Returns the number of queries that were answered from the query cache.
+     *
+     * @return the number of cache hits
+     */
+    
+    public long getQueryCacheHits() { return queryCache != null ? queryCache.getHits() : 0; }
+
+    /**
+     * Returns the number of cacheable queries that went to the database.
+     *
+     * @return the number of cache misses
+     */
+    
+    public long getQueryCacheMisses() { return queryCache != null ? queryCache.getMisses() : 0; }
+
+    QueryResultCache getQueryCache() { return queryCache; }
+
+    /**
+     * Adds a read replica.  Reads with this DatabaseManager (loadObject(), 
+     * loadObjects(), streamObjects(), loadAssociations(), executeQuery(),
+     * parameterizedQuery() and cachedQuery()) are then sent to the replica with the fewest 
+     * databases in use, except reads within TransactionManager.executeTransaction(), 
+     * and reads by a thread that wrote with this DatabaseManager within the read 
+     * after write interval (see setReadAfterWriteInterval()), which go to this
+     * (the primary) database.  Reads that will be cached (see setObjectCache() 
+     * and cachedQuery()) also go to the primary, so replication lag isn't
+     * cached.  The replica is closed with this DatabaseManager.
+     *
+     * @param replica a DatabaseManager for the replica
+     */
+    
+    public void addReadReplica(DatabaseManager replica)
+      {
+        readReplicas.add(replica);
+      }
+
+    /**
+     * Sets how long, in milliseconds, a thread's reads go to the primary after 
+     * it writes (1000 by default), so the thread sees its writes even though
+     * the replicas may lag behind.
+     *
+     * @param milliseconds the interval (0 to read from the replicas right away)
+     */
+    
+    public void setReadAfterWriteInterval(long milliseconds)
+      {
+        this.readAfterWriteInterval = milliseconds;
+      }
+
+    /**
+     * Returns a database for queries, from a read replica if there are any 
+     * (see addReadReplica()) and the thread's reads aren't pinned to the 
+     * primary, otherwise from this DatabaseManager.  If the replica fails to 
+     * provide a database, one from this DatabaseManager is returned.  Databases 
+     * from replicas must only be used for queries.
      *
      * @return an instance of Database
      * @throws JPersistException
      */
     
-    public Database getDatabase() throws JPersistException
+    public Database getReadDatabase() throws JPersistException
       {
+        if (readReplicas.isEmpty())
+          return getDatabase();
+
+        long[] routing = (long[])readRouting.get();
+
+        if (routing[0] > 0 || (routing[1] != 0 && System.nanoTime() - routing[1] < readAfterWriteInterval * 1000000L))
+          return getDatabase();
+
+        DatabaseManager replica = null;
+        int start = nextReplica.getAndIncrement() & Integer.MAX_VALUE, count = readReplicas.size();
+
+        for (int i = 0; i < count; i++)
+          {
+            DatabaseManager candidate = (DatabaseManager)readReplicas.get((start + i) % count);
+
+            if (replica == null || candidate.getDatabasesAllocated() < replica.getDatabasesAllocated())
+              replica = candidate;
+          }
+
         try
           {
-            Database db = null;
+            Database db = replica.getDatabase();
 
-            if (logger.isLoggable(Level.FINER))
-              logger.finer("Retrieving database");
-            
-            if (databaseFreePool.size() > 0)
-              {
-                db = (Database)databaseFreePool.remove(0);
+            db.setGlobalMappers(tableMapper, columnMapper);
+            db.setCompiledRowMapping(compiledRowMapping);
+            db.setLazyAssociations(lazyAssociations);
 
-                if (logger.isLoggable(Level.FINE))
-                  logger.fine("Database allocated from free pool");
-              }
-            else if (databaseFreePool.size() < maxPoolSize)
-              {
-                db = new Database(this); //, license);
-                db.setDatabaseName(databaseName);
+            return db;
+          }
+        catch (JPersistException e)
+          {
+            logger.log(Level.WARNING, "Read replica " + replica.getDatabaseName() + " failed, reading from the primary", e);
 
-                if (connectionSourceType == CONNECTION_SOURCE_IS_DRIVER_MANAGER)
-                  {
-                    Class.forName(databaseDriver);
-                    
-                    Connection connection = null;
-
-                    if (databaseUsername != null)
-                      connection = DriverManager.getConnection(databaseUrl, databaseUsername, databasePassword);
-                    else
-                      connection = DriverManager.getConnection(databaseUrl);
-                    
-                    db.setConnection(connection);
-                    connectionsList.add(connection);
-                  }
+            return getDatabase();
+          }
+      }
+
+    /* pins (or unpins) the thread's reads to the primary, pins nest */
+    void pinReadsToPrimary(boolean pin)
+      {
+        ((long[])readRouting.get())[0] += pin ? 1 : -1;
+      }
+
+    /* called by databases from this manager when they write */
+    void databaseWritten()
+      {
+        if (!readReplicas.isEmpty())
+          ((long[])readRouting.get())[1] = System.nanoTime();
+      }
+
+    /**
+     * Returns the number of databases currently allocated (in use) from the pool.
+     *
+     * @return the number of allocated databases
+     */
+    
+    public int getDatabasesAllocated() { return databasePool.getAllocatedCount(); }
+
+    /**
+     * Returns the number of idle databases currently held by the pool.
+     *
+     * @return the number of idle databases
+     */
+    
+    public int getDatabasesIdle() { return databasePool.getIdleCount(); }
 
-                if (logger.isLoggable(Level.FINE))
-                  logger.fine("Database added to pool; size is now = " + databaseFreePool.size() + ", max size = " + maxPoolSize);
-              }
-            else throw new JPersistException("Database pool is empty");
+    /**
+     * Returns an instance of the defined database.  If all pooled databases are 
+     * in use, waits (up to the pool wait timeout) for one to be released.
+     *
+     * @return an instance of Database
+     * @throws JPersistException
+     */
+    
+    public Database getDatabase() throws JPersistException
+      {
+        if (logger.isLoggable(Level.FINER))
+          logger.finer("Retrieving database");
 
+        Database db = databasePool.acquire();
+
+        try
+          {
             if (connectionSourceType != CONNECTION_SOURCE_IS_DRIVER_MANAGER)
               {
                 try
@@ -669,37 +1252,94 @@ public final class DatabaseManager
                   }
               }
 
-            if (logger.isLoggable(Level.FINE))
-              logger.fine("Databases allocated = " + ++databasesAllocated);
-
             db.initDatabase();
             db.setMetaDataLimits(catalogPattern, schemaPattern);
             db.setGlobalMappers(tableMapper, columnMapper);
+            db.setStatementCacheSize(statementCacheSize);
+            db.setCompiledRowMapping(compiledRowMapping);
+            db.setUpsertMode(upsertMode);
+            db.setLazyAssociations(lazyAssociations);
 
             return db;
           }
         catch (Exception e)
           {
+            if (connectionSourceType != CONNECTION_SOURCE_IS_DRIVER_MANAGER && db.getPooledConnection() != null)
+              {
+                db.clearStatementCache();
+
+                try { db.getPooledConnection().close(); } 
+                catch (Exception ex) 
+                  {
+                    logger.log(Level.SEVERE, ex.toString(), ex);
+                  }
+
+                db.setConnection(null);
+              }
+
+            databasePool.release(db);
+
             throw new JPersistException(e);
           }
       }
 
+    Database createDatabase() throws Exception
+      {
+        Database db = new Database(this); //, license);
+        db.setDatabaseName(databaseName);
+
+        if (connectionSourceType == CONNECTION_SOURCE_IS_DRIVER_MANAGER)
+          {
+            Class.forName(databaseDriver);
+            
+            Connection connection = null;
+
+            if (databaseUsername != null)
+              connection = DriverManager.getConnection(databaseUrl, databaseUsername, databasePassword);
+            else
+              connection = DriverManager.getConnection(databaseUrl);
+            
+            db.setConnection(connection);
+            connectionsList.add(connection);
+          }
+
+        return db;
+      }
+
+    void destroyDatabase(Database db)
+      {
+        Connection connection = db.getPooledConnection();
+
+        db.clearStatementCache();
+
+        if (connectionSourceType == CONNECTION_SOURCE_IS_DRIVER_MANAGER && connection != null)
+          {
+            connectionsList.remove(connection);
+
+            try { connection.close(); } 
+            catch (Exception e) 
+              {
+                logger.log(Level.SEVERE, e.toString(), e);
+              }
+          }
+      }
+
     void releaseDatabase(Database db)
       {
         if (connectionSourceType != CONNECTION_SOURCE_IS_DRIVER_MANAGER)
-          try { db.getConnection().close(); } 
-          catch (Exception e) 
-            {
-              logger.log(Level.SEVERE, e.toString(), e);
-            }
+          {
+            db.clearStatementCache();
 
-        databaseFreePool.add(db);
+            try { db.getPooledConnection().close(); } 
+            catch (Exception e) 
+              {
+                logger.log(Level.SEVERE, e.toString(), e);
+              }
 
-        if (logger.isLoggable(Level.FINE))
-          {
-            logger.fine("Database added back to free pool; size is now = " + databaseFreePool.size());
-            logger.fine("Databases allocated = " + --databasesAllocated);
+            db.setConnection(null);
           }
+
+        databasePool.release(db);
       }
     
     /**
@@ -1046,14 +1686,35 @@ public final class DatabaseManager
 
     public <T> T loadObject(T object, boolean loadAssociations, Set<String> nullValuesToInclude, String externalClauses, Object... externalClausesParameters) throws JPersistException
       {
-        Database db = getDatabase();
+        EntityCache.Region region = object != null && nullValuesToInclude == null && externalClauses == null ? entityCache.getRegion(object.getClass()) : null;
+        Object key = null;
+        long generation = 0;
+
+        if (region != null)
+          {
+            key = EntityCache.getExampleKey(object, loadAssociations);
+
+            if (region.get(key, object) != null)
+              return object;
+
+            generation = region.getGeneration();
+          }
+
+        Database db = region != null ? getDatabase() : getReadDatabase();
         
         try
           {
             Result<T> result = db.queryObject(object, nullValuesToInclude, externalClauses, externalClausesParameters);
             
             if (result.hasNext())
-              return result.next(object, loadAssociations);
+              {
+                object = result.next(object, loadAssociations);
+
+                if (region != null)
+                  region.put(key, object, generation);
+
+                return object;
+              }
           }
         finally
           {
@@ -1063,10 +1724,56 @@ public final class DatabaseManager
         return null;
       }
     
+    /* the where clause for loading, saving and deleting by id (see ObjectSupport.getIdWhereClause()), cached per class */
+    private String getIdWhereClause(Object object) throws JPersistException
+      {
+        String whereClause = (String)idWhereClauses.get(object.getClass());
+
+        if (whereClause == null)
+          {
+            Database db = getDatabase();
+
+            try
+              {
+                whereClause = ObjectSupport.getIdWhereClause(db, object);
+              }
+            finally
+              {
+                db.close();
+              }
+
+            idWhereClauses.put(object.getClass(), whereClause);
+          }
+
+        return whereClause;
+      }
+
+    private String getIdWhereClause(Class cs) throws JPersistException
+      {
+        String whereClause = (String)idWhereClauses.get(cs);
+
+        if (whereClause != null)
+          return whereClause;
+
+        try
+          {
+            return getIdWhereClause(cs.newInstance());
+          }
+        catch (InstantiationException e)
+          {
+            throw new JPersistException(e);
+          }
+        catch (IllegalAccessException e)
+          {
+            throw new JPersistException(e);
+          }
+      }
+
     /**
      * Builds a select query from a class that matches up to a table and id column value,
      * then loads the object (using set methods that match columns in a table matched to 
-     * the class name) with the result.
+     * the class name) with the result.  Objects of cached classes (see setObjectCache()) 
+     * are returned from the cache when they're in it.
      * 
      * @param <T>
      * @param id
@@ -1076,9 +1783,34 @@ public final class DatabaseManager
      */
     
     public <T> T loadObject(Object id, Class<T> cs) throws JPersistException
-    {
-      return loadObject(cs, cs.getSimpleName()+"id = ? ", id);
-    }
+      {
+        EntityCache.Region region = entityCache.getRegion(cs);
+
+        if (region == null)
+          return loadObject(cs, getIdWhereClause(cs), id);
+
+        Object key = EntityCache.getIdKey(id);
+        T object = (T)region.get(key, null);
+
+        if (object == null)
+          {
+            long generation = region.getGeneration();
+
+            pinReadsToPrimary(true);
+
+            try
+              {
+                if ((object = loadObject(cs, getIdWhereClause(cs), id)) != null)
+                  region.put(key, object, generation);
+              }
+            finally
+              {
+                pinReadsToPrimary(false);
+              }
+          }
+
+        return object;
+      }
 
     /**
      * Builds a select query from a class that matches up to a table, and then loads the 
@@ -1219,7 +1951,7 @@ public final class DatabaseManager
 
     public <T> T loadObject(Class<T> cs, boolean loadAssociations, String externalClauses, Object... externalClausesParameters) throws JPersistException
       {
-        Database db = getDatabase();
+        Database db = getReadDatabase();
         
         try
           {
@@ -1521,7 +2253,7 @@ public final class DatabaseManager
     
     public <T> Collection<T> loadObjects(Collection<T> collection, T object, boolean loadAssociations, Set<String> nullValuesToInclude, String externalClauses, Object... externalClausesParameters) throws JPersistException
       {
-        Database db = getDatabase();
+        Database db = getReadDatabase();
 
         try
           {
@@ -1672,7 +2404,7 @@ public final class DatabaseManager
 
     public <T> Collection<T> loadObjects(Collection<T> collection, Class<T> cs, boolean loadAssociations, String externalClauses, Object... externalClausesParameters) throws JPersistException
       {
-        Database db = getDatabase();
+        Database db = getReadDatabase();
 
         try
           {
@@ -1684,6 +2416,83 @@ public final class DatabaseManager
           }
       }
 
+    /**
+     * Builds a select query from a class that matches up to a table, and returns 
+     * a sequential stream of loaded instances (see Result.stream()).  The database 
+     * is held until the stream is closed, so the stream should be closed 
+     * (try-with-resources) once it's no longer needed.
+     * 
+     * @param cs the class to load
+     * @param externalClauses external clauses, which can begin with a where clause or any clause after the where clause.
+     * @param externalClausesParameters the parameters to use with external clauses, can be null (1.5+ can use varargs)
+     *
+     * @return a stream of loaded objects
+     *
+     * @throws JPersistException
+     */
+
+    public <T> Stream<T> streamObjects(Class<T> cs, String externalClauses, Object... externalClausesParameters) throws JPersistException
+      {
+        return streamObjects(cs, false, externalClauses, externalClausesParameters);
+      }
+
+    /**
+     * Builds a select query from a class that matches up to a table, and returns 
+     * a parallel stream of loaded instances, without associations (see 
+     * Result.parallelStream()).  The database is held until the stream is closed, 
+     * so the stream should be closed (try-with-resources) once it's no longer needed.
+     * 
+     * @param cs the class to load
+     * @param externalClauses external clauses, which can begin with a where clause or any clause after the where clause.
+     * @param externalClausesParameters the parameters to use with external clauses, can be null (1.5+ can use varargs)
+     *
+     * @return a parallel stream of loaded objects
+     *
+     * @throws JPersistException
+     */
+
+    public <T> Stream<T> parallelStreamObjects(Class<T> cs, String externalClauses, Object... externalClausesParameters) throws JPersistException
+      {
+        return streamObjects(cs, true, externalClauses, externalClausesParameters);
+      }
+
+    private <T> Stream<T> streamObjects(Class<T> cs, boolean parallel, String externalClauses, Object... externalClausesParameters) throws JPersistException
+      {
+        final Database db = getReadDatabase();
+
+        try
+          {
+            Result<T> result = db.queryObject(cs, externalClauses, externalClausesParameters);
+
+            return (parallel ? result.parallelStream() : result.stream()).onClose(new Runnable()
+              {
+                public void run()
+                  {
+                    try
+                      {
+                        db.close();
+                      }
+                    catch (JPersistException e)
+                      {
+                        throw new RuntimeException(e);
+                      }
+                  }
+              });
+          }
+        catch (JPersistException e)
+          {
+            db.close();
+
+            throw e;
+          }
+        catch (RuntimeException e)
+          {
+            db.close();
+
+            throw e;
+          }
+      }
+
     /**
      * Loads an objects associations.
      * 
@@ -1693,7 +2502,7 @@ public final class DatabaseManager
      */
     public void loadAssociations(Object object) throws JPersistException
       {
-        Database db = getDatabase();
+        Database db = getReadDatabase();
 
         try
           {
@@ -1738,7 +2547,7 @@ public final class DatabaseManager
     
     public int saveObject(Object id, Object object) throws JPersistException
     {
-      return saveObject(object, "where " +object.getClass().getSimpleName()+"id = ? ", id);
+      return saveObject(object, getIdWhereClause(object), id);
     }
     
     /**
@@ -1853,6 +2662,47 @@ public final class DatabaseManager
           }
       }
     
+    /**
+     * Saves a collection of objects in one transaction, inserting new objects 
+     * with JDBC batches (see Database.saveObjects()).
+     *
+     * <p>This method should not be used within a transaction manager.  Use TransactionManager.getDatabase() instead.
+     *
+     * <p>This is a one line convienence method for:
+     * <pre>
+     * Database db = getDatabase();
+     * 
+     * try
+     *   {
+     *     return db.saveObjects(objects);
+     *   }
+     * finally
+     *   {
+     *     db.close();
+     *   }
+     * </pre>
+     * 
+     * @param objects the objects to save
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+    
+    public int saveObjects(Collection<?> objects) throws JPersistException
+      {
+        Database db = getDatabase();
+        
+        try
+          {
+            return db.saveObjects(objects);
+          }
+        finally
+          {
+            db.close();
+          }
+      }
+    
     /**
      * Builds a delete statement from the object.  
      *
@@ -1918,8 +2768,12 @@ public final class DatabaseManager
     
 	public int deleteObject(Object id, Class objType) throws JPersistException {
 		try {
-			return deleteObject(objType.newInstance(), objType.getSimpleName() + "id = ? ", id);
-		} catch (Exception e) {
+			Object object = objType.newInstance();
+
+			return deleteObject(object, getIdWhereClause(object), id);
+		} catch (InstantiationException e) {
+			throw new JPersistException(e);
+		} catch (IllegalAccessException e) {
 			throw new JPersistException(e);
 		}
 	}
@@ -2031,20 +2885,7 @@ public final class DatabaseManager
     
     public Collection<Object[]> executeQuery(Collection<Object[]> c, boolean singleObject, String sql) throws JPersistException
       {
-        Database db = getDatabase();
-        
-        try
-          {
-            return ResultSetUtils.loadCollection(db.executeQuery(sql).getResultSet(), c, singleObject);
-          }
-        catch (Exception e)
-          {
-            throw new JPersistException(e);
-          }
-        finally
-          {
-            db.close();
-          }
+        return loadQuery(c, singleObject, false, false, sql, (Object[])null);
       }
     
     /**
@@ -2062,7 +2903,7 @@ public final class DatabaseManager
     
     public Collection<Object[]> parameterizedQuery(Collection<Object[]> c, String sql, Object... parameters) throws JPersistException
       {
-        return parameterizedQuery(c, false, sql);
+        return parameterizedQuery(c, false, sql, parameters);
       }
     
     /**
@@ -2081,11 +2922,76 @@ public final class DatabaseManager
     
     public Collection<Object[]> parameterizedQuery(Collection<Object[]> c, boolean singleObject, String sql, Object... parameters) throws JPersistException
       {
-        Database db = getDatabase();
+        return loadQuery(c, singleObject, true, false, sql, parameters);
+      }
+
+    /**
+     * Executes a parameterized query, the same as parameterizedQuery(), with 
+     * the results cached in the query cache when it's enabled (see setQueryCache()).
+     * 
+     * @param c a Collection
+     * @param sql the SQL statement
+     * @param parameters objects used to set the parameters to the query
+     *
+     * @return the Collection passed in
+     *
+     * @throws JPersistException
+     */
+    
+    public Collection<Object[]> cachedQuery(Collection<Object[]> c, String sql, Object... parameters) throws JPersistException
+      {
+        return cachedQuery(c, false, sql, parameters);
+      }
+    
+    /**
+     * Executes a parameterized query, the same as parameterizedQuery(), with 
+     * the results cached in the query cache when it's enabled (see setQueryCache()).
+     * 
+     * @param c a Collection
+     * @param singleObject use a single object instead of an array for a single column result
+     * @param sql the SQL statement
+     * @param parameters objects used to set the parameters to the query
+     *
+     * @return the Collection passed in
+     *
+     * @throws JPersistException
+     */
+    
+    public Collection<Object[]> cachedQuery(Collection<Object[]> c, boolean singleObject, String sql, Object... parameters) throws JPersistException
+      {
+        return loadQuery(c, singleObject, true, true, sql, parameters);
+      }
+
+    /* runs the query (or gets its results from the query cache when cached) and loads the rows into the collection */
+    private Collection<Object[]> loadQuery(Collection<Object[]> c, boolean singleObject, boolean parameterized, boolean cached, String sql, Object... parameters) throws JPersistException
+      {
+        QueryResultCache queryCache = cached ? this.queryCache : null;
+        Object key = queryCache != null && sql != null && QueryResultCache.isCacheable(sql) ? QueryResultCache.getKey(sql, singleObject, parameters) : null;
+        long stamp = 0;
+
+        if (key != null)
+          {
+            if (queryCache.get(key, c))
+              return c;
+
+            stamp = queryCache.getStamp();
+          }
+
+        Database db = key != null ? getDatabase() : getReadDatabase();
         
         try
           {
-            return ResultSetUtils.loadCollection(db.parameterizedQuery(sql, parameters).getResultSet(), c, singleObject);
+            Result result = parameterized ? db.parameterizedQuery(sql, parameters) : db.executeQuery(sql);
+
+            if (key == null)
+              return ResultSetUtils.loadCollection(result.getResultSet(), c, singleObject);
+
+            List rows = (List)ResultSetUtils.loadCollection(result.getResultSet(), new ArrayList(), singleObject);
+
+            queryCache.put(key, sql, rows, stamp);
+            c.addAll(rows);
+
+            return c;
           }
         catch (Exception e)
           {
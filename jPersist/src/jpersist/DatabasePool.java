@@ -0,0 +1,471 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.sql.Connection;
+import java.sql.SQLFeatureNotSupportedException;
+import java.sql.Statement;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * The pool of database handlers behind DatabaseManager.  Idle handlers are kept
+ * in a lock-free deque (most recently released first, so warm connections are
+ * reused), while a fair semaphore bounds the number of handlers in use and makes
+ * callers wait, in arrival order, for a handler to be released when the pool
+ * is exhausted.
+ * <p>
+ * When the pool owns its connections (DriverManager mode), idle connections are
+ * validated before being handed out, and a background housekeeper validates idle
+ * connections, evicts connections idle too long, retires connections past their
+ * maximum lifetime and keeps the minimum number of idle connections open.
+ */
+
+@SuppressWarnings("unchecked")
+final class DatabasePool
+  {
+    private static Logger logger = Logger.getLogger(DatabasePool.class.getName());
+
+    private DatabaseManager databaseManager;
+    private ConcurrentLinkedDeque idleDatabases = new ConcurrentLinkedDeque();
+    private AtomicInteger idleCount = new AtomicInteger(),
+                          allocatedCount = new AtomicInteger(),
+                          totalCount = new AtomicInteger();
+    private Semaphore permits;
+    private int maxPoolSize, minIdle, maxIdle;
+    private long waitTimeout = 30000;
+    private boolean managesConnections, isValidSupported = true;
+    private String testQuery;
+    private int validationTimeout = 5;
+    private long idleTimeout, maxLifetime, housekeepingInterval = 30000;
+    private ScheduledExecutorService housekeeper;
+
+    /* Connections used within this window are handed out again without validation */
+    static final long VALIDATION_BYPASS_WINDOW = 500;
+
+    /* Connections are retired up to this fraction of maxLifetime early so they don't all retire at once */
+    static final double MAX_LIFETIME_JITTER = 0.05;
+
+    DatabasePool(DatabaseManager databaseManager, int maxPoolSize, boolean managesConnections)
+      {
+        this.databaseManager = databaseManager;
+        this.managesConnections = managesConnections;
+        this.maxPoolSize = maxPoolSize > 0 ? maxPoolSize : Integer.MAX_VALUE;
+        this.maxIdle = this.maxPoolSize;
+        this.permits = new Semaphore(this.maxPoolSize, true);
+      }
+
+    int getMaxPoolSize() { return maxPoolSize; }
+
+    int getAllocatedCount() { return allocatedCount.get(); }
+
+    int getIdleCount() { return idleCount.get(); }
+
+    int getTotalCount() { return totalCount.get(); }
+
+    long getWaitTimeout() { return waitTimeout; }
+
+    void setWaitTimeout(long waitTimeout) { this.waitTimeout = waitTimeout; }
+
+    int getMinIdle() { return minIdle; }
+
+    int getMaxIdle() { return maxIdle; }
+
+    void setIdleLimits(int minIdle, int maxIdle)
+      {
+        this.maxIdle = maxIdle > 0 ? Math.min(maxIdle, maxPoolSize) : maxPoolSize;
+        this.minIdle = Math.max(0, Math.min(minIdle, this.maxIdle));
+      }
+
+    void setValidation(String testQuery, int validationTimeout)
+      {
+        this.testQuery = testQuery;
+        this.validationTimeout = Math.max(0, validationTimeout);
+      }
+
+    void setLifetimes(long idleTimeout, long maxLifetime)
+      {
+        this.idleTimeout = idleTimeout;
+        this.maxLifetime = maxLifetime;
+      }
+
+    synchronized void setHousekeepingInterval(long housekeepingInterval)
+      {
+        this.housekeepingInterval = housekeepingInterval;
+
+        if (housekeeper != null)
+          {
+            stopHousekeeping();
+            startHousekeeping();
+          }
+      }
+
+    /**
+     * Returns an idle database handler, or creates one, waiting up to the wait
+     * timeout for a handler to be released if the pool is at its maximum size.
+     */
+
+    Database acquire() throws JPersistException
+      {
+        try
+          {
+            if (!permits.tryAcquire(waitTimeout, TimeUnit.MILLISECONDS))
+              throw new JPersistException("Timed out after " + waitTimeout + "ms waiting for a database; pool size = "
+                                          + maxPoolSize + ", allocated = " + allocatedCount.get());
+          }
+        catch (InterruptedException e)
+          {
+            Thread.currentThread().interrupt();
+
+            throw new JPersistException("Interrupted while waiting for a database", e);
+          }
+
+        Database db = null;
+
+        try
+          {
+            while ((db = pollIdle()) != null && !isUsable(db, true))
+              discard(db);
+
+            if (db != null)
+              {
+                if (logger.isLoggable(Level.FINE))
+                  logger.fine("Database allocated from free pool");
+              }
+            else
+              {
+                if (managesConnections && housekeeper == null)
+                  startHousekeeping();
+
+                db = databaseManager.createDatabase();
+                totalCount.incrementAndGet();
+
+                if (logger.isLoggable(Level.FINE))
+                  logger.fine("Database added to pool; size is now = " + totalCount.get() + ", max size = " + maxPoolSize);
+              }
+          }
+        catch (Exception e)
+          {
+            permits.release();
+
+            throw new JPersistException(e);
+          }
+
+        int allocated = allocatedCount.incrementAndGet();
+
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("Databases allocated = " + allocated);
+
+        return db;
+      }
+
+    /**
+     * Returns a handler to the idle pool (or discards it when the pool already
+     * holds the maximum number of idle handlers) and wakes the next waiting caller.
+     */
+
+    void release(Database db)
+      {
+        int allocated = allocatedCount.decrementAndGet();
+        long now = System.currentTimeMillis();
+
+        db.setLastUsedTime(now);
+
+        try
+          {
+            if (idleCount.get() >= maxIdle || (managesConnections && isRetired(db, now)))
+              discard(db);
+            else
+              {
+                idleDatabases.offerFirst(db);
+                idleCount.incrementAndGet();
+              }
+          }
+        finally
+          {
+            permits.release();
+          }
+
+        if (logger.isLoggable(Level.FINE))
+          {
+            logger.fine("Database added back to free pool; size is now = " + idleCount.get());
+            logger.fine("Databases allocated = " + allocated);
+          }
+      }
+
+    /**
+     * Creates handlers until the idle pool holds at least the minimum idle count
+     * (or the pool, counting the handlers in use, reaches its maximum size).
+     * Pools of JNDI/DataSource connections aren't filled, their handlers only 
+     * get a connection when they're acquired.
+     */
+
+    void fillToMinimumIdle() throws JPersistException
+      {
+        if (!managesConnections)
+          return;
+
+        while (idleCount.get() < minIdle)
+          {
+            int total = totalCount.get();
+
+            // idle handlers don't hold permits, so the total is what bounds the pool
+            if (total >= maxPoolSize)
+              break;
+
+            if (!totalCount.compareAndSet(total, total + 1))
+              continue;
+
+            try
+              {
+                Database db = databaseManager.createDatabase();
+
+                idleDatabases.offerLast(db);
+                idleCount.incrementAndGet();
+              }
+            catch (Exception e)
+              {
+                totalCount.decrementAndGet();
+
+                throw new JPersistException(e);
+              }
+          }
+      }
+
+    /**
+     * Runs one housekeeping pass over the idle handlers: each handler is claimed 
+     * from the idle pool (so it can't be handed out while it's being checked),
+     * retired, evicted or validated, and returned to the pool if it's still good.
+     * The pool is then refilled to the minimum idle count.
+     */
+
+    void housekeep()
+      {
+        Object[] idleSnapshot = idleDatabases.toArray();
+        long now = System.currentTimeMillis();
+
+        for (int i = 0; i < idleSnapshot.length && permits.tryAcquire(); i++)
+          try
+            {
+              Database db = (Database)idleSnapshot[i];
+
+              if (!idleDatabases.removeFirstOccurrence(db))
+                continue;
+
+              idleCount.decrementAndGet();
+
+              if (isRetired(db, now))
+                {
+                  if (logger.isLoggable(Level.FINE))
+                    logger.fine("Retiring connection past its maximum lifetime");
+
+                  discard(db);
+                }
+              else if (idleTimeout > 0 && now - db.getLastUsedTime() > idleTimeout && idleCount.get() >= minIdle)
+                {
+                  if (logger.isLoggable(Level.FINE))
+                    logger.fine("Evicting connection idle for " + (now - db.getLastUsedTime()) + "ms");
+
+                  discard(db);
+                }
+              else if (!isValid(db))
+                {
+                  if (logger.isLoggable(Level.FINE))
+                    logger.fine("Evicting invalid connection");
+
+                  discard(db);
+                }
+              else
+                {
+                  idleDatabases.offerLast(db);
+                  idleCount.incrementAndGet();
+                }
+            }
+          finally
+            {
+              permits.release();
+            }
+
+        try
+          {
+            fillToMinimumIdle();
+          }
+        catch (JPersistException e)
+          {
+            logger.log(Level.WARNING, "Unable to open connections to the minimum idle count: " + e.toString(), e);
+          }
+      }
+
+    synchronized void startHousekeeping()
+      {
+        if (housekeeper == null && housekeepingInterval > 0)
+          {
+            housekeeper = Executors.newSingleThreadScheduledExecutor(new ThreadFactory()
+              {
+                public Thread newThread(Runnable runnable)
+                  {
+                    Thread thread = new Thread(runnable, "jPersist housekeeper (" + databaseManager.getDatabaseName() + ")");
+
+                    thread.setDaemon(true);
+
+                    return thread;
+                  }
+              });
+
+            housekeeper.scheduleWithFixedDelay(new Runnable()
+              {
+                public void run()
+                  {
+                    try
+                      {
+                        housekeep();
+                      }
+                    catch (Throwable t)
+                      {
+                        logger.log(Level.SEVERE, t.toString(), t);
+                      }
+                  }
+              }, housekeepingInterval, housekeepingInterval, TimeUnit.MILLISECONDS);
+          }
+      }
+
+    synchronized void stopHousekeeping()
+      {
+        if (housekeeper != null)
+          {
+            housekeeper.shutdownNow();
+            housekeeper = null;
+          }
+      }
+
+    boolean isRetired(Database db, long now)
+      {
+        return maxLifetime > 0 && now - db.getCreatedTime() > maxLifetime * (1.0 - db.getLifetimeJitter() * MAX_LIFETIME_JITTER);
+      }
+
+    boolean isUsable(Database db, boolean borrowing)
+      {
+        if (!managesConnections)
+          return true;
+
+        long now = System.currentTimeMillis();
+
+        if (isRetired(db, now))
+          return false;
+
+        if (borrowing && now - db.getLastUsedTime() < VALIDATION_BYPASS_WINDOW)
+          return true;
+
+        return isValid(db);
+      }
+
+    /**
+     * Validates a connection with the test query, if one is defined, or 
+     * Connection.isValid() (connections are considered valid if the driver 
+     * doesn't support isValid()).
+     */
+
+    boolean isValid(Database db)
+      {
+        Connection connection = db.getPooledConnection();
+
+        try
+          {
+            if (connection == null || connection.isClosed())
+              return false;
+
+            if (testQuery != null)
+              {
+                Statement statement = connection.createStatement();
+
+                try
+                  {
+                    statement.setQueryTimeout(validationTimeout);
+                    statement.execute(testQuery);
+                  }
+                finally
+                  {
+                    statement.close();
+                  }
+
+                return true;
+              }
+
+            if (isValidSupported)
+              try
+                {
+                  return connection.isValid(validationTimeout);
+                }
+              catch (SQLFeatureNotSupportedException e)
+                {
+                  isValidSupported = false;
+                }
+              catch (AbstractMethodError e)
+                {
+                  isValidSupported = false;
+                }
+
+            return true;
+          }
+        catch (Exception e)
+          {
+            if (logger.isLoggable(Level.FINE))
+              logger.fine("Connection failed validation: " + e.toString());
+
+            return false;
+          }
+      }
+
+    /**
+     * Stops housekeeping and discards all idle handlers.
+     */
+
+    void close()
+      {
+        Database db = null;
+
+        stopHousekeeping();
+
+        while ((db = pollIdle()) != null)
+          discard(db);
+      }
+
+    Database pollIdle()
+      {
+        Database db = (Database)idleDatabases.pollFirst();
+
+        if (db != null)
+          idleCount.decrementAndGet();
+
+        return db;
+      }
+
+    void discard(Database db)
+      {
+        totalCount.decrementAndGet();
+        databaseManager.destroyDatabase(db);
+
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("Database discarded from pool; size is now = " + totalCount.get());
+      }
+  }
@@ -0,0 +1,371 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.lang.reflect.Array;
+import java.lang.reflect.Field;
+import java.lang.reflect.Modifier;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jcommontk.utils.ExpiringMap;
+import jpersist.annotations.Cacheable;
+import jpersist.interfaces.LazyAssociation;
+import jpersist.interfaces.ObjectCache;
+
+/**
+ * The second level cache of a DatabaseManager.  Each cached class has its own
+ * region (and ObjectCache), with objects keyed by id (loadObject(id, class)) or
+ * by the values of the object used as the example (loadObject(object)).
+ * Objects are copied into the cache when they're loaded, and out of it with
+ * each hit, so callers can change (and save) what they get.  Collections,
+ * arrays and dates are copied as well, but not the objects in them, so 
+ * associated objects are shared with the cached object and shouldn't be 
+ * changed in place.
+ *
+ * <p>Inserting, updating or deleting objects of a class (or of a super or sub
+ * class) with a Database from the DatabaseManager clears the class's region,
+ * and again when the transaction ends.  Loads that started before a region
+ * was cleared don't cache what they loaded.
+ */
+
+@SuppressWarnings("unchecked")
+final class EntityCache
+  {
+    private static Logger logger = Logger.getLogger(EntityCache.class.getName());
+
+    private static final String ID_KEY = "id", EXAMPLE_KEY = "example";
+    private static Map classFields = new ConcurrentHashMap();
+
+    private final Region notCached = new Region(null, null);
+    private Map regions = new ConcurrentHashMap(), definedRegions = new ConcurrentHashMap();
+    private List cachedRegions = new CopyOnWriteArrayList();
+    private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+
+    /*
+     * Returns the class's region, or null if the class isn't cached.  Classes
+     * are cached if they've been defined (databases.xml or setCache()), or are
+     * annotated with Cacheable.
+     */
+    Region getRegion(Class cs)
+      {
+        Region region = (Region)regions.get(cs);
+
+        if (region == null)
+          {
+            long[] definition = (long[])definedRegions.get(cs.getName());
+            Cacheable cacheable = (Cacheable)cs.getAnnotation(Cacheable.class);
+
+            if (definition != null)
+              region = new Region(cs, new ExpiringObjectCache(definition[0], (int)definition[1]));
+            else if (cacheable != null)
+              region = new Region(cs, new ExpiringObjectCache(cacheable.expiration(), cacheable.maxSize()));
+            else
+              region = notCached;
+
+            Region existing = (Region)regions.putIfAbsent(cs, region);
+
+            if (existing != null)
+              region = existing;
+            else if (region != notCached)
+              {
+                cachedRegions.add(region);
+
+                if (logger.isLoggable(Level.FINE))
+                  logger.fine("Caching objects of class " + cs.getName());
+              }
+          }
+
+        return region != notCached ? region : null;
+      }
+
+    /* defines the default cache for the class (by name, so it can be defined before the class is loaded) */
+    void defineRegion(String className, long expiration, int maxSize)
+      {
+        definedRegions.put(className, new long[] { expiration, maxSize });
+
+        for (Iterator it = regions.keySet().iterator(); it.hasNext();)
+          {
+            Class cs = (Class)it.next();
+
+            if (cs.getName().equals(className))
+              setCache(cs, null);
+          }
+      }
+
+    /* sets the cache for the class, a null cache goes back to the defined or annotated cache, if any */
+    void setCache(Class cs, ObjectCache cache)
+      {
+        Region region = cache != null ? new Region(cs, cache) : null,
+               previous = (Region)(region != null ? regions.put(cs, region) : regions.remove(cs));
+
+        if (previous != null && previous != notCached)
+          {
+            cachedRegions.remove(previous);
+            previous.clear();
+          }
+
+        if (region != null)
+          cachedRegions.add(region);
+      }
+
+    /* clears the regions of the class and its super and sub classes (all regions if the class is null) */
+    void invalidate(Class cs)
+      {
+        for (Iterator it = cachedRegions.iterator(); it.hasNext();)
+          {
+            Region region = (Region)it.next();
+
+            if (cs == null || region.cs.isAssignableFrom(cs) || cs.isAssignableFrom(region.cs))
+              region.clear();
+          }
+      }
+
+    long getHits() { return hits.get(); }
+
+    long getMisses() { return misses.get(); }
+
+    static Object getIdKey(Object id)
+      {
+        if (id == null || id.getClass().isArray())
+          return null;
+
+        return Arrays.asList(new Object[] { ID_KEY, id });
+      }
+
+    /*
+     * Returns the key for loading with the object as the example, which is the
+     * object's field values (other than collections and maps, which hold
+     * associations), or null if the values can't be compared (arrays).
+     */
+    static Object getExampleKey(Object object, boolean loadAssociations) throws JPersistException
+      {
+        Field[] fields = getFields(object.getClass());
+        List key = new ArrayList(fields.length + 2);
+
+        key.add(EXAMPLE_KEY);
+        key.add(Boolean.valueOf(loadAssociations));
+
+        try
+          {
+            for (int i = 0; i < fields.length; i++)
+              if (fields[i].getDeclaringClass() != PersistentObject.class)
+                {
+                  Object value = fields[i].get(object);
+
+                  if (value != null && value.getClass().isArray())
+                    return null;
+
+                  key.add(value instanceof Collection || value instanceof Map ? null : copyValue(value));
+                }
+          }
+        catch (IllegalAccessException e)
+          {
+            throw new JPersistException(e);
+          }
+
+        return key;
+      }
+
+    /* copies the fields of one object to another (a new instance if null) */
+    static Object copyObject(Object from, Object to) throws JPersistException
+      {
+        try
+          {
+            if (to == null)
+              to = from.getClass().newInstance();
+
+            Field[] fields = getFields(from.getClass());
+
+            for (int i = 0; i < fields.length; i++)
+              fields[i].set(to, copyValue(fields[i].get(from)));
+
+            if (to instanceof PersistentObject)
+              ((PersistentObject)to).detachObjectState();
+
+            return to;
+          }
+        catch (Exception e)
+          {
+            throw new JPersistException(e);
+          }
+      }
+
+    /* collections (associations), arrays and dates are copied, so changing them doesn't change the cached object */
+    static Object copyValue(Object value)
+      {
+        if (value instanceof java.util.Date)
+          return ((java.util.Date)value).clone();
+        else if (value != null && value.getClass().isArray())
+          {
+            int length = Array.getLength(value);
+            Object array = Array.newInstance(value.getClass().getComponentType(), length);
+
+            System.arraycopy(value, 0, array, 0, length);
+
+            return array;
+          }
+        else if (value instanceof Collection && !(value instanceof LazyAssociation))
+          try
+            {
+              Collection collection = (Collection)value.getClass().newInstance();
+
+              collection.addAll((Collection)value);
+
+              return collection;
+            }
+          catch (Exception e) { } // shared when it can't be copied (no public constructor, etc.)
+
+        return value;
+      }
+
+    static Field[] getFields(Class cs)
+      {
+        Field[] fields = (Field[])classFields.get(cs);
+
+        if (fields == null)
+          {
+            List fieldList = new ArrayList();
+
+            for (Class c = cs; c != null && c != Object.class; c = c.getSuperclass())
+              {
+                Field[] declaredFields = c.getDeclaredFields();
+
+                for (int i = 0; i < declaredFields.length; i++)
+                  if (!Modifier.isStatic(declaredFields[i].getModifiers()))
+                    {
+                      declaredFields[i].setAccessible(true);
+                      fieldList.add(declaredFields[i]);
+                    }
+              }
+
+            fields = (Field[])fieldList.toArray(new Field[fieldList.size()]);
+            classFields.put(cs, fields);
+          }
+
+        return fields;
+      }
+
+    final class Region
+      {
+        Class cs;
+        ObjectCache cache;
+        long generation;
+
+        Region(Class cs, ObjectCache cache)
+          {
+            this.cs = cs;
+            this.cache = cache;
+          }
+
+        /* returns a copy of the cached object (copied into the object if not null), or null if it isn't cached */
+        Object get(Object key, Object object) throws JPersistException
+          {
+            Object cached = key != null ? cache.get(key) : null;
+
+            if (cached == null)
+              {
+                misses.incrementAndGet();
+
+                return null;
+              }
+
+            hits.incrementAndGet();
+
+            return copyObject(cached, object);
+          }
+
+        /* the generation changes each time the region is cleared */
+        synchronized long getGeneration() { return generation; }
+
+        /* caches a copy of the object, unless the region has been cleared since the generation was read */
+        void put(Object key, Object object, long generation) throws JPersistException
+          {
+            if (key == null || object == null)
+              return;
+
+            Object copy = copyObject(object, null);
+
+            synchronized (this)
+              {
+                if (this.generation == generation)
+                  cache.put(key, copy);
+              }
+          }
+
+        synchronized void clear()
+          {
+            generation++;
+            cache.clear();
+          }
+      }
+
+    /*
+     * The default cache, objects expire the expiration time after they were
+     * loaded (whether or not they've been accessed), and the least recently
+     * used objects are dropped beyond the maximum size.
+     */
+    static class ExpiringObjectCache implements ObjectCache
+      {
+        ExpiringMap map;
+        long expirationNanos;
+
+        ExpiringObjectCache(long expiration, int maxSize)
+          {
+            map = new ExpiringMap(expiration, maxSize);
+            expirationNanos = expiration * 1000000L;
+          }
+
+        public Object get(Object key)
+          {
+            CachedObject cachedObject = (CachedObject)map.get(key);
+
+            if (cachedObject == null || (expirationNanos > 0 && System.nanoTime() - cachedObject.time > expirationNanos))
+              return null;
+
+            return cachedObject.object;
+          }
+
+        public void put(Object key, Object object)
+          {
+            map.put(key, new CachedObject(object));
+          }
+
+        public void clear()
+          {
+            map.clear();
+          }
+      }
+
+    static class CachedObject
+      {
+        Object object;
+        long time = System.nanoTime();
+
+        CachedObject(Object object)
+          {
+            this.object = object;
+          }
+      }
+  }
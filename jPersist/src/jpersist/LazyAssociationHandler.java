@@ -0,0 +1,158 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.io.ObjectStreamException;
+import java.io.Serializable;
+import java.lang.reflect.InvocationHandler;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.lang.reflect.Proxy;
+import java.util.Collection;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.SortedSet;
+
+import jpersist.interfaces.LazyAssociation;
+
+/**
+ * The invocation handler of lazy association collections.  The proxy 
+ * implements the association's collection interface and LazyAssociation, 
+ * and holds an association object with its keys copied from the parent 
+ * (see ObjectSupport.copyAssociationIds()).  The first time the collection 
+ * is accessed, the association is queried with a database from the 
+ * DatabaseManager, and calls are delegated to the loaded collection from 
+ * then on.  The proxy serializes as the loaded collection (the association 
+ * is loaded if it hasn't been), so the DatabaseManager isn't serialized, 
+ * and toString() doesn't load the association.
+ */
+
+@SuppressWarnings("unchecked")
+final class LazyAssociationHandler implements InvocationHandler
+  {
+    private DatabaseManager databaseManager;
+    private Class collectionType;
+    private Object associationObject;
+    private volatile Collection collection;
+
+    private LazyAssociationHandler(DatabaseManager databaseManager, Class collectionType, Object associationObject)
+      {
+        this.databaseManager = databaseManager;
+        this.collectionType = collectionType;
+        this.associationObject = associationObject;
+      }
+
+    /**
+     * Returns true if the collection type can be lazily loaded.
+     */
+
+    static boolean isSupported(Class collectionType)
+      {
+        return collectionType != null && (collectionType.equals(List.class) || collectionType.equals(Queue.class)
+                                           || collectionType.equals(Set.class) || collectionType.equals(SortedSet.class));
+      }
+
+    static Collection newProxy(DatabaseManager databaseManager, Class collectionType, Object associationObject)
+      {
+        return (Collection)Proxy.newProxyInstance(LazyAssociationHandler.class.getClassLoader(), 
+                                                  new Class[] { collectionType, LazyAssociation.class, SerializableProxy.class }, 
+                                                  new LazyAssociationHandler(databaseManager, collectionType, associationObject));
+      }
+
+    public Object invoke(Object proxy, Method method, Object[] args) throws Throwable
+      {
+        if (method.getDeclaringClass().equals(LazyAssociation.class))
+          return Boolean.valueOf(collection != null);
+
+        if (method.getDeclaringClass().equals(SerializableProxy.class))
+          return getCollection();
+
+        Object unloadedAssociation = associationObject;
+
+        if (method.getName().equals("toString") && args == null && unloadedAssociation != null && collection == null)
+          return "[" + unloadedAssociation.getClass().getName() + " not loaded]";
+
+        if (method.getName().equals("equals") && args != null && args.length == 1 && proxy == args[0])
+          return Boolean.TRUE;
+
+        try
+          {
+            return method.invoke(getCollection(), args);
+          }
+        catch (InvocationTargetException e)
+          {
+            throw e.getCause();
+          }
+      }
+
+    private Collection getCollection()
+      {
+        if (collection == null)
+          synchronized (this)
+            {
+              if (collection == null)
+                {
+                  try
+                    {
+                      Database db = databaseManager.getDatabase();
+
+                      try
+                        {
+                          Collection loadedCollection = ObjectSupport.newAssociationCollection(collectionType);
+                          Result result = db.queryObject(associationObject);
+
+                          try
+                            {
+                              while (result.hasNext())
+                                loadedCollection.add(result.next());
+                            }
+                          finally
+                            {
+                              result.close();
+                            }
+
+                          collection = loadedCollection;
+                          associationObject = null;
+                        }
+                      finally
+                        {
+                          db.close();
+                        }
+                    }
+                  catch (RuntimeException e)
+                    {
+                      throw e;
+                    }
+                  catch (Exception e)
+                    {
+                      throw new RuntimeException(e);
+                    }
+                }
+            }
+
+        return collection;
+      }
+
+    /*
+     * Gives the proxy a writeReplace() (and makes it Serializable), so it's 
+     * serialized as the collection it delegates to.
+     */
+    interface SerializableProxy extends Serializable
+      {
+        Object writeReplace() throws ObjectStreamException;
+      }
+  }
@@ -23,13 +23,17 @@ import java.sql.ResultSetMetaData;
 import java.sql.SQLException;
 import java.sql.Savepoint;
 import java.sql.Statement;
+import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
 import java.util.Map;
 import java.util.Set;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -54,12 +58,20 @@ public final class MetaData
     private static ConcurrentHashMap metaDataMap = new ConcurrentHashMap();
     
     private String tableTypes[] = new String[] { "TABLE", "VIEW" }, identifierQuoteString = "", 
-                   searchStringEscape = "", databaseUrl;
+                   searchStringEscape = "", databaseUrl, databaseProductName = "";
     private ConcurrentHashMap tables = new ConcurrentHashMap(), tableCache = new ConcurrentHashMap();
     private Map tableNameMapping = Collections.synchronizedMap(new HashMap());
     private Set stripTablePrefixes, stripTableSuffixes, stripColumnPrefixes, stripColumnSuffixes;
-    private boolean supportsGeneratedKeys, supportsSavepoints, supportsBatchUpdates, strictClassTableMatching = false, strictMethodColumnMatching = true;
-    private int storesCase = 0;
+    private boolean supportsGeneratedKeys, supportsSavepoints, supportsBatchUpdates, supportsBatchGeneratedKeys, strictClassTableMatching = false, strictMethodColumnMatching = true;
+    private int storesCase = 0, upsertSyntax = UPSERT_NONE;
+    private ConcurrentHashMap sqlPlans = new ConcurrentHashMap();
+    private List preloadedPatterns = new CopyOnWriteArrayList();
+
+    /* The upsert statement supported by the database (see getUpsertSyntax()) */
+    static final int UPSERT_NONE = 0, UPSERT_ON_DUPLICATE_KEY = 1, UPSERT_ON_CONFLICT = 2, UPSERT_MERGE = 3, UPSERT_MERGE_KEY = 4;
+
+    /* The number of compiled SQL plans kept before the plan cache is cleared */
+    static final int MAX_SQL_PLANS = 4096;
 
     static MetaData getMetaData(Connection connection) throws SQLException, JPersistException
       {
@@ -153,6 +165,15 @@ public final class MetaData
             logger.finer("search string escape = " + (metaData.searchStringEscape = dbMetaData.getSearchStringEscape()));
             logger.finer("database url = " + (metaData.databaseUrl = databaseUrl));
 
+            if (dbMetaData.getDatabaseProductName() != null)
+              metaData.databaseProductName = dbMetaData.getDatabaseProductName();
+
+            metaData.upsertSyntax = getUpsertSyntax(metaData.databaseProductName);
+
+            logger.finer("upsert syntax = " + metaData.upsertSyntax);
+
+            metaData.supportsBatchGeneratedKeys = metaData.supportsGeneratedKeys && getSupportsBatchGeneratedKeys(metaData.databaseProductName);
+
             if (metaDataMap.putIfAbsent(databaseUrl, metaData) != null)
               metaData = (MetaData)metaDataMap.get(databaseUrl);
           }
@@ -160,6 +181,62 @@ public final class MetaData
         return metaData;
       }
 
+    static int getUpsertSyntax(String databaseProductName)
+      {
+        String productName = databaseProductName.toLowerCase();
+
+        if (productName.startsWith("mysql") || productName.startsWith("mariadb"))
+          return UPSERT_ON_DUPLICATE_KEY;
+        else if (productName.startsWith("postgresql") || productName.startsWith("sqlite"))
+          return UPSERT_ON_CONFLICT;
+        else if (productName.startsWith("oracle") || productName.startsWith("microsoft sql server") || productName.startsWith("hsql"))
+          return UPSERT_MERGE;
+        else if (productName.equals("h2"))
+          return UPSERT_MERGE_KEY;
+
+        return UPSERT_NONE;
+      }
+
+    /* Returns the upsert statement supported by the database (UPSERT_NONE if not supported or unknown) */
+    int getUpsertSyntax() { return upsertSyntax; }
+
+    /*
+     * Drivers known to return a generated key for every row of a batch, others 
+     * (e.g. SQL Server, Derby) return fewer or none, after the rows are inserted.
+     */
+    static boolean getSupportsBatchGeneratedKeys(String databaseProductName)
+      {
+        String productName = databaseProductName.toLowerCase();
+
+        return productName.startsWith("mysql") || productName.startsWith("mariadb") 
+                || productName.startsWith("postgresql") || productName.equals("h2");
+      }
+
+    /* Returns true if generated keys can be read for all the rows of a batch insert */
+    boolean supportsBatchGeneratedKeys() { return supportsBatchGeneratedKeys; }
+
+    /* The loaded tables, table lookups and preloaded catalog/schema patterns (see MetaDataSnapshot) */
+    ConcurrentHashMap getLoadedTables() { return tables; }
+    ConcurrentHashMap getTableCache() { return tableCache; }
+    List getPreloadedPatterns() { return preloadedPatterns; }
+
+    SqlPlan getSqlPlan(Object key) { return (SqlPlan)sqlPlans.get(key); }
+
+    void putSqlPlan(Object key, SqlPlan plan)
+      {
+        if (sqlPlans.size() >= MAX_SQL_PLANS)
+          sqlPlans.clear();
+
+        sqlPlans.put(key, plan);
+      }
+
+    /**
+     * Returns the database product name.
+     * 
+     * @return the database product name
+     */
+    public String getDatabaseProductName() { return databaseProductName; }
+
     /**
      * Returns the identifier quote string ("'", etc).
      * 
@@ -299,8 +376,15 @@ public final class MetaData
         // table already loaded
         if (table == null)
           {
-            if ((table = tableSearch(connection, tableMapper, catalogPattern, schemaPattern, tableName, object, true)) == null)
-              table = tableSearch(connection, tableMapper, catalogPattern, schemaPattern, tableName, object, false);
+            boolean preloadedOnly = isPreloaded(catalogPattern, schemaPattern);
+
+            if ((table = tableSearch(connection, tableMapper, catalogPattern, schemaPattern, tableName, object, true, preloadedOnly)) == null)
+              table = tableSearch(connection, tableMapper, catalogPattern, schemaPattern, tableName, object, false, preloadedOnly);
+
+            // not one of the preloaded tables (it may have been created since), so search the database
+            if (table == null && preloadedOnly)
+              if ((table = tableSearch(connection, tableMapper, catalogPattern, schemaPattern, tableName, object, true, false)) == null)
+                table = tableSearch(connection, tableMapper, catalogPattern, schemaPattern, tableName, object, false, false);
 
             if (!(table instanceof NullTable) && !table.isTableDetailLoaded())
               loadTableDetail(connection, columnMapper, table);
@@ -312,8 +396,11 @@ public final class MetaData
           return table;
       }
     
-    /* load all possiblities and scan for an exact match, or a single match */
-    Table tableSearch(Connection connection, TableMapping tableMapper, String catalogPattern, String schemaPattern, String tableName, Object object, boolean exactMatch) throws SQLException, JPersistException
+    /* 
+     * load all possiblities and scan for an exact match, or a single match (only 
+     * the loaded tables are scanned with preloadedOnly, and misses aren't cached)
+     */
+    Table tableSearch(Connection connection, TableMapping tableMapper, String catalogPattern, String schemaPattern, String tableName, Object object, boolean exactMatch, boolean preloadedOnly) throws SQLException, JPersistException
       {
         String searchName = normalizeName((catalogPattern != null ? catalogPattern + "." : "")
                           + (schemaPattern != null ? schemaPattern + "." : "")
@@ -344,7 +431,7 @@ public final class MetaData
               {
                 name = ((jpersist.annotations.Table)cs.getAnnotation(jpersist.annotations.Table.class)).tableName();
 
-                loadTables(connection, catalog, schema, name, exactMatch);
+                loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
                 table = tableScan(catalog, schema, name, true);
               }
           }
@@ -354,7 +441,7 @@ public final class MetaData
           {
             name = storesCase == 0 || storesCase == STORES_UPPERCASE ? name.toUpperCase() : name.toLowerCase();
             
-            loadTables(connection, catalog, schema, name, exactMatch);
+            loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
           }
         
@@ -363,21 +450,21 @@ public final class MetaData
           {
             name = storesCase == 0 || storesCase == STORES_UPPERCASE ? name.toUpperCase() : name.toLowerCase();
             
-            loadTables(connection, catalog, schema, name, exactMatch);
+            loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
           }
         
         // search and load table hints
         if (table == null && (name = (String)tableNameMapping.get(normalizeName(tableName))) != null)
           {
-            loadTables(connection, catalog, schema, name, exactMatch);
+            loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
           }
 
         // search and load for tableName
         if (table == null)
           {
-            loadTables(connection, catalogPattern, schemaPattern, name = tableName, exactMatch);
+            loadTables(connection, catalogPattern, schemaPattern, name = tableName, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
           }
         
@@ -388,7 +475,7 @@ public final class MetaData
 
             for (int i = 0; table == null && i < plurals.length; i++)
               {
-                loadTables(connection, catalog, schema, name = plurals[i], exactMatch);
+                loadTables(connection, catalog, schema, name = plurals[i], exactMatch, preloadedOnly);
                 table = tableScan(catalog, schema, name, true);
               }
           }
@@ -397,7 +484,7 @@ public final class MetaData
         if (table == null)
           {
             name = storesCase == 0 || storesCase == STORES_UPPERCASE ? tableName.toUpperCase() : tableName.toLowerCase();
-            loadTables(connection, catalog, schema, name, exactMatch);
+            loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
           }
         
@@ -405,7 +492,7 @@ public final class MetaData
         if (table == null)
           {
             name = storesCase == 0 || storesCase == STORES_UPPERCASE ? StringUtils.camelCaseToUpperCaseUnderline(tableName) : StringUtils.camelCaseToLowerCaseUnderline(tableName);
-            loadTables(connection, catalog, schema, name, exactMatch);
+            loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
           }
         
@@ -420,14 +507,14 @@ public final class MetaData
 
             // search and load for tablename
             name = storesCase == 0 || storesCase == STORES_UPPERCASE ? tableName.toLowerCase() : tableName.toUpperCase();
-            loadTables(connection, catalog, schema, name, exactMatch);
+            loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
             table = tableScan(catalog, schema, name, true);
 
             // search and load for table_name
             if (table == null)
               {
                 name = storesCase == 0 || storesCase == STORES_UPPERCASE ? StringUtils.camelCaseToLowerCaseUnderline(tableName) : StringUtils.camelCaseToUpperCaseUnderline(tableName);
-                loadTables(connection, catalog, schema, name, exactMatch);
+                loadTables(connection, catalog, schema, name, exactMatch, preloadedOnly);
                 table = tableScan(catalog, schema, name, true);
               }
           }
@@ -440,7 +527,7 @@ public final class MetaData
             if (tableCache.putIfAbsent(searchName, table) != null)
               table = (Table)tableCache.get(searchName);
           }
-        else if (!exactMatch)
+        else if (!exactMatch && !preloadedOnly)
           {
             tableCache.put(searchName, table = new NullTable());
 
@@ -451,7 +538,16 @@ public final class MetaData
         return table;
       }
 
-    int loadTables(Connection connection, String catalogPattern, String schemaPattern, String tablePattern, boolean exactMatch) throws SQLException, JPersistException
+    int loadTables(Connection connection, String catalogPattern, String schemaPattern, String tablePattern, boolean exactMatch, boolean preloadedOnly) throws SQLException, JPersistException
+      {
+        // all of the tables are already loaded
+        if (preloadedOnly && isPreloaded(catalogPattern, schemaPattern))
+          return 0;
+
+        return loadTables(connection, catalogPattern, schemaPattern, tablePattern, exactMatch, null);
+      }
+
+    int loadTables(Connection connection, String catalogPattern, String schemaPattern, String tablePattern, boolean exactMatch, Map loadedTables) throws SQLException, JPersistException
       {
         DatabaseMetaData metaData = connection.getMetaData();
         ResultSet resultSet = metaData.getTables(catalogPattern, schemaPattern, 
@@ -466,11 +562,13 @@ public final class MetaData
                                     resultSet.getString("table_schem"),
                                     resultSet.getString("table_type"));
 
-            String searchName = normalizeName((table.getCatalogName() != null ? table.getCatalogName() + "." : "")
-                              + (table.getSchemaName() != null ? table.getSchemaName() + "." : "")
-                              + table.getTableName());
+            String searchName = getTableSearchName(table.getCatalogName(), table.getSchemaName(), table.getTableName());
 
-            tables.putIfAbsent(searchName, table);
+            if (tables.putIfAbsent(searchName, table) != null)
+              table = (Table)tables.get(searchName);
+
+            if (loadedTables != null)
+              loadedTables.put(searchName, table);
 
             if (logger.isLoggable(Level.FINE))
               logger.finer("Found table: " + table);
@@ -483,6 +581,13 @@ public final class MetaData
         return tableCount;
       }
 
+    static String getTableSearchName(String catalogName, String schemaName, String tableName)
+      {
+        return normalizeName((catalogName != null ? catalogName + "." : "")
+                           + (schemaName != null ? schemaName + "." : "")
+                           + tableName);
+      }
+
     Table tableScan(String catalogName, String schemaName, String tableName, boolean strictMatch) throws JPersistException 
       {
         String searchName = normalizeName((catalogName != null ? catalogName + "." : "")
@@ -551,8 +656,23 @@ public final class MetaData
 
     void loadTableDetail(Connection connection, ColumnMapping columnMapper, Table table) throws SQLException, JPersistException
       {
-        Statement statement = connection.createStatement();
-        DatabaseMetaData metaData = connection.getMetaData();
+        Map primaryKeys = loadTableKeys(connection.getMetaData(), table), columns = new HashMap();
+        ResultSet resultSet = connection.getMetaData().getColumns(table.getCatalogName(), table.getSchemaName(), table.getTableName(), null);
+        int[] columnCount = new int[1];
+
+        while (resultSet.next())
+          addColumn(table, columns, columnCount, primaryKeys, resultSet);
+
+        table.setColumns(columns, columnCount[0]);
+
+        resultSet.close();
+
+        loadColumnDetail(connection, table);
+      }
+
+    /* loads the primary, best row, imported and exported keys, returns the primary keys */
+    Map loadTableKeys(DatabaseMetaData metaData, Table table) throws SQLException
+      {
         ResultSet resultSet = metaData.getPrimaryKeys(table.getCatalogName(), table.getSchemaName(), table.getTableName());
 
         Map primaryKeys = new HashMap();
@@ -608,30 +728,40 @@ public final class MetaData
 
         resultSet.close();
 
-        resultSet = metaData.getColumns(table.getCatalogName(), table.getSchemaName(), table.getTableName(), null);
+        return primaryKeys;
+      }
+
+    /* adds the column of the current getColumns() row, in column order */
+    void addColumn(Table table, Map columns, int[] columnCount, Map primaryKeys, ResultSet resultSet) throws SQLException
+      {
+        String columnName = resultSet.getString("COLUMN_NAME");
 
-        Map columns = new HashMap();
+        Table.Column column = table.new Column(columnName,
+                                               resultSet.getString("TYPE_NAME"),
+                                               resultSet.getInt("DATA_TYPE"),
+                                               resultSet.getInt("COLUMN_SIZE"),
+                                               resultSet.getInt("DECIMAL_DIGITS"),
+                                               resultSet.getInt("NUM_PREC_RADIX"),
+                                               resultSet.getString("IS_NULLABLE").equalsIgnoreCase("Yes") ? true : false,
+                                               primaryKeys.get(columnName) != null,
+                                               table.getBestRowIds().contains(columnName));
 
-        while (resultSet.next())
+        column.setIndex(columnCount[0]++);
+
+        try
           {
-            String columnName = resultSet.getString("COLUMN_NAME");
-
-            Table.Column column = table.new Column(columnName,
-                                                   resultSet.getString("TYPE_NAME"),
-                                                   resultSet.getInt("DATA_TYPE"),
-                                                   resultSet.getInt("COLUMN_SIZE"),
-                                                   resultSet.getInt("DECIMAL_DIGITS"),
-                                                   resultSet.getInt("NUM_PREC_RADIX"),
-                                                   resultSet.getString("IS_NULLABLE").equalsIgnoreCase("Yes") ? true : false,
-                                                   primaryKeys.get(columnName) != null,
-                                                   bestRowIds.contains(columnName));
-
-            columns.put(normalizeName(columnName), column);
+            column.setHasDefault(resultSet.getString("COLUMN_DEF") != null);
           }
+        catch (SQLException e) { } // older drivers may not provide column defaults
 
-        table.setColumns(columns);
+        columns.put(normalizeName(columnName), column);
+      }
 
-        resultSet.close();
+    /* reads the result set metadata (auto increment, searchable, ...) of the table's columns */
+    void loadColumnDetail(Connection connection, Table table) throws SQLException, JPersistException
+      {
+        Statement statement = connection.createStatement();
+        ResultSet resultSet;
 
         if ((resultSet = statement.executeQuery("select * from [" + table.getTableName() + "] where 1 = 0")) != null)
           {
@@ -660,6 +790,108 @@ public final class MetaData
         
         table.setTableDetailLoaded(true);
       }
+
+    /**
+     * Loads the metadata of every table in the catalog/schema up front, rather
+     * than table by table as objects are first used.  The tables and their 
+     * columns are read with one metadata call each; keys (which JDBC only
+     * provides per table) are read here as well.  Afterwards, looking up 
+     * tables in the catalog/schema doesn't query the database metadata, 
+     * unless the table isn't one of the preloaded tables (i.e. it was created 
+     * since), in which case it's searched for as usual.
+     * <p>
+     * Preloading still makes about 5 round trips per table: the primary key, 
+     * best row identifier, imported key and exported key calls, and a 
+     * "select * from table where 1 = 0" for the column details.
+     *
+     * @param connection JDBC connection
+     * @param catalogPattern the catalog (can be null)
+     * @param schemaPattern the schema (can be null)
+     *
+     * @return the number of tables loaded
+     *
+     * @throws java.sql.SQLException
+     * @throws jpersist.JPersistException
+     */
+    public int preloadTables(Connection connection, String catalogPattern, String schemaPattern) throws SQLException, JPersistException
+      {
+        long start = System.currentTimeMillis();
+        DatabaseMetaData metaData = connection.getMetaData();
+        Map loadedTables = new LinkedHashMap(), tableColumns = new HashMap(), tableColumnCounts = new HashMap(), tablePrimaryKeys = new HashMap();
+
+        loadTables(connection, catalogPattern, schemaPattern, "%", true, loadedTables);
+
+        // the patterns may need to be in the case the database stores
+        if (loadedTables.isEmpty() && (catalogPattern != null || schemaPattern != null))
+          {
+            if (catalogPattern != null)
+              catalogPattern = storesCase == 0 || storesCase == STORES_UPPERCASE ? catalogPattern.toUpperCase() : catalogPattern.toLowerCase();
+
+            if (schemaPattern != null)
+              schemaPattern = storesCase == 0 || storesCase == STORES_UPPERCASE ? schemaPattern.toUpperCase() : schemaPattern.toLowerCase();
+
+            loadTables(connection, catalogPattern, schemaPattern, "%", true, loadedTables);
+          }
+
+        for (Iterator it = loadedTables.entrySet().iterator(); it.hasNext();)
+          {
+            Map.Entry entry = (Map.Entry)it.next();
+            Table table = (Table)entry.getValue();
+
+            if (!table.isTableDetailLoaded())
+              {
+                tablePrimaryKeys.put(entry.getKey(), loadTableKeys(metaData, table));
+                tableColumns.put(entry.getKey(), new HashMap());
+                tableColumnCounts.put(entry.getKey(), new int[1]);
+              }
+          }
+
+        ResultSet resultSet = metaData.getColumns(catalogPattern, schemaPattern, "%", null);
+
+        while (resultSet.next())
+          {
+            String searchName = getTableSearchName(resultSet.getString("TABLE_CAT"), resultSet.getString("TABLE_SCHEM"), resultSet.getString("TABLE_NAME"));
+            Map columns = (Map)tableColumns.get(searchName);
+
+            if (columns != null)
+              addColumn((Table)loadedTables.get(searchName), columns, (int[])tableColumnCounts.get(searchName), (Map)tablePrimaryKeys.get(searchName), resultSet);
+          }
+
+        resultSet.close();
+
+        for (Iterator it = tableColumns.entrySet().iterator(); it.hasNext();)
+          {
+            Map.Entry entry = (Map.Entry)it.next();
+            Table table = (Table)loadedTables.get(entry.getKey());
+
+            table.setColumns((Map)entry.getValue(), ((int[])tableColumnCounts.get(entry.getKey()))[0]);
+
+            loadColumnDetail(connection, table);
+          }
+
+        preloadedPatterns.add(new String[] { catalogPattern, schemaPattern });
+
+        if (logger.isLoggable(Level.FINE))
+          logger.fine("Preloaded " + loadedTables.size() + " tables for catalog = " + catalogPattern + ", schema = " + schemaPattern 
+                      + " in " + (System.currentTimeMillis() - start) + "ms");
+
+        return loadedTables.size();
+      }
+
+    /* true if the tables matching the catalog/schema have all been preloaded */
+    boolean isPreloaded(String catalogPattern, String schemaPattern)
+      {
+        for (Iterator it = preloadedPatterns.iterator(); it.hasNext();)
+          {
+            String[] patterns = (String[])it.next();
+
+            if ((patterns[0] == null || patterns[0].equals("%") || patterns[0].equalsIgnoreCase(catalogPattern))
+                    && (patterns[1] == null || patterns[1].equals("%") || patterns[1].equalsIgnoreCase(schemaPattern)))
+              return true;
+          }
+
+        return false;
+      }
     
     /**
      * The main table metadata.
@@ -667,11 +899,14 @@ public final class MetaData
     public class Table
       {
         private String tableName, catalogName, schemaName, type, generatedKey;
-        private ConcurrentHashMap columnCache = new ConcurrentHashMap();
+        private ConcurrentHashMap columnCache = new ConcurrentHashMap(), 
+                                  columnBindings = new ConcurrentHashMap(), allFieldsColumnBindings = new ConcurrentHashMap();
         private Map primaryKeys, exportedKeys, importedKeys, columns, 
                     columnNameMapping = Collections.synchronizedMap(new HashMap());
         private boolean isTableDetailLoaded;
-        private Set bestRowIds;
+        private Set bestRowIds, strippedPrefixes, strippedSuffixes;
+        private Map strippedColumns;
+        private int columnCount;
 
         Table() { }
         Table(String tableName, String catalogName, String schemaName, String type)
@@ -731,9 +966,25 @@ public final class MetaData
         public String getGeneratedKey() { return generatedKey; }
         void setGeneratedKey(String generatedKey) { this.generatedKey = generatedKey; }
         
-        void setColumns(Map columns)
+        void setColumns(Map columns, int columnCount)
           {
             this.columns = columns;
+            this.columnCount = columnCount;
+          }
+
+        int getColumnCount() { return columnCount; }
+
+        Collection getColumns() { return columns.values(); }
+
+        /* the get methods of a class bound to this table's columns, resolved once per class */
+        ObjectSupport.ColumnBinding[] getColumnBindings(Class objectClass, boolean allFields)
+          {
+            return (ObjectSupport.ColumnBinding[])(allFields ? allFieldsColumnBindings : columnBindings).get(objectClass);
+          }
+
+        void putColumnBindings(Class objectClass, boolean allFields, ObjectSupport.ColumnBinding[] bindings)
+          {
+            (allFields ? allFieldsColumnBindings : columnBindings).put(objectClass, bindings);
           }
         
         /**
@@ -825,7 +1076,7 @@ public final class MetaData
          */
         public Column getColumn(ColumnMapping columnMapper, String columnName, Object object) throws JPersistException
           {
-            Column column = (Column)columnCache.get(normalizeName(columnName));
+            Column column = (Column)columnCache.get(columnName);
             
             if (column != null)
               {
@@ -838,14 +1089,43 @@ public final class MetaData
             return columnSearch(columnMapper, columnName, object);
           }
         
+        /*
+         * Returns the column whose normalized name, with the column prefixes and 
+         * suffixes stripped, is columnName.  The stripped names are indexed when 
+         * first needed, and again if the prefixes or suffixes are replaced.
+         */
+        synchronized Column getStrippedColumn(String columnName) throws JPersistException
+          {
+            if (strippedColumns == null || strippedPrefixes != stripColumnPrefixes || strippedSuffixes != stripColumnSuffixes)
+              {
+                strippedColumns = new HashMap();
+                strippedPrefixes = stripColumnPrefixes;
+                strippedSuffixes = stripColumnSuffixes;
+
+                for (Iterator it = columns.values().iterator(); it.hasNext();)
+                  {
+                    Column column = (Column)it.next();
+                    String strippedName = normalizeName(stripName(column.getColumnName(), strippedPrefixes, strippedSuffixes));
+
+                    // more than one column strips to the name, a NullColumn marks it ambiguous
+                    strippedColumns.put(strippedName, strippedColumns.containsKey(strippedName) ? new NullColumn() : column);
+                  }
+              }
+
+            Column column = (Column)strippedColumns.get(columnName);
+
+            if (column instanceof NullColumn)
+              throw new JPersistException("Scanning produces multiple possible columns for column name '" + columnName + "' found in table '" + getTableName() + "'\n"
+                                        + "To obtain an exact match you can further qualify the naming, or define prefix/suffix stripping, or column name mapping.");
+
+            return column;
+          }
+
         Column columnSearch(ColumnMapping columnMapper, String columnName, Object object) throws JPersistException
           {
             String normalizedColumnName = normalizeName(columnName), name = null;
-            Column column = (Column)columnCache.get(normalizedColumnName);
+            Column column = null;
             Method method = null;
-            
-            if (column != null)
-              return column;
 
             if (object != null)
               try
@@ -867,24 +1147,7 @@ public final class MetaData
             else column = (Column)columns.get(normalizeName(columnName));
               
             if (column == null && (stripColumnPrefixes != null || stripColumnSuffixes != null))
-              {
-                Iterator it = columns.entrySet().iterator();
-
-                while (it.hasNext())
-                  {
-                    Column itColumn = (Column)((Map.Entry)it.next()).getValue();
-                    String strippedName = normalizeName(stripName(itColumn.getColumnName(),stripColumnPrefixes,stripColumnSuffixes));
-
-                    if (columnName.equals(strippedName))
-                      {
-                        if (column == null)
-                          column = itColumn;
-                        else
-                          throw new JPersistException("Scanning produces multiple possible columns for column name '" + columnName + "' found in table '" + getTableName() + "'\n"
-                                                    + "To obtain an exact match you can further qualify the naming, or define prefix/suffix stripping, or column name mapping.");
-                      }
-                  }
-              }
+              column = getStrippedColumn(columnName);
 
             if (column == null && !strictMethodColumnMatching)
               {
@@ -908,8 +1171,8 @@ public final class MetaData
             if (column == null)
               column = new NullColumn();
             
-            if (columnCache.putIfAbsent(normalizedColumnName, column) != null)
-              column = (Column)columnCache.get(normalizedColumnName);
+            if (columnCache.putIfAbsent(columnName, column) != null)
+              column = (Column)columnCache.get(columnName);
 
             if (column instanceof NullColumn)
               {
@@ -928,8 +1191,8 @@ public final class MetaData
         public class Column
           {
             private String columnName, columnLabel, typeName, className;
-            private int dataType, columnSize, decimalDigits, radix;
-            private boolean isNullable, isPrimaryKey, isRowId, isAutoIncrement, isReadOnly, isSearchable;
+            private int dataType, columnSize, decimalDigits, radix, index;
+            private boolean isNullable, isPrimaryKey, isRowId, isAutoIncrement, isReadOnly, isSearchable, hasDefault;
 
             Column() {}
             Column(String columnName, String typeName, int dataType, int columnSize, int decimalDigits, int radix, boolean isNullable, boolean isPrimaryKey, boolean isRowId)
@@ -968,6 +1231,17 @@ public final class MetaData
             public boolean isAutoIncrement() { return isAutoIncrement; }
             public boolean isReadOnly() { return isReadOnly || isAutoIncrement; }
             public boolean isSearchable() { return isSearchable; }
+
+            /**
+             * Returns true if the column has a default value.
+             * 
+             * @return true if the column has a default value
+             */
+            public boolean hasDefault() { return hasDefault; }
+            void setHasDefault(boolean hasDefault) { this.hasDefault = hasDefault; }
+
+            int getIndex() { return index; }
+            void setIndex(int index) { this.index = index; }
           }
         
         class NullColumn extends Column { }
@@ -1042,7 +1316,26 @@ public final class MetaData
     
     static String normalizeName(String name)
       {
-        return name.replaceAll("_","").toLowerCase();
+        int length = name.length(), i = 0;
+
+        while (i < length && name.charAt(i) != '_' && !Character.isUpperCase(name.charAt(i)))
+          i++;
+
+        if (i == length)
+          return name;
+
+        char[] chars = new char[length];
+        int count = 0;
+
+        for (i = 0; i < length; i++)
+          {
+            char c = name.charAt(i);
+
+            if (c != '_')
+              chars[count++] = Character.toLowerCase(c);
+          }
+
+        return new String(chars, 0, count);
       }
   }
 
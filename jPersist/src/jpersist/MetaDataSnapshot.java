@@ -0,0 +1,417 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jcommontk.utils.ValueHasher;
+
+/**
+ * Saves the loaded table metadata (tables, columns, keys, and the table each
+ * searched for name resolved to) to a compact binary file, and loads it back
+ * in place of querying the database metadata.  A snapshot is only loaded if
+ * it was saved for the same database with the same schema fingerprint.
+ */
+
+@SuppressWarnings("unchecked")
+final class MetaDataSnapshot
+  {
+    private static Logger logger = Logger.getLogger(MetaDataSnapshot.class.getName());
+
+    static final int MAGIC = 0x4a504d53, VERSION = 1;
+
+    /*
+     * Returns a fingerprint of the schema.  With a fingerprint query (i.e. one
+     * reading a DDL timestamp or version from the system catalog) it's a hash
+     * of the query's results, otherwise a hash of every column's definition
+     * read with a single getColumns() call.
+     */
+    static long getFingerprint(Connection connection, String catalogPattern, String schemaPattern, String fingerprintQuery) throws SQLException
+      {
+        ValueHasher hasher = new ValueHasher();
+        Statement statement = null;
+        ResultSet resultSet;
+
+        if (fingerprintQuery != null)
+          resultSet = (statement = connection.createStatement()).executeQuery(fingerprintQuery);
+        else
+          resultSet = connection.getMetaData().getColumns(catalogPattern, schemaPattern, "%", null);
+
+        try
+          {
+            ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+
+            while (resultSet.next())
+              if (fingerprintQuery != null)
+                {
+                  for (int i = 1; i <= resultSetMetaData.getColumnCount(); i++)
+                    hasher.update(resultSet.getObject(i));
+                }
+              else
+                hasher.update(resultSet.getString("TABLE_CAT"))
+                      .update(resultSet.getString("TABLE_SCHEM"))
+                      .update(resultSet.getString("TABLE_NAME"))
+                      .update(resultSet.getString("COLUMN_NAME"))
+                      .update(resultSet.getInt("DATA_TYPE"))
+                      .update(resultSet.getString("TYPE_NAME"))
+                      .update(resultSet.getInt("COLUMN_SIZE"))
+                      .update(resultSet.getInt("DECIMAL_DIGITS"))
+                      .update(resultSet.getString("IS_NULLABLE"));
+          }
+        finally
+          {
+            resultSet.close();
+
+            if (statement != null)
+              statement.close();
+          }
+
+        return hasher.getValue();
+      }
+
+    /*
+     * Loads the snapshot into the metadata, returns the number of tables loaded,
+     * or -1 if there isn't a snapshot matching the database and fingerprint.
+     */
+    static int load(MetaData metaData, File file, long fingerprint)
+      {
+        if (!file.exists())
+          return -1;
+
+        DataInputStream in = null;
+
+        try
+          {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+
+            if (in.readInt() != MAGIC || in.readInt() != VERSION || !metaData.getDatabaseUrl().equals(in.readUTF()) || in.readLong() != fingerprint)
+              {
+                if (logger.isLoggable(Level.FINE))
+                  logger.fine("Metadata snapshot " + file + " is out of date");
+
+                return -1;
+              }
+
+            List patterns = new ArrayList();
+            Map tables = new HashMap();
+
+            for (int i = in.readInt(); i > 0; i--)
+              patterns.add(new String[] { readString(in), readString(in) });
+
+            for (int i = in.readInt(); i > 0; i--)
+              {
+                MetaData.Table table = readTable(metaData, in);
+
+                tables.put(MetaData.getTableSearchName(table.getCatalogName(), table.getSchemaName(), table.getTableName()), table);
+              }
+
+            Map tableCache = new HashMap();
+
+            for (int i = in.readInt(); i > 0; i--)
+              {
+                String searchName = in.readUTF(), tableSearchName = readString(in);
+
+                if (tableSearchName == null)
+                  tableCache.put(searchName, metaData.new NullTable());
+                else if (tables.get(tableSearchName) != null)
+                  tableCache.put(searchName, tables.get(tableSearchName));
+              }
+
+            // only installed once the whole snapshot has been read
+            for (Iterator it = tables.entrySet().iterator(); it.hasNext();)
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+
+                metaData.getLoadedTables().putIfAbsent(entry.getKey(), entry.getValue());
+              }
+
+            for (Iterator it = tableCache.entrySet().iterator(); it.hasNext();)
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+
+                metaData.getTableCache().putIfAbsent(entry.getKey(), entry.getValue());
+              }
+
+            metaData.getPreloadedPatterns().addAll(patterns);
+
+            if (logger.isLoggable(Level.FINE))
+              logger.fine("Loaded " + tables.size() + " tables from metadata snapshot " + file);
+
+            return tables.size();
+          }
+        catch (IOException e)
+          {
+            logger.log(Level.WARNING, "Unable to read metadata snapshot " + file + ": " + e.toString(), e);
+
+            return -1;
+          }
+        finally
+          {
+            close(in);
+          }
+      }
+
+    /*
+     * Saves the metadata's loaded tables to the file (written to a unique
+     * temporary file in the same directory first, so a snapshot being read is 
+     * never partially written, even with several processes saving it at once).
+     */
+    static void save(MetaData metaData, File file, long fingerprint)
+      {
+        File tempFile = null;
+        DataOutputStream out = null;
+
+        try
+          {
+            tempFile = File.createTempFile("." + file.getName() + "-", ".tmp", file.getAbsoluteFile().getParentFile());
+            out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(tempFile)));
+
+            out.writeInt(MAGIC);
+            out.writeInt(VERSION);
+            out.writeUTF(metaData.getDatabaseUrl());
+            out.writeLong(fingerprint);
+
+            List patterns = metaData.getPreloadedPatterns();
+
+            out.writeInt(patterns.size());
+
+            for (Iterator it = patterns.iterator(); it.hasNext();)
+              {
+                String[] pattern = (String[])it.next();
+
+                writeString(out, pattern[0]);
+                writeString(out, pattern[1]);
+              }
+
+            Set savedTables = new HashSet();
+
+            for (Iterator it = metaData.getLoadedTables().values().iterator(); it.hasNext();)
+              {
+                MetaData.Table table = (MetaData.Table)it.next();
+
+                if (table.isTableDetailLoaded())
+                  savedTables.add(table);
+              }
+
+            out.writeInt(savedTables.size());
+
+            for (Iterator it = savedTables.iterator(); it.hasNext();)
+              writeTable(out, (MetaData.Table)it.next());
+
+            Map tableCache = new HashMap();
+
+            for (Iterator it = metaData.getTableCache().entrySet().iterator(); it.hasNext();)
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+
+                if (entry.getValue() instanceof MetaData.NullTable || savedTables.contains(entry.getValue()))
+                  tableCache.put(entry.getKey(), entry.getValue());
+              }
+
+            out.writeInt(tableCache.size());
+
+            for (Iterator it = tableCache.entrySet().iterator(); it.hasNext();)
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+                MetaData.Table table = (MetaData.Table)entry.getValue();
+
+                out.writeUTF((String)entry.getKey());
+                writeString(out, table instanceof MetaData.NullTable ? null : MetaData.getTableSearchName(table.getCatalogName(), table.getSchemaName(), table.getTableName()));
+              }
+
+            out.close();
+            out = null;
+
+            if (!tempFile.renameTo(file))
+              {
+                file.delete();
+
+                if (!tempFile.renameTo(file))
+                  throw new IOException("unable to rename " + tempFile + " to " + file);
+              }
+
+            if (logger.isLoggable(Level.FINE))
+              logger.fine("Saved " + savedTables.size() + " tables to metadata snapshot " + file);
+          }
+        catch (IOException e)
+          {
+            logger.log(Level.WARNING, "Unable to write metadata snapshot " + file + ": " + e.toString(), e);
+
+            if (tempFile != null)
+              tempFile.delete();
+          }
+        finally
+          {
+            close(out);
+          }
+      }
+
+    static void writeTable(DataOutputStream out, MetaData.Table table) throws IOException
+      {
+        writeString(out, table.getTableName());
+        writeString(out, table.getCatalogName());
+        writeString(out, table.getSchemaName());
+        writeString(out, table.getType());
+        writeString(out, table.getGeneratedKey());
+
+        writeKeys(out, table.getPrimaryKeys());
+        writeKeys(out, table.getImportedKeys());
+        writeKeys(out, table.getExportedKeys());
+
+        out.writeInt(table.getBestRowIds().size());
+
+        for (Iterator it = table.getBestRowIds().iterator(); it.hasNext();)
+          writeString(out, (String)it.next());
+
+        out.writeInt(table.getColumnCount());
+        out.writeInt(table.getColumns().size());
+
+        for (Iterator it = table.getColumns().iterator(); it.hasNext();)
+          {
+            MetaData.Table.Column column = (MetaData.Table.Column)it.next();
+
+            writeString(out, column.getColumnName());
+            writeString(out, column.getTypeName());
+            out.writeInt(column.getDataType());
+            out.writeInt(column.getColumnSize());
+            out.writeInt(column.getDecimalDigits());
+            out.writeInt(column.getRadix());
+            out.writeBoolean(column.isNullable());
+            out.writeBoolean(column.isPrimaryKey());
+            out.writeBoolean(column.isRowId());
+            out.writeInt(column.getIndex());
+            out.writeBoolean(column.hasDefault());
+            writeString(out, column.getColumnLabel());
+            writeString(out, column.getClassName());
+            out.writeBoolean(column.isAutoIncrement());
+            out.writeBoolean(column.isReadOnly());
+            out.writeBoolean(column.isSearchable());
+          }
+      }
+
+    static MetaData.Table readTable(MetaData metaData, DataInputStream in) throws IOException
+      {
+        MetaData.Table table = metaData.new Table(readString(in), readString(in), readString(in), readString(in));
+
+        table.setGeneratedKey(readString(in));
+        table.setPrimaryKeys(readKeys(table, in));
+        table.setImportedKeys(readKeys(table, in));
+        table.setExportedKeys(readKeys(table, in));
+
+        Set bestRowIds = new HashSet();
+
+        for (int i = in.readInt(); i > 0; i--)
+          bestRowIds.add(readString(in));
+
+        table.setBestRowIds(bestRowIds);
+
+        int columnCount = in.readInt();
+        Map columns = new HashMap();
+
+        for (int i = in.readInt(); i > 0; i--)
+          {
+            MetaData.Table.Column column = table.new Column(readString(in), readString(in), in.readInt(), in.readInt(), in.readInt(), in.readInt(),
+                                                            in.readBoolean(), in.readBoolean(), in.readBoolean());
+
+            column.setIndex(in.readInt());
+            column.setHasDefault(in.readBoolean());
+            column.setAdditionalInfo(readString(in), readString(in), in.readBoolean(), in.readBoolean(), in.readBoolean());
+
+            columns.put(MetaData.normalizeName(column.getColumnName()), column);
+          }
+
+        table.setColumns(columns, columnCount);
+        table.setTableDetailLoaded(true);
+
+        return table;
+      }
+
+    static void writeKeys(DataOutputStream out, Map keys) throws IOException
+      {
+        out.writeInt(keys.size());
+
+        for (Iterator it = keys.entrySet().iterator(); it.hasNext();)
+          {
+            Map.Entry entry = (Map.Entry)it.next();
+            MetaData.Table.Key key = (MetaData.Table.Key)entry.getValue();
+
+            writeString(out, (String)entry.getKey());
+            writeString(out, key.getLocalColumnName());
+            writeString(out, key.getLocalTableCatalog());
+            writeString(out, key.getLocalTableSchema());
+            writeString(out, key.getLocalTableName());
+            writeString(out, key.getForeignColumnName());
+            writeString(out, key.getForeignTableCatalog());
+            writeString(out, key.getForeignTableSchema());
+            writeString(out, key.getForeignTableName());
+          }
+      }
+
+    static Map readKeys(MetaData.Table table, DataInputStream in) throws IOException
+      {
+        Map keys = new HashMap();
+
+        for (int i = in.readInt(); i > 0; i--)
+          keys.put(readString(in), table.new Key(readString(in), readString(in), readString(in), readString(in),
+                                                 readString(in), readString(in), readString(in), readString(in)));
+
+        return keys;
+      }
+
+    static void writeString(DataOutputStream out, String str) throws IOException
+      {
+        out.writeBoolean(str != null);
+
+        if (str != null)
+          out.writeUTF(str);
+      }
+
+    static String readString(DataInputStream in) throws IOException
+      {
+        return in.readBoolean() ? in.readUTF() : null;
+      }
+
+    static void close(java.io.Closeable closeable)
+      {
+        try
+          {
+            if (closeable != null)
+              closeable.close();
+          }
+        catch (IOException e) { }
+      }
+  }
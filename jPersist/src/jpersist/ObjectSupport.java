@@ -18,12 +18,18 @@ package jpersist;
 import java.lang.reflect.Array;
 import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Method;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
 import java.sql.SQLException;
+import java.sql.Statement;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
 import java.util.Collection;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.LinkedList;
 import java.util.List;
 import java.util.Map;
@@ -31,28 +37,48 @@ import java.util.Queue;
 import java.util.Set;
 import java.util.SortedSet;
 import java.util.TreeSet;
+import java.util.concurrent.ConcurrentHashMap;
 import java.util.logging.Level;
 import java.util.logging.Logger;
-import java.util.zip.CRC32;
 
+import jcommontk.object.ObjectAccessors;
 import jcommontk.object.ObjectConverter;
 import jcommontk.object.ObjectFiller;
 import jcommontk.object.ObjectFiller.GetHandler;
 import jcommontk.object.ObjectFiller.ItemNotFoundException;
 import jcommontk.utils.StringUtils;
+import jcommontk.utils.ValueHasher;
 import jpersist.annotations.ConcreteTableInheritance;
 import jpersist.annotations.GlobalDelete;
 import jpersist.annotations.GlobalUpdate;
+import jpersist.annotations.ReloadAfterSave;
 import jpersist.annotations.SingleTableInheritance;
 import jpersist.annotations.UpdateNullValues;
 import jpersist.interfaces.ColumnMapping;
 import jpersist.interfaces.GeneratedKeys;
+import jpersist.interfaces.LazyAssociation;
 
 // TODO check parent id for null value
 @SuppressWarnings("unchecked")
 final class ObjectSupport
   {
     private static Logger logger = Logger.getLogger(ObjectSupport.class.getName());
+    private static final Object NO_MATCHING_METHOD = new Object();
+
+    /* the maximum number of keys in each association query of loadAssociations(Database, List) */
+    static final int ASSOCIATION_BATCH_SIZE = 512;
+
+    /* the number of objects saveObjects() inserts per batch execution */
+    static final int SAVE_BATCH_SIZE = 1000;
+
+    /* per class, the get/set methods matched to column names by getMatchingMethod() */
+    private static ClassValue matchingMethodsCache = new ClassValue()
+      {
+        protected Object computeValue(Class c)
+          {
+            return new ConcurrentHashMap();
+          }
+      };
     
     static Result queryObject(Database db, Class cs, Object object, Set nullValuesToInclude, boolean idColumnsOnly, String externalClauses, Object[] parameters) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
       {
@@ -65,48 +91,22 @@ final class ObjectSupport
         if (cs == null && object == null)
           throw new JPersistException("object is null");
 
-        StringBuffer sqlStatement = new StringBuffer(),
-                     externalClausesStrBuf = null;
-        List values = new ArrayList();
-        
-        if (externalClauses == null || !externalClauses.startsWith("select"))
-          {
-            StringBuffer columnsStrBuf = new StringBuffer(), fromStrBuf = new StringBuffer(), whereStrBuf = new StringBuffer();
-
-            if (externalClauses != null)
-              externalClausesStrBuf = new StringBuffer(externalClauses);
-            
-            processClasses(db, cs, object, true, idColumnsOnly, false, false, nullValuesToInclude, 
-                           new QueryObjectHandler(db, fromStrBuf, columnsStrBuf, whereStrBuf, externalClausesStrBuf, values));
-              
-            sqlStatement.append("select ").append(columnsStrBuf);
-
-            if (externalClauses == null || !externalClauses.startsWith("from"))
-              {
-                sqlStatement.append(" from ").append(fromStrBuf);
+        QueryObjectHandler queryObjectHandler = new QueryObjectHandler(db);
 
-                if (whereStrBuf.length() > 0 || (externalClauses == null || !externalClauses.startsWith("where"))) {
-                      sqlStatement.append(" where ").append(whereStrBuf);
-                  }
-                else 
-                	if (idColumnsOnly)
-                  throw new JPersistException("useIdColumnsOnly is defined, but there are no Id field values available");
-              }
-          }
+        if (externalClauses == null || !externalClauses.startsWith("select"))
+          processClasses(db, cs, object, true, idColumnsOnly, false, false, nullValuesToInclude, queryObjectHandler);
 
-        if (externalClauses != null)
-          {
-            sqlStatement.append(" " + externalClausesStrBuf);
+        MetaData metaData = db.getMetaData();
+        List planKey = queryObjectHandler.getPlanKey(cs, idColumnsOnly, externalClauses, parameters);
+        SqlPlan plan = metaData.getSqlPlan(planKey);
 
-            if (parameters != null)
-              for (int i = 0; i < parameters.length; i++)
-                values.add(parameters[i]);
-          }
+        if (plan == null)
+          metaData.putSqlPlan(planKey, plan = queryObjectHandler.buildPlan(idColumnsOnly, externalClauses, parameters));
 
-        if (values.size() > 0)
-          return db.parameterizedQuery(sqlStatement.toString(), values.toArray()).setClass(cs);
+        if (plan.isParameterized())
+          return db.parameterizedQuery(plan.getSql(), plan.bind(object, queryObjectHandler.getValues(), parameters)).setClass(cs);
         else
-          return db.executeQuery(sqlStatement.toString()).setClass(cs);
+          return db.executeQuery(plan.getSql()).setClass(cs);
       }
 
     static class QueryObjectHandler implements ClassHandler
@@ -115,22 +115,118 @@ final class ObjectSupport
         StringBuffer fromStrBuf, columnsStrBuf, whereStrBuf, externalClausesStrBuf;
         String identifierQuoteString;
         Set selectSet = new HashSet(), whereSet = new HashSet();
-        Map lastTable = new HashMap();
-        List values;
+        Map lastTable = new HashMap(), values = new HashMap();
+        List processedClasses = new ArrayList();
+        SqlPlan.Binder binder;
         
-        public QueryObjectHandler(Database db, StringBuffer fromStrBuf, StringBuffer columnsStrBuf, StringBuffer whereStrBuf, StringBuffer externalClausesStrBuf, List values) throws JPersistException
+        static class ProcessedClass
+          {
+            Class objectClass;
+            Object object;
+            MetaData.Table table;
+            int numberTables;
+            char tableAlias;
+            Map valuesMap;
+            Set selectableColumns;
+          }
+
+        public QueryObjectHandler(Database db) throws JPersistException
           {
             this.db = db;
-            this.fromStrBuf = fromStrBuf;
-            this.columnsStrBuf = columnsStrBuf;
-            this.whereStrBuf = whereStrBuf;
-            this.externalClausesStrBuf = externalClausesStrBuf;
-            this.values = values;
-            
             this.identifierQuoteString = db.getMetaData().getIdentifierQuoteString();
           }
         
-        public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+        public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns)
+          {
+            ProcessedClass processedClass = new ProcessedClass();
+
+            processedClass.objectClass = objectClass;
+            processedClass.object = object;
+            processedClass.table = table;
+            processedClass.numberTables = numberTables;
+            processedClass.tableAlias = tableAlias;
+            processedClass.valuesMap = valuesMap;
+            processedClass.selectableColumns = selectableColumns;
+
+            processedClasses.add(processedClass);
+            values.putAll(valuesMap);
+          }
+
+        Map getValues() { return values; }
+
+        List getPlanKey(Class cs, boolean idColumnsOnly, String externalClauses, Object[] parameters)
+          {
+            List planKey = new ArrayList();
+
+            planKey.add("query");
+            planKey.add(cs);
+            planKey.add(Boolean.valueOf(idColumnsOnly));
+            planKey.add(externalClauses);
+            planKey.add(Boolean.valueOf(parameters != null && parameters.length > 0));
+            planKey.add(db.getColumnMapper());
+
+            for (Iterator it = processedClasses.iterator(); it.hasNext();)
+              {
+                ProcessedClass processedClass = (ProcessedClass)it.next();
+                SqlPlan.Shape shape = new SqlPlan.Shape(processedClass.table);
+
+                for (Iterator it2 = processedClass.valuesMap.entrySet().iterator(); it2.hasNext();)
+                  {
+                    Map.Entry entry = (Map.Entry)it2.next();
+                    Object obj = entry.getValue();
+
+                    shape.set((MetaData.Table.Column)entry.getKey(), obj instanceof NullValue ? 1 : hasWildCards(obj.toString()) ? 2 : 3);
+                  }
+
+                planKey.add(processedClass.table);
+                planKey.add(shape.toString());
+              }
+
+            return planKey;
+          }
+
+        SqlPlan buildPlan(boolean idColumnsOnly, String externalClauses, Object[] parameters) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            StringBuffer sqlStatement = new StringBuffer(), objectWhereStrBuf = null;
+
+            binder = new SqlPlan.Binder();
+            
+            if (externalClauses == null || !externalClauses.startsWith("select"))
+              {
+                columnsStrBuf = new StringBuffer();
+                fromStrBuf = new StringBuffer();
+                whereStrBuf = new StringBuffer();
+
+                if (externalClauses != null)
+                  externalClausesStrBuf = new StringBuffer(externalClauses);
+                
+                for (Iterator it = processedClasses.iterator(); it.hasNext();)
+                  {
+                    ProcessedClass processedClass = (ProcessedClass)it.next();
+
+                    buildClass(processedClass.objectClass, processedClass.object, processedClass.table, processedClass.numberTables, 
+                               processedClass.tableAlias, processedClass.valuesMap, processedClass.selectableColumns);
+                  }
+                  
+                sqlStatement.append("select ").append(columnsStrBuf);
+
+                if (externalClauses == null || !externalClauses.startsWith("from"))
+                  {
+                    sqlStatement.append(" from ").append(fromStrBuf);
+
+                    if (whereStrBuf.length() == 0 && idColumnsOnly)
+                      throw new JPersistException("useIdColumnsOnly is defined, but there are no Id field values available");
+
+                    objectWhereStrBuf = whereStrBuf;
+                  }
+              }
+
+            appendWhereClauses(sqlStatement, objectWhereStrBuf, externalClauses != null && externalClausesStrBuf != null ? externalClausesStrBuf.toString() : externalClauses);
+
+            return new SqlPlan(sqlStatement.toString(), binder, parameters != null && parameters.length > 0);
+          }
+
+        void buildClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
           {
             fromStrBuf.append((fromStrBuf.length() > 0 ? ", " : "") + identifierQuoteString + table.getTableName() + identifierQuoteString);
 
@@ -191,7 +287,7 @@ final class ObjectSupport
                       whereStrBuf.append(identifierQuoteString + column.getColumnName() + identifierQuoteString +  " is null");
                     else
                       {
-                        values.add(obj);
+                        binder.add(column, SqlPlan.OBJECT_VALUE);
 
                         whereStrBuf.append(identifierQuoteString + column.getColumnName() + identifierQuoteString + (hasWildCards(obj.toString()) ? " like ?" : " = ?"));
                       }
@@ -241,12 +337,21 @@ final class ObjectSupport
         if (object instanceof PersistentObject)
           ((PersistentObject)object).makeObjectTransient();
         
-        LoadClassHandler classHandler = new LoadClassHandler(result, object);
-        
-        processClasses(result.getDatabase(), object.getClass(), object, false, false, false, false, null, classHandler);
+        RowMapper rowMapper = result.getDatabase().getCompiledRowMapping() ? result.getRowMapper(object) : null;
+        boolean hasTableInformation = true;
+
+        if (rowMapper != null)
+          rowMapper.mapRow(result, object);
+        else
+          {
+            LoadClassHandler classHandler = new LoadClassHandler(result, object);
+
+            processClasses(result.getDatabase(), object.getClass(), object, false, false, false, false, null, classHandler);
+            hasTableInformation = classHandler.getHasTableInformation();
+          }
 
-        if (object instanceof PersistentObject && classHandler.getHasTableInformation())
-          ((PersistentObject)object).setObjectChecksum(calculateChecksum(result.getDatabase(), object));
+        if (object instanceof PersistentObject && hasTableInformation)
+          snapshotObject(result.getDatabase(), (PersistentObject)object);
 
         if (loadAssociations && (!(object instanceof PersistentObject) || !((PersistentObject)object).getIgnoreAssociations()))
           loadAssociations(result.getDatabase(), object);
@@ -254,6 +359,24 @@ final class ObjectSupport
         return object;
       }
 
+    /*
+     * Loads an object with a row read by RowMapper.readRow(), which can be done 
+     * without the connection (associations aren't loaded).  Persistent objects
+     * are snapshot with classTables, found with getClassTables() beforehand.
+     */
+    static Object loadObject(ClassTables classTables, Object object, RowMapper rowMapper, Object[] row) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        if (object instanceof PersistentObject)
+          ((PersistentObject)object).makeObjectTransient();
+
+        rowMapper.mapRow(row, object);
+
+        if (object instanceof PersistentObject)
+          snapshotObject(classTables, (PersistentObject)object);
+
+        return object;
+      }
+
     static class LoadClassHandler implements ClassHandler
       {
         Result result;
@@ -401,82 +524,297 @@ final class ObjectSupport
     
     static void loadAssociations(Database db, Object object) throws JPersistException, SQLException, InstantiationException, IllegalAccessException, InvocationTargetException
       {
-        Class objectClass = object.getClass();
-        Method objectMethods[] = objectClass.getMethods();
+        List objects = new ArrayList(1);
+
+        objects.add(object);
 
-        for (int i = 0; i < objectMethods.length; i++)
+        loadAssociations(db, objects);
+      }
+
+    /*
+     * Loads the associations of a list of objects.  Associations related by a 
+     * single key column are loaded for all of the objects at once, with "in (...)" 
+     * queries of up to ASSOCIATION_BATCH_SIZE keys, and then the associated 
+     * objects' associations are loaded the same way.  Associations related by 
+     * composite keys are loaded one object at a time.
+     */
+    static void loadAssociations(Database db, List objects) throws JPersistException, SQLException, InstantiationException, IllegalAccessException, InvocationTargetException
+      {
+        Map classObjects = new LinkedHashMap();
+
+        for (int i = 0; i < objects.size(); i++)
+          {
+            Object object = objects.get(i);
+            List list = (List)classObjects.get(object.getClass());
+
+            if (list == null)
+              classObjects.put(object.getClass(), list = new ArrayList());
+
+            list.add(object);
+          }
+
+        for (Iterator it = classObjects.entrySet().iterator(); it.hasNext();)
           {
-            if (objectMethods[i].getName().equals("setDbAssociation"))
+            Map.Entry entry = (Map.Entry)it.next();
+            Method objectMethods[] = ObjectAccessors.getAccessors((Class)entry.getKey()).getMethods("setDbAssociation");
+
+            for (int i = 0; i < objectMethods.length; i++)
               {
                 Class objectClass2 = objectMethods[i].getParameterTypes()[0], 
-                      c2Type = objectClass2.isArray() ? objectClass2.getComponentType() : objectClass2, 
-                      collectionType = null;
-                
-                if (!(object instanceof PersistentObject) || !((PersistentObject)object).classInIgnoreAssociation(c2Type))
+                      c2Type = objectClass2.isArray() ? objectClass2.getComponentType() : objectClass2;
+                List parents = new ArrayList();
+
+                for (Iterator it2 = ((List)entry.getValue()).iterator(); it2.hasNext();)
                   {
-                    if (objectMethods[i].getParameterTypes().length == 2)
-                      collectionType = objectMethods[i].getParameterTypes()[1];
+                    Object object = it2.next();
+
+                    if (!(object instanceof PersistentObject) || !((PersistentObject)object).classInIgnoreAssociation(c2Type))
+                      parents.add(object);
+                  }
+
+                Class collectionType = objectMethods[i].getParameterTypes().length == 2 ? objectMethods[i].getParameterTypes()[1] : null;
 
+                if (parents.size() > 0 && db.getLazyAssociations() && db.getDatabaseManager() != null && LazyAssociationHandler.isSupported(collectionType))
+                  {
+                    for (int i2 = 0; i2 < parents.size(); i2++)
+                      {
+                        Object associationObject = c2Type.newInstance();
+
+                        copyAssociationIds(db, parents.get(i2), associationObject);
+
+                        objectMethods[i].invoke(parents.get(i2), new Object[] { null, LazyAssociationHandler.newProxy(db.getDatabaseManager(), collectionType, associationObject) });
+                      }
+                  }
+                else if (parents.size() > 0)
+                  {
                     Object associationObject = c2Type.newInstance();
+                    Set keys = getMatchingImportedExportedKeys(getImportedExportedKeys(db, parents.get(0), true), 
+                                                               getImportedExportedKeys(db, associationObject, false));
+                    ColumnMapping columnMapper = db.getColumnMapper();
+                    MetaData.Table.Key key = keys.size() == 1 ? (MetaData.Table.Key)keys.iterator().next() : null;
+
+                    if (key != null && getMatchingMethod(columnMapper, key.getLocalColumnName(), associationObject, false) != null
+                                    && getMatchingMethod(columnMapper, key.getLocalColumnName(), associationObject, true) != null)
+                      loadAssociation(db, parents, objectMethods[i], key);
+                    else
+                      for (int i2 = 0; i2 < parents.size(); i2++)
+                        loadAssociation(db, parents.get(i2), objectMethods[i]);
+                  }
+              }
+          }
+      }
 
-                    copyAssociationIds(db, object, associationObject);
+    static void loadAssociation(Database db, List objects, Method objectMethod, MetaData.Table.Key key) throws JPersistException, SQLException, InstantiationException, IllegalAccessException, InvocationTargetException
+      {
+        Class objectClass2 = objectMethod.getParameterTypes()[0], 
+              c2Type = objectClass2.isArray() ? objectClass2.getComponentType() : objectClass2,
+              collectionType = objectMethod.getParameterTypes().length == 2 ? objectMethod.getParameterTypes()[1] : null;
+        ColumnMapping columnMapper = db.getColumnMapper();
+        Object associationObject = c2Type.newInstance();
+        Method setMethod = getMatchingMethod(columnMapper, key.getLocalColumnName(), associationObject, false),
+               associationGetMethod = getMatchingMethod(columnMapper, key.getLocalColumnName(), associationObject, true);
+        Class keyType = setMethod.getParameterTypes()[0];
+        Map objectsByKey = new LinkedHashMap(), associationsByKey = new HashMap();
+        List associations = new ArrayList();
+
+        // the key values are converted as copyAssociationIds() converts them
+        for (int i = 0; i < objects.size(); i++)
+          {
+            Object object = objects.get(i);
+            Method getMethod = getMatchingMethod(columnMapper, key.getForeignColumnName(), object, true);
 
-                    Result result2 = db.queryObject(associationObject);
+            if (getMethod == null)
+              throw new JPersistException("Could not locate method for column " + key.getForeignColumnName());
 
-                    try
-                      {
-                        if (collectionType == null)
-                          {
-                            if (!objectClass2.isArray() && result2.hasNext())
-                              {
-                                Object obj = result2.next();
+            Object keyValue = ObjectConverter.convertObject(keyType, getMethod.invoke(object, (Object[])null));
 
-                                if (obj != null)
-                                  objectMethods[i].invoke(object, new Object[] { obj });
-                              }
-                            else
-                              {
-                                List tmp = new ArrayList();
+            if (keyValue == null)
+              throw new JPersistException("Could not match primary/foreign keys association relation represented by " + object.getClass().getName());
 
-                                while (result2.hasNext())
-                                  tmp.add(result2.next());
+            List list = (List)objectsByKey.get(keyValue);
 
-                                if (tmp.size() > 0)
-                                  objectMethods[i].invoke(object, new Object[] { tmp.toArray((Object[])Array.newInstance(c2Type,tmp.size())) });
-                              }
-                          }
-                        else
-                          {
-                            Collection collection = null;
-                            
-                            if (collectionType.isInterface())
-                              {
-                                if (collectionType.equals(List.class))
-                                  collection = new ArrayList();
-                                else if (collectionType.equals(Queue.class))
-                                  collection = new LinkedList();
-                                else if (collectionType.equals(Set.class))
-                                  collection = new HashSet();
-                                else if (collectionType.equals(SortedSet.class))
-                                  collection = new TreeSet();
-                                else throw new InstantiationException("Association collection must be a List, Queue, Set, SortedSet or a class that implements Collection.");
-                              }
-                            else collection = (Collection)collectionType.newInstance();
+            if (list == null)
+              objectsByKey.put(keyValue, list = new ArrayList());
 
-                            while (result2.hasNext())
-                              collection.add(result2.next());
+            list.add(object);
+          }
 
-                            if (collection.size() > 0)
-                              objectMethods[i].invoke(object, new Object[] { null, collection });
-                          }
-                      }
-                    finally
+        List keyValues = new ArrayList(objectsByKey.keySet());
+
+        for (int i = 0; i < keyValues.size(); i += ASSOCIATION_BATCH_SIZE)
+          {
+            List batch = keyValues.subList(i, Math.min(i + ASSOCIATION_BATCH_SIZE, keyValues.size()));
+            StringBuffer externalClauses = new StringBuffer("where :" + key.getLocalColumnName() + " in (");
+            int size = 1;
+
+            // padded (with the last key) to a power of two, to limit the number of distinct statements
+            while (size < batch.size())
+              size <<= 1;
+
+            Object[] parameters = new Object[Math.min(size, ASSOCIATION_BATCH_SIZE)];
+
+            for (int i2 = 0; i2 < parameters.length; i2++)
+              {
+                externalClauses.append(i2 > 0 ? ", ?" : "?");
+                parameters[i2] = batch.get(Math.min(i2, batch.size() - 1));
+              }
+
+            externalClauses.append(")");
+
+            Result result = db.queryObject(c2Type, externalClauses.toString(), parameters);
+
+            try
+              {
+                while (result.hasNext())
+                  {
+                    Object association = result.next(c2Type.newInstance(), false);
+                    Object keyValue = ObjectConverter.convertObject(keyType, associationGetMethod.invoke(association, (Object[])null));
+                    List list = (List)associationsByKey.get(keyValue);
+
+                    if (list == null)
+                      associationsByKey.put(keyValue, list = new ArrayList());
+
+                    list.add(association);
+                    associations.add(association);
+                  }
+              }
+            finally
+              {
+                result.close();
+              }
+          }
+
+        for (Iterator it = objectsByKey.entrySet().iterator(); it.hasNext();)
+          {
+            Map.Entry entry = (Map.Entry)it.next();
+            List list = (List)associationsByKey.get(entry.getKey());
+
+            if (list != null)
+              {
+                boolean copy = false;
+
+                for (Iterator it2 = ((List)entry.getValue()).iterator(); it2.hasNext(); copy = true)
+                  {
+                    List parentAssociations = list;
+
+                    // parents sharing a key each get their own association objects, so changing one parent's doesn't change another's
+                    if (copy)
                       {
-                        result2.close();
+                        parentAssociations = new ArrayList(list.size());
+
+                        for (int i = 0; i < list.size(); i++)
+                          {
+                            Object association = EntityCache.copyObject(list.get(i), null);
+
+                            parentAssociations.add(association);
+                            associations.add(association);
+                          }
                       }
+
+                    setAssociation(it2.next(), objectMethod, objectClass2, c2Type, collectionType, parentAssociations);
                   }
               }
           }
+
+        List associationsToLoad = new ArrayList();
+
+        for (int i = 0; i < associations.size(); i++)
+          if (!(associations.get(i) instanceof PersistentObject) || !((PersistentObject)associations.get(i)).getIgnoreAssociations())
+            associationsToLoad.add(associations.get(i));
+
+        if (associationsToLoad.size() > 0)
+          loadAssociations(db, associationsToLoad);
+      }
+
+    static void setAssociation(Object object, Method objectMethod, Class objectClass2, Class c2Type, Class collectionType, List associations) throws InstantiationException, IllegalAccessException, InvocationTargetException
+      {
+        if (collectionType == null)
+          {
+            if (!objectClass2.isArray())
+              objectMethod.invoke(object, new Object[] { associations.get(0) });
+            else
+              objectMethod.invoke(object, new Object[] { associations.toArray((Object[])Array.newInstance(c2Type, associations.size())) });
+          }
+        else
+          {
+            Collection collection = newAssociationCollection(collectionType);
+
+            collection.addAll(associations);
+
+            objectMethod.invoke(object, new Object[] { null, collection });
+          }
+      }
+
+    static Collection newAssociationCollection(Class collectionType) throws InstantiationException, IllegalAccessException
+      {
+        if (collectionType.isInterface())
+          {
+            if (collectionType.equals(List.class))
+              return new ArrayList();
+            else if (collectionType.equals(Queue.class))
+              return new LinkedList();
+            else if (collectionType.equals(Set.class))
+              return new HashSet();
+            else if (collectionType.equals(SortedSet.class))
+              return new TreeSet();
+            else throw new InstantiationException("Association collection must be a List, Queue, Set, SortedSet or a class that implements Collection.");
+          }
+
+        return (Collection)collectionType.newInstance();
+      }
+
+    static void loadAssociation(Database db, Object object, Method objectMethod) throws JPersistException, SQLException, InstantiationException, IllegalAccessException, InvocationTargetException
+      {
+        Class objectClass2 = objectMethod.getParameterTypes()[0], 
+              c2Type = objectClass2.isArray() ? objectClass2.getComponentType() : objectClass2, 
+              collectionType = null;
+            
+        if (objectMethod.getParameterTypes().length == 2)
+          collectionType = objectMethod.getParameterTypes()[1];
+
+        Object associationObject = c2Type.newInstance();
+
+        copyAssociationIds(db, object, associationObject);
+
+        Result result2 = db.queryObject(associationObject);
+
+        try
+          {
+            if (collectionType == null)
+              {
+                if (!objectClass2.isArray() && result2.hasNext())
+                  {
+                    Object obj = result2.next();
+
+                    if (obj != null)
+                      objectMethod.invoke(object, new Object[] { obj });
+                  }
+                else
+                  {
+                    List tmp = new ArrayList();
+
+                    while (result2.hasNext())
+                      tmp.add(result2.next());
+
+                    if (tmp.size() > 0)
+                      objectMethod.invoke(object, new Object[] { tmp.toArray((Object[])Array.newInstance(c2Type,tmp.size())) });
+                  }
+              }
+            else
+              {
+                Collection collection = newAssociationCollection(collectionType);
+
+                while (result2.hasNext())
+                  collection.add(result2.next());
+
+                if (collection.size() > 0)
+                  objectMethod.invoke(object, new Object[] { null, collection });
+              }
+          }
+        finally
+          {
+            result2.close();
+          }
       }
 
     static int objectTransaction(Database db, Object object, Set nullValuesToInclude, boolean isInsertUpdate, String externalClauses, Object[] parameters) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException, InstantiationException
@@ -519,38 +857,122 @@ final class ObjectSupport
                 db.setAutoCommit(true);
               }
             
-            if (!rollback && isInsertUpdate && object instanceof PersistentObject && ((PersistentObject)object).getReloadAfterSave())
+            if (!rollback && isInsertUpdate)
+              reloadObject(db, object);
+          }
+        
+        return returnValue;
+      }
+
+    /*
+     * Reloads a persistent object following a save, if the save left values in 
+     * the database the object doesn't have (see setInsertedKeyValues()), or the 
+     * class is annotated with ReloadAfterSave.
+     */
+    static void reloadObject(Database db, Object object) throws JPersistException
+      {
+        if (object instanceof PersistentObject && ((PersistentObject)object).getReloadAfterSave()
+              && (((PersistentObject)object).getObjectReloadNeeded() || object.getClass().isAnnotationPresent(ReloadAfterSave.class)))
+          {
+            try
               {
+                Result result = queryObject(db, object.getClass(), object, null, true, null, (Object[])null);
+
                 try
                   {
-                    Result result = queryObject(db, object.getClass(), object, null, true, null, (Object[])null);
-
-                    try
-                      {
-                        if (result.hasNext())
-                          result.next(object);
-                      }
-                    finally
-                      {
-                        result.close();
-                      }
+                    if (result.hasNext())
+                      result.next(object);
                   }
-                catch (Exception e)
+                finally
                   {
-                    String message = "Could not reload object following save.  Can not make this object persistent.";
+                    result.close();
+                  }
+              }
+            catch (Exception e)
+              {
+                String message = "Could not reload object following save.  Can not make this object persistent.";
 
-                    if (e.getMessage() != null && e.getMessage().startsWith("useIdColumnsOnly")
-                          && !db.getMetaData().supportsGeneratedKeys())
-                      {
-                        message += "\nYour database reports that it does not support retrieving auto-generated keys."
-                                 + "\nTherefore, you can't make objects relying on auto-generated keys persistent following an insert."
-                                 + "\nIn this case, only loaded objects can be persistent.  You can either implement GeneratedKeys or set "
-                                 + "PersistentObject.setReloadAfterSave(false)";
-                      }
+                if (e.getMessage() != null && e.getMessage().startsWith("useIdColumnsOnly")
+                      && !db.getMetaData().supportsGeneratedKeys())
+                  {
+                    message += "\nYour database reports that it does not support retrieving auto-generated keys."
+                             + "\nTherefore, you can't make objects relying on auto-generated keys persistent following an insert."
+                             + "\nIn this case, only loaded objects can be persistent.  You can either implement GeneratedKeys or set "
+                             + "PersistentObject.setReloadAfterSave(false)";
+                  }
+
+                throw new JPersistException(message, e);
+              }
+          }
+      }
+
+    /*
+     * Saves a collection of objects in one transaction.  Objects that would be 
+     * inserted are grouped by their insert statements and inserted with JDBC 
+     * batches (generated keys are read back from the batch), other objects are 
+     * saved with saveObject().  Batches are executed (in the order each statement 
+     * was first seen) before any object that can't be batched is saved, and every 
+     * SAVE_BATCH_SIZE rows, so rows are never inserted ahead of objects earlier 
+     * in the collection that can't be batched.
+     */
+    static int saveObjects(Database db, Collection objects) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException, InstantiationException
+      {
+        if (objects == null)
+          throw new JPersistException("objects is null");
+
+        int returnValue = 0;
+        boolean commit = false, rollback = false;
+
+        if (db.getAutoCommit())
+          {
+            db.setAutoCommit(false);
+            commit = true;
+          }
+        
+        try
+          {
+            BatchInserter batchInserter = new BatchInserter(db);
+
+            for (Iterator it = objects.iterator(); it.hasNext();)
+              {
+                Object object = it.next();
+
+                if (object == null)
+                  throw new JPersistException("object is null");
 
-                    throw new JPersistException(message, e);
+                if (!batchInserter.add(object))
+                  {
+                    returnValue += batchInserter.flush();
+                    returnValue += saveObject(db, object, null, null, null);
                   }
+                else if (batchInserter.size() >= SAVE_BATCH_SIZE)
+                  returnValue += batchInserter.flush();
               }
+
+            returnValue += batchInserter.flush();
+          }
+        catch (Exception e)
+          {
+            rollback = true;
+            
+            if (commit)
+              db.rollback();
+              
+            throw new JPersistException(e);
+          }
+        finally
+          {
+            if (commit)
+              {
+                if (!rollback)
+                  db.commit();
+                
+                db.setAutoCommit(true);
+              }
+            
+            if (!rollback)
+              for (Iterator it = objects.iterator(); it.hasNext();)
+                reloadObject(db, it.next());
           }
         
         return returnValue;
@@ -558,6 +980,9 @@ final class ObjectSupport
 
     static int saveObject(Database db, Object object, Set nullValuesToInclude, String externalClauses, Object[] parameters) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException, InstantiationException
       {
+        if (object instanceof PersistentObject)
+          ((PersistentObject)object).setObjectReloadNeeded(false);
+
         int returnValue = 0;
         boolean persistentUpdate = (object instanceof PersistentObject && ((PersistentObject)object).getObjectChecksum() != 0 && ((PersistentObject)object).getObjectPersistence() == PersistentObject.OBJECT_CAN_PERSIST),
                 externalWhere = (externalClauses != null && externalClauses.toLowerCase().startsWith("where")),
@@ -578,53 +1003,54 @@ final class ObjectSupport
 
     static int saveAssociations(Database db, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException, InstantiationException
       {
-        Method methods[] = object.getClass().getMethods();
+        Method methods[] = ObjectAccessors.getAccessors(object.getClass()).getMethods("getDbAssociation");
         boolean isPersistentObject = object instanceof PersistentObject;
         int returnValue = 0;
         
         for (int i = 0; i < methods.length; i++)
           {
-            if (methods[i].getName().equals("getDbAssociation"))
-              {
-                Object associationObject = methods[i].invoke(object, new Object[] { null });
+            Object associationObject = methods[i].invoke(object, new Object[] { null });
 
-                if (associationObject != null)
-                  if (associationObject instanceof Collection)
-                    {
-                      Iterator it = ((Collection)associationObject).iterator();
-                      Object obj = null;
+            // lazy associations that haven't been accessed haven't changed
+            if (associationObject instanceof LazyAssociation && !((LazyAssociation)associationObject).isLoaded())
+              continue;
+
+            if (associationObject != null)
+              if (associationObject instanceof Collection)
+                {
+                  Iterator it = ((Collection)associationObject).iterator();
+                  Object obj = null;
 
-                      while (it.hasNext() && (obj = it.next()) != null)
+                  while (it.hasNext() && (obj = it.next()) != null)
+                    {
+                      if (!(isPersistentObject && ((PersistentObject)object).classInIgnoreAssociation(obj.getClass())))
                         {
-                          if (!(isPersistentObject && ((PersistentObject)object).classInIgnoreAssociation(obj.getClass())))
-                            {
-                              copyAssociationIds(db, object, obj);
-                              returnValue += saveObject(db, obj, null, null, null);
-                            }
+                          copyAssociationIds(db, object, obj);
+                          returnValue += saveObject(db, obj, null, null, null);
                         }
                     }
-                  else if (associationObject.getClass().isArray())
-                    {
-                      Object objectArray[] = (Object[])associationObject;
+                }
+              else if (associationObject.getClass().isArray())
+                {
+                  Object objectArray[] = (Object[])associationObject;
 
-                      for (int i2 = 0; i2 < objectArray.length; i2++)
+                  for (int i2 = 0; i2 < objectArray.length; i2++)
+                    {
+                      if (!(isPersistentObject && ((PersistentObject)object).classInIgnoreAssociation(objectArray[i2].getClass())))
                         {
-                          if (!(isPersistentObject && ((PersistentObject)object).classInIgnoreAssociation(objectArray[i2].getClass())))
-                            {
-                              copyAssociationIds(db, object, objectArray[i2]);
-                              returnValue += saveObject(db, objectArray[i2], null, null, null);
-                            }
+                          copyAssociationIds(db, object, objectArray[i2]);
+                          returnValue += saveObject(db, objectArray[i2], null, null, null);
                         }
                     }
-                  else 
+                }
+              else 
+                {
+                  if (!(isPersistentObject && ((PersistentObject)object).classInIgnoreAssociation(associationObject.getClass())))
                     {
-                      if (!(isPersistentObject && ((PersistentObject)object).classInIgnoreAssociation(associationObject.getClass())))
-                        {
-                          copyAssociationIds(db, object, associationObject);
-                          returnValue = saveObject(db, associationObject, null, null, null);
-                        }
+                      copyAssociationIds(db, object, associationObject);
+                      returnValue = saveObject(db, associationObject, null, null, null);
                     }
-              }
+                }
           }
 
         return returnValue;
@@ -640,10 +1066,11 @@ final class ObjectSupport
 
         List returnValues = new ArrayList();
 
+        db.objectChanged(object.getClass());
         processClasses(db, object.getClass(), object, true, false, false, false, null, new InsertClassHandler(db, returnValues));
 
         if (object instanceof PersistentObject)
-          ((PersistentObject)object).setObjectChecksum(calculateChecksum(db, object));
+          snapshotObject(db, (PersistentObject)object);
         
         int returnValue = 0;
         
@@ -658,39 +1085,189 @@ final class ObjectSupport
         String identifierQuoteString;
         List returnValues;
         Database db;
+        int upsertSyntax;
         
         InsertClassHandler(Database db, List returnValues) throws JPersistException
           {
             this.db = db;
             this.returnValues = returnValues;
             this.identifierQuoteString = db.getMetaData().getIdentifierQuoteString();
+            this.upsertSyntax = db.getUpsertMode() ? db.getMetaData().getUpsertSyntax() : MetaData.UPSERT_NONE;
           }
       
         public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
           {
-            StringBuffer sqlStatement = new StringBuffer("insert into " + identifierQuoteString + table.getTableName() + identifierQuoteString + " ("),
-                         columnsStrBuf = new StringBuffer(),
-                         valuesStrBuf = new StringBuffer();
-            List columnValues = new ArrayList(), keysRequested = null, keysReturned = null;
-            
-            processColumns(table, valuesMap, sqlStatement, columnsStrBuf, valuesStrBuf, columnValues);
+            List keysRequested = null, keysReturned = null;
+            boolean upsert = canUpsert(table, valuesMap);
+            SqlPlan plan = getPlan(table, valuesMap, upsert);
             
             String dbUrl = db.getMetaData().getDatabaseUrl().toLowerCase(),
                    possibleGeneratedKey = table.getPossibleGeneratedKey();
             
-            if (dbUrl.startsWith("jdbc:oracle") && possibleGeneratedKey != null)
+            if (!upsert && dbUrl.startsWith("jdbc:oracle") && possibleGeneratedKey != null)
               {
                 keysReturned = new ArrayList();
                 keysReturned.add(possibleGeneratedKey);
                 keysRequested = new ArrayList(keysReturned);
               }
             
-            returnValues.add(new Integer(db.parameterizedUpdate(sqlStatement.toString(), keysReturned, columnValues.toArray())));
+            returnValues.add(new Integer(db.parameterizedUpdate(plan.getSql(), keysReturned, plan.bind(object, valuesMap, null))));
 
-            processGeneratedKeys(table, db.getColumnMapper(), object, dbUrl, keysRequested, keysReturned);
+            // an upsert has all the primary keys, and generated key queries don't apply to it
+            if (!upsert)
+              processGeneratedKeys(table, db.getColumnMapper(), object, dbUrl, keysRequested, keysReturned);
+
+            if (object instanceof PersistentObject && !setInsertedKeyValues(db, (PersistentObject)object, table, valuesMap, upsert, null))
+              ((PersistentObject)object).setObjectReloadNeeded(true);
+          }
+
+        /*
+         * An upsert is used (in upsert mode) when the database supports one and 
+         * the object has values for all of the table's primary keys.
+         */
+        boolean canUpsert(MetaData.Table table, Map valuesMap) throws JPersistException
+          {
+            if (upsertSyntax == MetaData.UPSERT_NONE || table.getPrimaryKeys() == null || table.getPrimaryKeys().isEmpty())
+              return false;
+
+            for (Iterator it = table.getPrimaryKeys().keySet().iterator(); it.hasNext();)
+              {
+                MetaData.Table.Column column = table.getColumn((String)it.next());
+                Object value = column != null ? valuesMap.get(column) : null;
+
+                if (value == null || value instanceof NullValue || column.isReadOnly())
+                  return false;
+              }
+
+            return true;
           }
         
-        void processColumns(MetaData.Table table, Map valuesMap, StringBuffer sqlStatement, StringBuffer columnsStrBuf, StringBuffer valuesStrBuf, List columnValues) throws JPersistException
+        SqlPlan getPlan(MetaData.Table table, Map valuesMap, boolean upsert) throws JPersistException
+          {
+            MetaData metaData = db.getMetaData();
+            SqlPlan.Shape shape = new SqlPlan.Shape(table);
+
+            for (Iterator it = valuesMap.entrySet().iterator(); it.hasNext();)
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+                MetaData.Table.Column column = (MetaData.Table.Column)entry.getKey();
+
+                if (!column.isReadOnly() && !(entry.getValue() instanceof NullValue))
+                  shape.set(column, 1);
+              }
+
+            List planKey = new ArrayList();
+
+            planKey.add(upsert ? "upsert" : "insert");
+            planKey.add(table);
+            planKey.add(shape.toString());
+
+            SqlPlan plan = metaData.getSqlPlan(planKey);
+
+            if (plan == null)
+              {
+                StringBuffer sqlStatement = new StringBuffer("insert into " + identifierQuoteString + table.getTableName() + identifierQuoteString + " ("),
+                             columnsStrBuf = new StringBuffer(),
+                             valuesStrBuf = new StringBuffer();
+                SqlPlan.Binder binder = new SqlPlan.Binder();
+
+                processColumns(table, valuesMap, sqlStatement, columnsStrBuf, valuesStrBuf, binder);
+
+                if (upsert)
+                  sqlStatement = buildUpsert(table, binder, sqlStatement, columnsStrBuf, valuesStrBuf);
+
+                metaData.putSqlPlan(planKey, plan = new SqlPlan(sqlStatement.toString(), binder, false));
+              }
+
+            return plan;
+          }
+
+        /*
+         * Builds the upsert from the insert's columns, which are bound in the 
+         * same order (once), so the insert's binder is used as is.
+         */
+        StringBuffer buildUpsert(MetaData.Table table, SqlPlan.Binder binder, StringBuffer insertStatement, StringBuffer columnsStrBuf, StringBuffer valuesStrBuf) throws JPersistException
+          {
+            String q = identifierQuoteString, tableName = q + table.getTableName() + q,
+                   productName = db.getMetaData().getDatabaseProductName().toLowerCase(), firstKey = null;
+            StringBuffer keysStrBuf = new StringBuffer(), onStrBuf = new StringBuffer(), 
+                         updateStrBuf = new StringBuffer(), sourceStrBuf = new StringBuffer();
+
+            for (int i = 0; i < binder.size(); i++)
+              {
+                String columnName = q + ((MetaData.Table.Column)binder.columns.get(i)).getColumnName() + q;
+
+                sourceStrBuf.append((i > 0 ? ", " : "") + "s." + columnName);
+
+                if (table.getPrimaryKeys().containsKey(((MetaData.Table.Column)binder.columns.get(i)).getColumnName()))
+                  {
+                    if (firstKey == null)
+                      firstKey = columnName;
+
+                    keysStrBuf.append((keysStrBuf.length() > 0 ? ", " : "") + columnName);
+                    onStrBuf.append((onStrBuf.length() > 0 ? " and " : "") + "t." + columnName + " = s." + columnName);
+                  }
+                else if (upsertSyntax == MetaData.UPSERT_ON_DUPLICATE_KEY)
+                  updateStrBuf.append((updateStrBuf.length() > 0 ? ", " : "") + columnName + " = values(" + columnName + ")");
+                else if (upsertSyntax == MetaData.UPSERT_ON_CONFLICT)
+                  updateStrBuf.append((updateStrBuf.length() > 0 ? ", " : "") + columnName + " = excluded." + columnName);
+                else
+                  updateStrBuf.append((updateStrBuf.length() > 0 ? ", " : "") + "t." + columnName + " = s." + columnName);
+              }
+
+            StringBuffer sqlStatement = new StringBuffer();
+
+            switch (upsertSyntax)
+              {
+                case MetaData.UPSERT_ON_DUPLICATE_KEY:
+                  sqlStatement.append(insertStatement + " on duplicate key update "
+                                      + (updateStrBuf.length() > 0 ? updateStrBuf.toString() : firstKey + " = " + firstKey));
+                  break;
+
+                case MetaData.UPSERT_ON_CONFLICT:
+                  sqlStatement.append(insertStatement + " on conflict (" + keysStrBuf + ")"
+                                      + (updateStrBuf.length() > 0 ? " do update set " + updateStrBuf : " do nothing"));
+                  break;
+
+                case MetaData.UPSERT_MERGE_KEY:
+                  sqlStatement.append("merge into " + tableName + " (" + columnsStrBuf + ") key (" + keysStrBuf + ") values(" + valuesStrBuf + ")");
+                  break;
+
+                default:
+                  {
+                    boolean isOracle = productName.startsWith("oracle");
+
+                    sqlStatement.append("merge into " + tableName + " t using ");
+
+                    if (isOracle)
+                      {
+                        sqlStatement.append("(select ");
+
+                        for (int i = 0; i < binder.size(); i++)
+                          sqlStatement.append((i > 0 ? ", " : "") + "? " + q + ((MetaData.Table.Column)binder.columns.get(i)).getColumnName() + q);
+
+                        sqlStatement.append(" from dual) s");
+                      }
+                    else
+                      sqlStatement.append("(values(" + valuesStrBuf + ")) as s (" + columnsStrBuf + ")");
+
+                    sqlStatement.append(" on (" + onStrBuf + ")");
+
+                    if (updateStrBuf.length() > 0)
+                      sqlStatement.append(" when matched then update set " + updateStrBuf);
+
+                    sqlStatement.append(" when not matched then insert (" + columnsStrBuf + ") values (" + sourceStrBuf + ")");
+
+                    // SQL Server requires merge statements to be terminated
+                    if (productName.startsWith("microsoft sql server"))
+                      sqlStatement.append(";");
+                  }
+              }
+
+            return sqlStatement;
+          }
+
+        void processColumns(MetaData.Table table, Map valuesMap, StringBuffer sqlStatement, StringBuffer columnsStrBuf, StringBuffer valuesStrBuf, SqlPlan.Binder binder) throws JPersistException
           {
             int readOnly = 0;
             
@@ -706,13 +1283,13 @@ final class ObjectSupport
                     if (!(obj instanceof NullValue))
                       {
                         columnsStrBuf.append((columnsStrBuf.length() > 0 ? ", " : "") + identifierQuoteString + column.getColumnName() + identifierQuoteString);
-                        columnValues.add(obj);
+                        binder.add(column, SqlPlan.OBJECT_VALUE);
                       }
                   }
                 else readOnly++;
               }
         
-            if (columnValues.size() == 0)
+            if (binder.size() == 0)
               {
                 if (readOnly > 0)
                   throw new JPersistException("Table " + table.getTableName() + " appears to be readonly, might need to log in to the database");
@@ -722,7 +1299,7 @@ final class ObjectSupport
 
             sqlStatement.append(columnsStrBuf + ") values(");
 
-            for (Iterator it = columnValues.iterator(); it.hasNext(); it.next())
+            for (int i = 0; i < binder.size(); i++)
               valuesStrBuf.append((valuesStrBuf.length() > 0 ? ", " : "") + "?");
 
             sqlStatement.append(valuesStrBuf + ")");
@@ -739,48 +1316,279 @@ final class ObjectSupport
                                               + ") do not match the number of primary keys requested " + keysRequested
                                               + "; try implementing GeneratedKeys");
 
-                setAutoGeneratedKeys(object, table, columnMapper, keysRequested, keysReturned);
+                setAutoGeneratedKeys(object, table, columnMapper, keysRequested, keysReturned);
+              }
+            else if (table.getGeneratedKey() != null)
+              {
+                boolean queryExecuted = false;
+                Result result = null;
+
+                if (dbUrl.startsWith("jdbc:mysql"))
+                  {
+                    result = db.executeQuery("select LAST_INSERT_ID() as id ");
+                    queryExecuted = true;
+                  }
+                else if (dbUrl.startsWith("jdbc:derby") || dbUrl.startsWith("jdbc:db2"))
+                  {
+                    result = db.executeQuery("select IDENTITY_VAL_LOCAL() as id from " + table.getTableName());
+                    queryExecuted = true;
+                  }
+                else if (dbUrl.startsWith("jdbc:hsqldb") || dbUrl.startsWith("jdbc:h2"))
+                  {
+                    result = db.executeQuery("select IDENTITY() as id from " + table.getTableName());
+                    queryExecuted = true;
+                  }
+                else if (dbUrl.startsWith("jdbc:postgresql"))
+                  {
+                    result = db.executeQuery("select currval('" + table.getTableName() + '_' + table.getGeneratedKey() + "_seq" + "') as id");
+                    queryExecuted = true;
+                  }
+
+                if (queryExecuted && result.hasNext() && result.next() != null)
+                  {
+                    keysReturned = new ArrayList();
+                    keysReturned.add(result.getColumnValue("id"));
+
+                    keysRequested = new ArrayList();
+                    keysRequested.add(table.getGeneratedKey());
+
+                    setAutoGeneratedKeys(object, table, db.getColumnMapper(), keysRequested, keysReturned);
+                  }
+              }
+          }
+      }
+    
+    static class BatchInserter implements ClassHandler
+      {
+        Database db;
+        InsertClassHandler insertClassHandler;
+        boolean supportsBatchUpdates, supportsBatchGeneratedKeys, isOracle;
+        Map batches = new LinkedHashMap();
+        List objects = new ArrayList(), tableInserts;
+        
+        BatchInserter(Database db) throws JPersistException
+          {
+            MetaData metaData = db.getMetaData();
+
+            this.db = db;
+            this.insertClassHandler = new InsertClassHandler(db, null);
+            this.supportsBatchUpdates = metaData.supportsBatchUpdates();
+            this.supportsBatchGeneratedKeys = metaData.supportsBatchGeneratedKeys();
+            this.isOracle = metaData.getDatabaseUrl().toLowerCase().startsWith("jdbc:oracle");
+          }
+
+        /*
+         * Adds the object to the batches if it's an insert that can be batched, 
+         * nothing is executed until flush().
+         */
+        boolean add(Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            if (!supportsBatchUpdates || object instanceof GeneratedKeys || object.getClass().isAnnotationPresent(GlobalUpdate.class)
+                  || (object instanceof PersistentObject && ((PersistentObject)object).getObjectChecksum() != 0 
+                      && ((PersistentObject)object).getObjectPersistence() == PersistentObject.OBJECT_CAN_PERSIST))
+              return false;
+
+            tableInserts = new ArrayList();
+
+            if (object instanceof PersistentObject)
+              ((PersistentObject)object).setObjectReloadNeeded(false);
+
+            db.objectChanged(object.getClass());
+
+            processClasses(db, object.getClass(), object, true, false, false, false, null, this);
+
+            for (int i = 0; i < tableInserts.size(); i++)
+              {
+                TableInsert tableInsert = (TableInsert)tableInserts.get(i);
+
+                // generated keys can't be read for every row of a batch, or are needed by the next table's insert
+                if (tableInsert.generatedKey != null && (!supportsBatchGeneratedKeys || tableInserts.size() > 1))
+                  return false;
+              }
+
+            for (int i = 0; i < tableInserts.size(); i++)
+              {
+                TableInsert tableInsert = (TableInsert)tableInserts.get(i);
+                InsertBatch batch = (InsertBatch)batches.get(tableInsert.sql);
+
+                if (batch == null)
+                  batches.put(tableInsert.sql, batch = new InsertBatch(tableInsert.table, tableInsert.sql, tableInsert.generatedKey));
+
+                batch.objects.add(object);
+                batch.parameters.add(tableInsert.parameters);
+              }
+
+            objects.add(object);
+
+            return true;
+          }
+
+        public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            boolean upsert = insertClassHandler.canUpsert(table, valuesMap);
+            SqlPlan plan = insertClassHandler.getPlan(table, valuesMap, upsert);
+            String generatedKey = upsert ? null : isOracle ? table.getPossibleGeneratedKey() : table.getGeneratedKey();
+
+            tableInserts.add(new TableInsert(table, plan.getSql(), generatedKey, plan.bind(object, valuesMap, null)));
+
+            // the generated key (if any) is set from the batch, or the batch fails
+            if (object instanceof PersistentObject && !setInsertedKeyValues(db, (PersistentObject)object, table, valuesMap, upsert, generatedKey))
+              ((PersistentObject)object).setObjectReloadNeeded(true);
+          }
+
+        int size() { return objects.size(); }
+
+        /*
+         * Executes the batches, and then finishes the objects the same as 
+         * saveObject() does following an insert.
+         */
+        int flush() throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException, InstantiationException
+          {
+            int returnValue = 0;
+
+            for (Iterator it = batches.values().iterator(); it.hasNext();)
+              returnValue += executeBatch((InsertBatch)it.next());
+
+            for (int i = 0; i < objects.size(); i++)
+              {
+                Object object = objects.get(i);
+
+                if (object instanceof PersistentObject)
+                  snapshotObject(db, (PersistentObject)object);
+
+                returnValue += saveAssociations(db, object);
+              }
+
+            batches.clear();
+            objects.clear();
+
+            return returnValue;
+          }
+
+        int executeBatch(InsertBatch batch) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            if (logger.isLoggable(Level.FINE))
+              logger.fine("sql = " + batch.sql + "\nbatch size = " + batch.parameters.size());
+
+            List keysRequested = null;
+
+            if (batch.generatedKey != null)
+              {
+                keysRequested = new ArrayList();
+                keysRequested.add(batch.generatedKey);
+              }
+
+            PreparedStatement preparedStatement = db.getPreparedStatementForUpdate(batch.sql, keysRequested);
+            int returnValue = 0;
+
+            for (int i = 0; i < batch.parameters.size(); i++)
+              {
+                Database.setPreparedStatementObjects(preparedStatement, (Object[])batch.parameters.get(i));
+                preparedStatement.addBatch();
               }
-            else if (table.getGeneratedKey() != null)
+
+            int[] counts = preparedStatement.executeBatch();
+
+            for (int i = 0; i < counts.length; i++)
+              returnValue += counts[i] == Statement.SUCCESS_NO_INFO ? 1 : counts[i];
+
+            if (keysRequested != null)
               {
-                boolean queryExecuted = false;
-                Result result = null;
+                ResultSet generatedKeys = preparedStatement.getGeneratedKeys();
+                int keysReturned = 0;
 
-                if (dbUrl.startsWith("jdbc:mysql"))
-                  {
-                    result = db.executeQuery("select LAST_INSERT_ID() as id ");
-                    queryExecuted = true;
-                  }
-                else if (dbUrl.startsWith("jdbc:derby") || dbUrl.startsWith("jdbc:db2"))
-                  {
-                    result = db.executeQuery("select IDENTITY_VAL_LOCAL() as id from " + table.getTableName());
-                    queryExecuted = true;
-                  }
-                else if (dbUrl.startsWith("jdbc:hsqldb") || dbUrl.startsWith("jdbc:h2"))
+                try
                   {
-                    result = db.executeQuery("select IDENTITY() as id from " + table.getTableName());
-                    queryExecuted = true;
+                    while (keysReturned < batch.objects.size() && generatedKeys.next())
+                      {
+                        List keys = new ArrayList();
+
+                        keys.add(generatedKeys.getObject(1));
+
+                        setAutoGeneratedKeys(batch.objects.get(keysReturned++), batch.table, db.getColumnMapper(), keysRequested, keys);
+                      }
                   }
-                else if (dbUrl.startsWith("jdbc:postgresql"))
+                finally
                   {
-                    result = db.executeQuery("select currval('" + table.getTableName() + '_' + table.getGeneratedKey() + "_seq" + "') as id");
-                    queryExecuted = true;
+                    generatedKeys.close();
                   }
 
-                if (queryExecuted && result.hasNext() && result.next() != null)
-                  {
-                    keysReturned = new ArrayList();
-                    keysReturned.add(result.getColumnValue("id"));
+                if (keysReturned != batch.objects.size())
+                  throw new JPersistException("Auto-generated keys returned (" + keysReturned 
+                                              + ") do not match the number of rows inserted (" + batch.objects.size()
+                                              + "); try implementing GeneratedKeys");
+              }
 
-                    keysRequested = new ArrayList();
-                    keysRequested.add(table.getGeneratedKey());
+            return returnValue;
+          }
 
-                    setAutoGeneratedKeys(object, table, db.getColumnMapper(), keysRequested, keysReturned);
-                  }
+        static class TableInsert
+          {
+            MetaData.Table table;
+            String sql, generatedKey;
+            Object[] parameters;
+
+            TableInsert(MetaData.Table table, String sql, String generatedKey, Object[] parameters)
+              {
+                this.table = table;
+                this.sql = sql;
+                this.generatedKey = generatedKey;
+                this.parameters = parameters;
+              }
+          }
+
+        static class InsertBatch
+          {
+            MetaData.Table table;
+            String sql, generatedKey;
+            List objects = new ArrayList(), parameters = new ArrayList();
+
+            InsertBatch(MetaData.Table table, String sql, String generatedKey)
+              {
+                this.table = table;
+                this.sql = sql;
+                this.generatedKey = generatedKey;
               }
           }
       }
     
+    /*
+     * Sets a persistent object's key values to the inserted values (so it can be 
+     * updated and deleted without being reloaded), and returns false if the row 
+     * may have values the object doesn't: a column the object has a set method 
+     * for, but didn't provide a value for, that has a default or is generated 
+     * (or any such column with an upsert, which may have updated an existing 
+     * row), or a primary key that isn't known.  generatedKey is a key that will 
+     * be set later.
+     */
+    static boolean setInsertedKeyValues(Database db, PersistentObject object, MetaData.Table table, Map valuesMap, boolean upsert, String generatedKey) throws JPersistException
+      {
+        boolean valuesKnown = table.getPrimaryKeys().size() > 0;
+
+        for (Iterator it = table.getColumns().iterator(); it.hasNext();)
+          {
+            MetaData.Table.Column column = (MetaData.Table.Column)it.next();
+            String columnName = column.getColumnName();
+            Object value = valuesMap.get(column);
+
+            if (value != null && !(value instanceof NullValue) && !column.isReadOnly())
+              {
+                if (column.isPrimaryKey())
+                  object.getObjectKeyValues().put(columnName, value);
+              }
+            else if (column.isPrimaryKey())
+              {
+                if (!columnName.equals(generatedKey) && object.getObjectKeyValue(columnName) == null)
+                  valuesKnown = false;
+              }
+            else if ((upsert || column.hasDefault() || column.isAutoIncrement()) 
+                       && getMatchingMethod(db.getColumnMapper(), columnName, object, false) != null)
+              valuesKnown = false;
+          }
+
+        return valuesKnown;
+      }
+
     static void setAutoGeneratedKeys(Object object, MetaData.Table table, ColumnMapping columnMapper, List keysRequested, List keysReturned) throws IllegalAccessException, InvocationTargetException
       {
         for (int h = 0; h < keysReturned.size(); h++)
@@ -816,13 +1624,14 @@ final class ObjectSupport
         List returnValues = new ArrayList();
         Map updatedKeys = new HashMap();
 
+        db.objectChanged(object.getClass());
         processClasses(db, object.getClass(), object, true, false, false, true, nullValuesToInclude, 
                        new UpdateClassHandler(db, updatedKeys, returnValues, externalClauses, parameters));
 
         if (object instanceof PersistentObject)
           {
             ((PersistentObject)object).getObjectKeyValues().putAll(updatedKeys);
-            ((PersistentObject)object).setObjectChecksum(calculateChecksum(db, object));
+            snapshotObject(db, (PersistentObject)object);
           }
           
         int returnValue = 0;
@@ -853,10 +1662,80 @@ final class ObjectSupport
           }
         
         public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            MetaData metaData = db.getMetaData();
+            SqlPlan.Shape shape = new SqlPlan.Shape(table);
+            BitSet unchangedColumns = new BitSet();
+            Object[] snapshot = null;
+            int changedColumns = 0;
+
+            // with a snapshot from the last load/save only the changed columns are written
+            if (externalClauses == null && object instanceof PersistentObject && !((PersistentObject)object).objectHasChanged() 
+                    && !object.getClass().isAnnotationPresent(GlobalUpdate.class))
+              snapshot = ((PersistentObject)object).getObjectSnapshot(table.getTableName());
+
+            for (Iterator it = valuesMap.entrySet().iterator(); it.hasNext(); )
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+                MetaData.Table.Column column = (MetaData.Table.Column)entry.getKey();
+                String columnName = column.getColumnName();
+                Object obj = entry.getValue(), keyValue = null;
+                int state = 0;
+
+                if (!column.isReadOnly())
+                  {
+                    if (snapshot != null && snapshotEquals(snapshot[column.getIndex()], obj))
+                      unchangedColumns.set(column.getIndex());
+                    else
+                      {
+                        state = obj instanceof NullValue ? 1 : 2;
+                        changedColumns++;
+                      }
+                  }
+
+                if (object instanceof PersistentObject && (keyValue = ((PersistentObject)object).getObjectKeyValue(columnName)) != null)
+                  {
+                    updatedKeys.put(columnName, obj);
+
+                    if (column.isSearchable())
+                      state += hasWildCards(keyValue.toString()) ? 6 : 3;
+                  }
+
+                shape.set(column, state);
+              }
+
+            if (snapshot != null && changedColumns == 0)
+              {
+                if (logger.isLoggable(Level.FINER))
+                  logger.finer("skipping update of unchanged table " + table.getTableName());
+
+                return;
+              }
+
+            List planKey = new ArrayList();
+
+            planKey.add("update");
+            planKey.add(objectClass);
+            planKey.add(table);
+            planKey.add(db.getColumnMapper());
+            planKey.add(externalClauses);
+            planKey.add(Boolean.valueOf(parameters != null && parameters.length > 0));
+            planKey.add(shape.toString());
+
+            SqlPlan plan = metaData.getSqlPlan(planKey);
+
+            if (plan == null)
+              metaData.putSqlPlan(planKey, plan = buildPlan(objectClass, object, table, valuesMap, unchangedColumns));
+
+            returnValues.add(new Integer(db.parameterizedUpdate(plan.getSql(), plan.bind(object, valuesMap, parameters))));
+          }
+
+        SqlPlan buildPlan(Class objectClass, Object object, MetaData.Table table, Map valuesMap, BitSet unchangedColumns) throws JPersistException
           {
             StringBuffer sqlStatement = new StringBuffer();
-            List columnValues = new ArrayList(), whereValues = new ArrayList();
+            SqlPlan.Binder columnBinder = new SqlPlan.Binder(), whereBinder = new SqlPlan.Binder();
             StringBuffer columnsStrBuf = new StringBuffer(), whereStrBuf = new StringBuffer();
+            boolean hasParameters = parameters != null && parameters.length > 0;
 
             for (Iterator it = valuesMap.entrySet().iterator(); it.hasNext(); )
               {
@@ -865,51 +1744,40 @@ final class ObjectSupport
                 String columnName = column.getColumnName();
                 Object obj = entry.getValue();
 
-                if (!column.isReadOnly())
+                if (!column.isReadOnly() && !unchangedColumns.get(column.getIndex()))
                   {
                     if (obj instanceof NullValue)
                       columnsStrBuf.append((columnsStrBuf.length() > 0 ? ", " : "") + identifierQuoteString + columnName + identifierQuoteString + " = null");
                     else
                       {
                         columnsStrBuf.append((columnsStrBuf.length() > 0 ? ", " : "") + identifierQuoteString + columnName + identifierQuoteString + " = ?");
-                        columnValues.add(obj);
+                        columnBinder.add(column, SqlPlan.OBJECT_VALUE);
                       }
                   }
 
-                if (object instanceof PersistentObject && ((PersistentObject)object).getObjectKeyValue(columnName) != null)
-                  updatedKeys.put(columnName, obj);
-
                 if (object instanceof PersistentObject && (obj = ((PersistentObject)object).getObjectKeyValue(columnName)) != null)
                   if (column.isSearchable())
                     {
                       whereStrBuf.append((whereStrBuf.length() > 0 ? " and " : "") + identifierQuoteString + columnName + identifierQuoteString + (hasWildCards(obj.toString()) ? " like ?" : " = ?"));
-                      whereValues.add(obj);
+                      whereBinder.add(column, SqlPlan.KEY_VALUE);
                     }
               }
 
             sqlStatement.append("update " + identifierQuoteString + table.getTableName() + identifierQuoteString + " set " + columnsStrBuf);
 
-            if (whereStrBuf.length() > 0 && (externalClauses == null || !externalClauses.startsWith("where")))
-              sqlStatement.append(" where ").append(whereStrBuf);
-
             StringBuffer externalClausesStrBuf = null;
             
             if (externalClauses != null)
               processExternalClauses(externalClausesStrBuf = new StringBuffer(externalClauses), table, db.getColumnMapper(), object, identifierQuoteString);
             
-            if (externalClauses != null)
-              {
-                sqlStatement.append(" " + externalClausesStrBuf);
-
-                if (parameters != null)
-                  for (int i = 0; i < parameters.length; i++)
-                    whereValues.add(parameters[i]);
-              }
+            appendWhereClauses(sqlStatement, whereStrBuf, externalClausesStrBuf != null ? externalClausesStrBuf.toString() : null);
 
-            if (columnValues.size() > 0 && (whereValues.size() > 0 || objectClass.isAnnotationPresent(GlobalUpdate.class)))
+            if (columnsStrBuf.length() > 0 && (whereBinder.size() > 0 || hasParameters || objectClass.isAnnotationPresent(GlobalUpdate.class)))
               {
-                columnValues.addAll(whereValues);
-                returnValues.add(new Integer(db.parameterizedUpdate(sqlStatement.toString(), columnValues.toArray())));
+                columnBinder.columns.addAll(whereBinder.columns);
+                columnBinder.sources.addAll(whereBinder.sources);
+
+                return new SqlPlan(sqlStatement.toString(), columnBinder, hasParameters);
               }
             else
               throw new JPersistException("Object does not have a where clause and does not extend GlobalUpdate");
@@ -928,6 +1796,7 @@ final class ObjectSupport
 
         List returnValues = new ArrayList();
 
+        db.objectChanged(object.getClass());
         processClasses(db, object.getClass(), object, true, false, true, false, nullValuesToInclude, 
                        new DeleteClassHandler(db, returnValues, externalClauses, parameters));
 
@@ -960,9 +1829,49 @@ final class ObjectSupport
           }
       
         public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            MetaData metaData = db.getMetaData();
+            SqlPlan.Shape shape = new SqlPlan.Shape(table);
+
+            for (Iterator it = valuesMap.entrySet().iterator(); it.hasNext(); )
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+                MetaData.Table.Column column = (MetaData.Table.Column)entry.getKey();
+                Object obj = entry.getValue();
+
+                if (column.isSearchable() && !(obj instanceof NullValue))
+                  if (!(object instanceof PersistentObject) || ((PersistentObject)object).getObjectChecksum() == 0)
+                    shape.set(column, hasWildCards(obj.toString()) ? 2 : 1);
+                  else if ((obj = ((PersistentObject)object).getObjectKeyValue(column.getColumnName())) != null)
+                    shape.set(column, hasWildCards(obj.toString()) ? 4 : 3);
+              }
+
+            List planKey = new ArrayList();
+
+            planKey.add("delete");
+            planKey.add(objectClass);
+            planKey.add(table);
+            planKey.add(db.getColumnMapper());
+            planKey.add(externalClauses);
+            planKey.add(Boolean.valueOf(parameters != null && parameters.length > 0));
+            planKey.add(shape.toString());
+
+            SqlPlan plan = metaData.getSqlPlan(planKey);
+
+            if (plan == null)
+              metaData.putSqlPlan(planKey, plan = buildPlan(objectClass, object, table, valuesMap));
+
+            if (plan.isParameterized())
+              returnValues.add(new Integer(db.parameterizedUpdate(plan.getSql(), plan.bind(object, valuesMap, parameters))));
+            else
+              returnValues.add(new Integer(db.executeUpdate(plan.getSql())));
+          }
+
+        SqlPlan buildPlan(Class objectClass, Object object, MetaData.Table table, Map valuesMap) throws JPersistException
           {
             StringBuffer sqlStatement = new StringBuffer(), whereStrBuf = new StringBuffer();
-            List values = new ArrayList();
+            SqlPlan.Binder binder = new SqlPlan.Binder();
+            boolean hasParameters = parameters != null && parameters.length > 0;
 
             for (Iterator it = valuesMap.entrySet().iterator(); it.hasNext(); )
               {
@@ -975,45 +1884,37 @@ final class ObjectSupport
                     Object obj = entry.getValue();
 
                     if (!(obj instanceof NullValue))
-                      if (!(object instanceof PersistentObject) || ((PersistentObject)object).getObjectChecksum() == 0
-                          || (((PersistentObject)object).getObjectChecksum() != 0 && (obj = ((PersistentObject)object).getObjectKeyValue(columnName)) != null))
+                      if (!(object instanceof PersistentObject) || ((PersistentObject)object).getObjectChecksum() == 0)
+                        {
+                          whereStrBuf.append((whereStrBuf.length() > 0 ? " and " : "") + identifierQuoteString + columnName + identifierQuoteString + (hasWildCards(obj.toString()) ? " like ?" : " = ?"));
+                          binder.add(column, SqlPlan.OBJECT_VALUE);
+                        }
+                      else if ((obj = ((PersistentObject)object).getObjectKeyValue(columnName)) != null)
                         {
                           whereStrBuf.append((whereStrBuf.length() > 0 ? " and " : "") + identifierQuoteString + columnName + identifierQuoteString + (hasWildCards(obj.toString()) ? " like ?" : " = ?"));
-                          values.add(obj);
+                          binder.add(column, SqlPlan.KEY_VALUE);
                         }
                   }
               }
 
             sqlStatement.append("delete ");
 
-            if (externalClauses == null || !externalClauses.startsWith("from"))
-              {
-                sqlStatement.append(" from " + identifierQuoteString + table.getTableName() + identifierQuoteString);
+            boolean fromTable = externalClauses == null || !externalClauses.startsWith("from");
 
-                if (whereStrBuf.length() > 0 || (externalClauses == null || !externalClauses.startsWith("where")))
-                  sqlStatement.append(" where ").append(whereStrBuf);
-              }
+            if (fromTable)
+              sqlStatement.append(" from " + identifierQuoteString + table.getTableName() + identifierQuoteString);
             
             StringBuffer externalClausesStrBuf = null;
             
             if (externalClauses != null)
               processExternalClauses(externalClausesStrBuf = new StringBuffer(externalClauses), table, db.getColumnMapper(), object, identifierQuoteString);
 
-            if (externalClauses != null)
-              {
-                sqlStatement.append(" " + externalClausesStrBuf);
-
-                if (parameters != null)
-                  for (int i = 0; i < parameters.length; i++)
-                    values.add(parameters[i]);
-              }
+            appendWhereClauses(sqlStatement, fromTable ? whereStrBuf : null, externalClausesStrBuf != null ? externalClausesStrBuf.toString() : null);
 
-            if (values.size() > 0)
-              returnValues.add(new Integer(db.parameterizedUpdate(sqlStatement.toString(), values.toArray())));
-            else if (!(objectClass.isAnnotationPresent(GlobalDelete.class)))
+            if (binder.size() == 0 && !hasParameters && !(objectClass.isAnnotationPresent(GlobalDelete.class)))
               throw new JPersistException("Object does not have a where clause and does not extend GlobalDelete");
-            else
-              returnValues.add(new Integer(db.executeUpdate(sqlStatement.toString())));
+
+            return new SqlPlan(sqlStatement.toString(), binder, hasParameters);
           }
       }
     
@@ -1055,25 +1956,35 @@ final class ObjectSupport
 
     static Method getMatchingMethod(ColumnMapping columnMapper, String columnName, Object object, boolean getMethod)
       {
-        Method methods[] = object.getClass().getMethods();
-        String matchName = MetaData.normalizeName(columnName);
+        ObjectAccessors accessors = ObjectAccessors.getAccessors(object.getClass());
+        ObjectAccessors.Accessor methods[] = getMethod ? accessors.getGetters() : accessors.getSetters();
+        Map matchingMethods = (Map)matchingMethodsCache.get(object.getClass());
+        Object method = matchingMethods.get(getMethod ? "get" + columnName : "set" + columnName);
 
-        for (int i = 0; i < methods.length; i++)
-          if ((getMethod && methods[i].getName().startsWith("get")) || (!getMethod &&  methods[i].getName().startsWith("set")))
-            if (MetaData.normalizeName(methods[i].getName().substring(3)).indexOf(matchName) > -1)
-              return methods[i];
+        if (method == null)
+          {
+            method = findMatchingMethod(methods, MetaData.normalizeName(columnName));
+            matchingMethods.put(getMethod ? "get" + columnName : "set" + columnName, method != null ? method : NO_MATCHING_METHOD);
+          }
+
+        if (method != NO_MATCHING_METHOD)
+          return (Method)method;
 
-        String name = null;
+        String name = null, matchName = null;
         
         if (object instanceof ColumnMapping && (name = ((ColumnMapping)object).getTableColumnName(columnName.toLowerCase())) != null)
           matchName = name;
         else if (columnMapper != null && (name = columnMapper.getTableColumnName(columnName.toLowerCase())) != null)
           matchName = name;
 
+        return matchName != null ? findMatchingMethod(methods, matchName) : null;
+      }
+
+    static Method findMatchingMethod(ObjectAccessors.Accessor methods[], String matchName)
+      {
         for (int i = 0; i < methods.length; i++)
-          if ((getMethod && methods[i].getName().startsWith("get")) || (!getMethod && methods[i].getName().startsWith("set")))
-            if (MetaData.normalizeName(methods[i].getName().substring(3)).indexOf(matchName) > -1)
-              return methods[i];
+          if (MetaData.normalizeName(methods[i].getPropertyName()).indexOf(matchName) > -1)
+            return methods[i].getMethod();
 
         return null;
       }
@@ -1133,17 +2044,88 @@ final class ObjectSupport
         return checksumCalculator.getCheckSum();
       }
     
+    /*
+     * Records the object's checksum along with a snapshot of its column values,
+     * which updates compare against to write only the columns that changed.
+     */
+    static void snapshotObject(Database db, PersistentObject object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        snapshotObject(getClassTables(db, object.getClass(), object, true, false), object);
+      }
+
+    static void snapshotObject(ClassTables classTables, PersistentObject object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        ChecksumCalculator checksumCalculator = new ChecksumCalculator();
+
+        checksumCalculator.snapshot = new HashMap();
+
+        processClasses(classTables, object, false, false, null, checksumCalculator);
+
+        object.setObjectChecksum(checksumCalculator.getCheckSum());
+        object.setObjectSnapshot(checksumCalculator.snapshot);
+      }
+
+    /* mutable values are copied (or reduced to their string form) so later changes to them are seen */
+    static Object snapshotValue(Object value)
+      {
+        if (value == null || value instanceof NullValue)
+          return null;
+        else if (value instanceof String || value instanceof Number || value instanceof Boolean || value instanceof Character)
+          return value;
+        else if (value instanceof java.util.Date)
+          return ((java.util.Date)value).clone();
+        else if (value instanceof byte[])
+          return ((byte[])value).clone();
+        else if (value instanceof char[])
+          return new String((char[])value);
+
+        return value.toString();
+      }
+
+    static boolean snapshotEquals(Object snapshotValue, Object value)
+      {
+        value = snapshotValue(value);
+
+        if (snapshotValue == null || value == null)
+          return snapshotValue == value;
+        else if (snapshotValue instanceof byte[] && value instanceof byte[])
+          return Arrays.equals((byte[])snapshotValue, (byte[])value);
+
+        return snapshotValue.equals(value);
+      }
+
+    /*
+     * Each column value is hashed on its own (with its table and column position)
+     * and the hashes are summed, so the checksum doesn't depend on the order of
+     * the values map and is the same in any JVM (checksums are serialized).
+     */
     static class ChecksumCalculator implements ClassHandler
       {
-        CRC32 checkSum = new CRC32();
+        ValueHasher hasher = new ValueHasher();
+        long checkSum;
+        Map snapshot;
         
         public void processClass(Class objectClass, Object object, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws SQLException, IllegalAccessException, InvocationTargetException
           {
+            Object[] values = snapshot != null ? new Object[table.getColumnCount()] : null;
+
             for (Iterator it = valuesMap.entrySet().iterator(); it.hasNext();)
-              checkSum.update(((Map.Entry)it.next()).getValue().toString().getBytes());
+              {
+                Map.Entry entry = (Map.Entry)it.next();
+                int index = ((MetaData.Table.Column)entry.getKey()).getIndex();
+
+                checkSum += hasher.reset().update(tableAlias).update(index).update(entry.getValue()).getValue();
+
+                if (values != null)
+                  values[index] = snapshotValue(entry.getValue());
+              }
+
+            if (values != null)
+              snapshot.put(table.getTableName(), values);
           }
         
-        long getCheckSum() { return checkSum.getValue(); }
+        /* zero means never loaded or saved */
+        long getCheckSum() { return checkSum != 0 ? checkSum : 1; }
       }
     
     static interface ClassHandler
@@ -1152,11 +2134,39 @@ final class ObjectSupport
       }
     
     static void processClasses(Database db, Class objectClass, Object object, boolean tableRequired, boolean IdColumnsOnly, boolean baseTableOnly, boolean isUpdate, Set nullValuesToInclude, ClassHandler ch) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        processClasses(getClassTables(db, objectClass, object, tableRequired, baseTableOnly), object, IdColumnsOnly, isUpdate, nullValuesToInclude, ch);
+      }
+
+    /*
+     * Processes the object with classes and tables already found by
+     * getClassTables(), which doesn't use the database (so objects can be
+     * processed by other threads while the database is reading a result).
+     */
+    static void processClasses(ClassTables classTables, Object object, boolean IdColumnsOnly, boolean isUpdate, Set nullValuesToInclude, ClassHandler ch) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        char tableAlias = 'a';
+
+        for (int i = 0; i < classTables.classes.length; i++, tableAlias++)
+          {
+            Class objectClass = classTables.classes[i];
+            MetaData.Table table = classTables.tables[i];
+            Map valuesMap = new HashMap();
+            Set selectableColumns = new HashSet();
+
+            if (table != null)
+              getValuesMap(valuesMap, selectableColumns, table, classTables.columnMapper, object, objectClass, nullValuesToInclude, IdColumnsOnly, isUpdate, classTables.allFieldsSt);
+            
+            ch.processClass(objectClass, object, table, classTables.numberOfTables, tableAlias, valuesMap, selectableColumns);
+          }
+      }
+
+    /* returns the classes (from the base class down) and their tables for processClasses() */
+    static ClassTables getClassTables(Database db, Class objectClass, Object object, boolean tableRequired, boolean baseTableOnly) throws JPersistException, SQLException
       {
         Class headClass = objectClass, baseClass = null;
         Package p = objectClass.getPackage();
-        char tableAlias = 'a';
-        List classes = new ArrayList();
+        List classes = new ArrayList(), processedClasses = new ArrayList(), tables = new ArrayList();
         boolean singleTable = objectClass.isAnnotationPresent(SingleTableInheritance.class),
                 allFieldsSt = singleTable || objectClass.isAnnotationPresent(ConcreteTableInheritance.class);
         int numberOfTables = 0;
@@ -1176,7 +2186,7 @@ final class ObjectSupport
         else
           numberOfTables = classes.size();
         
-        for (int i = classes.size() - 1; i > -1; i--, tableAlias++)
+        for (int i = classes.size() - 1; i > -1; i--)
           {
             String tableName = null;
             
@@ -1196,64 +2206,167 @@ final class ObjectSupport
             if (table == null && tableRequired)
               throw new JPersistException("Table " + tableName + " is not locatable");
 
-            Map valuesMap = new HashMap();
-            Set selectableColumns = new HashSet();
-
-            if (table != null)
-              getValuesMap(valuesMap, selectableColumns, table, db.getColumnMapper(), object, objectClass, nullValuesToInclude, IdColumnsOnly, isUpdate, allFieldsSt);
-            
-            ch.processClass(objectClass, object, table, numberOfTables, tableAlias, valuesMap, selectableColumns);
+            processedClasses.add(objectClass);
+            tables.add(table);
             
             if (baseTableOnly || allFieldsSt)
               break;
           }
+
+        return new ClassTables((Class[])processedClasses.toArray(new Class[processedClasses.size()]), 
+                               (MetaData.Table[])tables.toArray(new MetaData.Table[tables.size()]), numberOfTables, allFieldsSt, db.getColumnMapper());
+      }
+
+    static final class ClassTables
+      {
+        Class[] classes;
+        MetaData.Table[] tables;
+        int numberOfTables;
+        boolean allFieldsSt;
+        ColumnMapping columnMapper;
+
+        ClassTables(Class[] classes, MetaData.Table[] tables, int numberOfTables, boolean allFieldsSt, ColumnMapping columnMapper)
+          {
+            this.classes = classes;
+            this.tables = tables;
+            this.numberOfTables = numberOfTables;
+            this.allFieldsSt = allFieldsSt;
+            this.columnMapper = columnMapper;
+          }
       }
     
     static void getValuesMap(Map valuesMap, Set selectableColumns, MetaData.Table table, ColumnMapping columnMapper, Object object, Class objectClass, Set nullValuesToInclude, boolean IdColumnsOnly, boolean isUpdate, boolean allFieldsSti) throws IllegalAccessException, InvocationTargetException, JPersistException
       {
-        Method methods[] = objectClass.getMethods();
+        ColumnBinding[] bindings = getColumnBindings(table, columnMapper, object, objectClass, allFieldsSti);
         
-        for (int i = 0; i < methods.length; i++)
+        for (int i = 0; i < bindings.length; i++)
           {
-            if (methods[i].getName().startsWith("get") && (allFieldsSti ||  methods[i].getDeclaringClass().equals(objectClass))
-                    && !methods[i].getName().equals("getDbAssociation") 
-                    && methods[i].getParameterTypes().length == 0)
+            MetaData.Table.Column column = bindings[i].column;
+            String methodName = bindings[i].propertyName;
+
+            selectableColumns.add(column);
+
+            if (object != null)
               {
-                MetaData.Table.Column column = null;
-                String methodName = methods[i].getName().substring(3);
-                column = table.getColumn(columnMapper, methodName, object);
+                Object value = bindings[i].getMethod.invoke(object, (Object[])null);
 
-                if (column != null)
+                if (IdColumnsOnly == false || table.getPrimaryKeys().size() == 0 || column.isPrimaryKey())
                   {
-                    selectableColumns.add(column);
-                    
-                    if (object != null)
+                    if (value != null)
+                      valuesMap.put(column, value);
+                    else
                       {
-                        Object value = methods[i].invoke(object, (Object[])null);
-
-                        if (IdColumnsOnly == false || table.getPrimaryKeys().size() == 0 || column.isPrimaryKey())
-                          {
-                            if (value != null)
-                              valuesMap.put(column, value);
-                            else
-                              {
-                                boolean includeNull = isUpdate && object != null && objectClass.isAnnotationPresent(UpdateNullValues.class);
+                        boolean includeNull = isUpdate && object != null && objectClass.isAnnotationPresent(UpdateNullValues.class);
 
-                                if (!includeNull && nullValuesToInclude != null)
-                                  includeNull = nullValuesToInclude.contains(methodName) 
-                                             || nullValuesToInclude.contains(column.getClassName())
-                                             || nullValuesToInclude.contains(Character.toLowerCase(methodName.charAt(0)) + methodName.substring(1));
+                        if (!includeNull && nullValuesToInclude != null)
+                          includeNull = nullValuesToInclude.contains(methodName) 
+                                     || nullValuesToInclude.contains(column.getClassName())
+                                     || nullValuesToInclude.contains(Character.toLowerCase(methodName.charAt(0)) + methodName.substring(1));
 
-                                if (includeNull)
-                                  valuesMap.put(column, new NullValue(column.getDataType()));
-                              }
-                          }
+                        if (includeNull)
+                          valuesMap.put(column, new NullValue(column.getDataType()));
                       }
                   }
               }
           }
       }
 
+    /*
+     * Appends the where conditions built from the object (if any), and then the
+     * external clauses.  An external where clause is joined to the object's
+     * conditions with "and", so the values bound for both are used.  External 
+     * clauses that are a bare condition (not starting with a clause keyword, 
+     * i.e. "userid = ?") are appended as a where clause, or joined with "and".
+     */
+    static void appendWhereClauses(StringBuffer sqlStatement, StringBuffer whereStrBuf, String externalClauses)
+      {
+        String keyword = externalClauses != null ? getClauseKeyword(externalClauses) : null;
+
+        if (whereStrBuf != null && whereStrBuf.length() > 0)
+          {
+            sqlStatement.append(" where ").append(whereStrBuf);
+
+            if (keyword != null && keyword.equals("where"))
+              externalClauses = "and" + externalClauses.trim().substring("where".length());
+            else if (externalClauses != null && keyword == null)
+              externalClauses = "and " + externalClauses;
+          }
+        else if (externalClauses != null && keyword == null)
+          externalClauses = "where " + externalClauses;
+
+        if (externalClauses != null)
+          sqlStatement.append(" " + externalClauses);
+      }
+
+    static final Set CLAUSE_KEYWORDS = new HashSet(Arrays.asList(new String[] { "where", "order", "group", "having", "limit", "for", "union", "select", "from" }));
+
+    /* returns the (lower case) clause keyword the external clauses start with, or null for a bare condition */
+    static String getClauseKeyword(String externalClauses)
+      {
+        String clauses = externalClauses.trim().toLowerCase();
+        int end = 0;
+
+        while (end < clauses.length() && Character.isLetter(clauses.charAt(end)))
+          end++;
+
+        String keyword = clauses.substring(0, end);
+
+        return CLAUSE_KEYWORDS.contains(keyword) ? keyword : null;
+      }
+
+    /**
+     * Returns the get methods of the class that match columns in the table.  The 
+     * bindings are resolved once per class and table (column matching is already
+     * cached by the table, so the bindings don't change once resolved).
+     */
+
+    static ColumnBinding[] getColumnBindings(MetaData.Table table, ColumnMapping columnMapper, Object object, Class objectClass, boolean allFieldsSti) throws JPersistException
+      {
+        ColumnBinding[] bindings = table.getColumnBindings(objectClass, allFieldsSti);
+
+        if (bindings == null)
+          {
+            ObjectAccessors.Accessor[] getters = ObjectAccessors.getAccessors(objectClass).getGetters();
+            List bindingList = new ArrayList();
+
+            for (int i = 0; i < getters.length; i++)
+              {
+                if ((allFieldsSti || getters[i].getDeclaringClass().equals(objectClass))
+                        && !getters[i].getMethod().getName().equals("getDbAssociation") 
+                        && getters[i].getParameterTypes().length == 0)
+                  {
+                    MetaData.Table.Column column = table.getColumn(columnMapper, getters[i].getPropertyName(), object);
+
+                    if (column != null)
+                      bindingList.add(new ColumnBinding(getters[i].getMethod(), column, getters[i].getPropertyName()));
+                  }
+              }
+
+            bindings = (ColumnBinding[])bindingList.toArray(new ColumnBinding[bindingList.size()]);
+            table.putColumnBindings(objectClass, allFieldsSti, bindings);
+          }
+
+        return bindings;
+      }
+
+    /**
+     * A get method bound to a table column.
+     */
+
+    static final class ColumnBinding
+      {
+        Method getMethod;
+        MetaData.Table.Column column;
+        String propertyName;
+
+        ColumnBinding(Method getMethod, MetaData.Table.Column column, String propertyName)
+          {
+            this.getMethod = getMethod;
+            this.column = column;
+            this.propertyName = propertyName;
+          }
+      }
+
     static void processExternalClauses(StringBuffer externalClausesStrBuf, MetaData.Table table, ColumnMapping columnMapper, Object object, String identifierQuoteString) throws JPersistException
       {
         int pos = 0;
@@ -1267,8 +2380,44 @@ final class ObjectSupport
             String searchStr = externalClausesStrBuf.substring(pos+1,pos2);
             MetaData.Table.Column column = table.getColumn(columnMapper, searchStr, object);
             
-            if (column != null)
-              externalClausesStrBuf.replace(pos, pos2, identifierQuoteString + column.getColumnName() + identifierQuoteString);
+            if (column == null)
+              throw new JPersistException("External clause name :" + searchStr + " does not match a column in table " + table.getTableName());
+
+            externalClausesStrBuf.replace(pos, pos2, identifierQuoteString + column.getColumnName() + identifierQuoteString);
+          }
+      }
+
+    /*
+     * Returns a where clause matching the object's (base) table on its primary 
+     * key, or on the <class name>Id column if it doesn't have a single column 
+     * primary key, for loading, saving and deleting by id.
+     */
+    static String getIdWhereClause(Database db, Object object) throws JPersistException
+      {
+        try
+          {
+            MetaData.Table table = getClassTables(db, object.getClass(), object, true, true).tables[0];
+            Map primaryKeys = table.getPrimaryKeys();
+            String identifierQuoteString = db.getMetaData().getIdentifierQuoteString(), columnName = null;
+
+            if (primaryKeys != null && primaryKeys.size() == 1)
+              columnName = (String)primaryKeys.keySet().iterator().next();
+            else
+              {
+                MetaData.Table.Column column = table.getColumn(db.getColumnMapper(), object.getClass().getSimpleName() + "Id", object);
+
+                if (column != null)
+                  columnName = column.getColumnName();
+              }
+
+            if (columnName == null)
+              throw new JPersistException("Table " + table.getTableName() + " does not have a single column primary key or a " + object.getClass().getSimpleName() + "Id column");
+
+            return "where " + identifierQuoteString + columnName + identifierQuoteString + " = ? ";
+          }
+        catch (SQLException e)
+          {
+            throw new JPersistException(e);
           }
       }
         
@@ -37,8 +37,10 @@ public class PersistentObject implements Serializable
     private long objectChecksum;
     private Set ignoreAssociationClasses = null;
     private Map objectKeyValues = null;
+    private transient Map objectSnapshot = null;
     private boolean objectHasChanged,
                     reloadAfterSave = true,
+                    reloadNeeded,
                     ignoreAssociations;
 
     long getObjectChecksum()
@@ -59,11 +61,46 @@ public class PersistentObject implements Serializable
         return objectKeyValues;
       }
 
+    /* the column values (by column index) the table had when the object was last loaded or saved */
+    Object[] getObjectSnapshot(String tableName)
+      {
+        if (objectSnapshot != null)
+          return (Object[])objectSnapshot.get(tableName);
+
+        return null;
+      }
+
+    void setObjectSnapshot(Map objectSnapshot)
+      {
+        this.objectSnapshot = objectSnapshot;
+      }
+
+    /* gives a copy of the object (see EntityCache) its own key values and ignored associations */
+    void detachObjectState()
+      {
+        if (objectKeyValues != null)
+          objectKeyValues = new HashMap(objectKeyValues);
+
+        if (ignoreAssociationClasses != null)
+          ignoreAssociationClasses = new HashSet(ignoreAssociationClasses);
+      }
+
     void setObjectPersistence(int reason)
       {
         objectPersistence = reason;
       }
 
+    /* true if the last save left values in the database the object doesn't have */
+    boolean getObjectReloadNeeded()
+      {
+        return reloadNeeded;
+      }
+
+    void setObjectReloadNeeded(boolean reloadNeeded)
+      {
+        this.reloadNeeded = reloadNeeded;
+      }
+
     /**
      * Returns true is associations are being ignored and not loaded or saved, false otherwise.
      *
@@ -130,7 +167,11 @@ public class PersistentObject implements Serializable
 
     /**
      * Set whether objects are reloaded after saves.  If the database changes 
-     * any of the columns associated with an object, it should be reloaded.
+     * any of the columns associated with an object, it should be reloaded.  
+     * Objects are only reloaded when the database provided some of the 
+     * inserted values (column defaults, generated columns, keys that 
+     * couldn't be retrieved), or when the class is annotated with 
+     * jpersist.annotations.ReloadAfterSave (for triggers, etc.).
      *
      * @param reloadAfterSave true if the object is to be reloaded following a save
      */
@@ -174,6 +215,7 @@ public class PersistentObject implements Serializable
     protected void makeObjectTransient()
       {
         objectKeyValues = null;
+        objectSnapshot = null;
         objectChecksum = 0;
         objectHasChanged = false;
       }
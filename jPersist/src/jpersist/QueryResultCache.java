@@ -0,0 +1,484 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A cache of query results (the rows DatabaseManager.cachedQuery() loads), 
+ * keyed by SQL and parameters.  The cache is
+ * limited by the estimated size of the rows it holds, dropping the least
+ * recently used results beyond it, and results expire the expiration time
+ * after they were queried.
+ *
+ * <p>Results are tagged with the tables their SQL reads (from, join), and
+ * updates through a Database from the DatabaseManager (executeUpdate(),
+ * parameterizedUpdate(), saveObject(), etc.) drop the results of the tables
+ * they change, and again when the transaction ends.  Updates that don't name
+ * their tables (stored procedures) drop all results.  Queries of views only
+ * see changes to the underlying tables once they expire.  Queries that don't
+ * read a table, lock rows or call functions returning a new value each time
+ * (sequences, the time, random numbers) aren't cached (see isCacheable()).
+ */
+
+@SuppressWarnings("unchecked")
+final class QueryResultCache
+  {
+    private static Logger logger = Logger.getLogger(QueryResultCache.class.getName());
+
+    /* the most statements whose tables are remembered, before starting over */
+    static final int MAX_PARSED_STATEMENTS = 1000;
+
+    private static final Set KEYWORDS = new HashSet(Arrays.asList(new String[]
+      { "select", "where", "group", "order", "having", "limit", "join", "inner", "left", "right", "outer", "full", "cross",
+        "natural", "on", "using", "union", "intersect", "except", "minus", "set", "values", "lateral", "fetch", "offset", "for", "with", "as" }));
+
+    /* functions whose value changes from call to call (the name following any qualifier, i.e. seq.nextval) */
+    private static final Set VOLATILE_FUNCTIONS = new HashSet(Arrays.asList(new String[]
+      { "nextval", "currval", "lastval", "setval", "rand", "random", "uuid", "newid", "sys_guid", "gen_random_uuid", "now", "sysdate",
+        "systimestamp", "getdate", "sysdatetime", "current_timestamp", "current_date", "current_time", "localtimestamp", "localtime",
+        "unix_timestamp", "clock_timestamp", "identity", "scope_identity", "last_insert_id" }));
+
+    private static Map parsedStatements = new ConcurrentHashMap();
+
+    private long maxBytes, expirationNanos, bytes, stamp, allTablesStamp, hits, misses;
+    private Map results = new LinkedHashMap(16, 0.75f, true), tableKeys = new HashMap(), tableStamps = new HashMap();
+
+    QueryResultCache(long maxBytes, long expiration)
+      {
+        this.maxBytes = maxBytes;
+        this.expirationNanos = expiration * 1000000L;
+      }
+
+    long getMaxBytes() { return maxBytes; }
+
+    synchronized long getBytes() { return bytes; }
+
+    synchronized long getHits() { return hits; }
+
+    synchronized long getMisses() { return misses; }
+
+    /* returns the key for the query, or null if the parameters can't be compared (arrays, streams, etc.) */
+    static Object getKey(String sql, boolean singleObject, Object[] parameters)
+      {
+        List key = new ArrayList((parameters != null ? parameters.length : 0) + 2);
+
+        key.add(sql);
+        key.add(Boolean.valueOf(singleObject));
+
+        if (parameters != null)
+          for (int i = 0; i < parameters.length; i++)
+            {
+              Object parameter = parameters[i];
+
+              if (!(parameter == null || parameter instanceof String || parameter instanceof Number || parameter instanceof Boolean
+                      || parameter instanceof Character || parameter instanceof java.util.Date || parameter instanceof Enum))
+                return null;
+
+              key.add(parameter instanceof java.util.Date ? ((java.util.Date)parameter).clone() : parameter);
+            }
+
+        return key;
+      }
+
+    /* 
+     * true if the query's results can be cached: it reads at least one table 
+     * (so it's invalidated by updates), doesn't lock rows (for update/share) 
+     * and doesn't call a volatile function (nextval, now(), rand(), etc.)
+     */
+    static boolean isCacheable(String sql)
+      {
+        if (getTables(sql, false).length == 0)
+          return false;
+
+        List tokens = tokenize(sql);
+
+        for (int i = 0; i < tokens.size(); i++)
+          {
+            String token = (String)tokens.get(i), next = i + 1 < tokens.size() ? (String)tokens.get(i + 1) : "";
+
+            if ((token.equals("for") && (next.equals("update") || next.equals("share"))) || (token.equals("lock") && next.equals("in"))
+                    || (token.equals("next") && next.equals("value")) || VOLATILE_FUNCTIONS.contains(token.substring(token.lastIndexOf('.') + 1)))
+              return false;
+          }
+
+        return true;
+      }
+
+    /* adds the cached rows to the collection, returns false if the query isn't cached */
+    synchronized boolean get(Object key, Collection c)
+      {
+        Entry entry = (Entry)results.get(key);
+
+        if (entry != null && expirationNanos > 0 && System.nanoTime() - entry.time > expirationNanos)
+          {
+            remove(key);
+            entry = null;
+          }
+
+        if (entry == null)
+          {
+            misses++;
+
+            return false;
+          }
+
+        hits++;
+
+        for (Iterator it = entry.rows.iterator(); it.hasNext();)
+          c.add(copyRow(it.next()));
+
+        return true;
+      }
+
+    /* the stamp changes each time results are dropped */
+    synchronized long getStamp() { return stamp; }
+
+    /*
+     * Caches a copy of the rows, unless the rows are too big, or hold values
+     * that are only valid while the result set is open (LOBs, etc.), or any of
+     * the query's tables were updated since the stamp was read.
+     */
+    void put(Object key, String sql, List rows, long queryStamp)
+      {
+        String[] tables = getTables(sql, false);
+        List cachedRows = new ArrayList(rows.size());
+        long size = 100 + sql.length() * 2;
+
+        for (Iterator it = rows.iterator(); it.hasNext();)
+          {
+            Object row = it.next();
+            long rowSize = estimateSize(row);
+
+            if (rowSize < 0)
+              return;
+
+            size += rowSize;
+            cachedRows.add(copyRow(row));
+          }
+
+        if (size > maxBytes / 2)
+          return;
+
+        synchronized (this)
+          {
+            if (allTablesStamp > queryStamp)
+              return;
+
+            for (int i = 0; i < tables.length; i++)
+              {
+                Long tableStamp = (Long)tableStamps.get(tables[i]);
+
+                if (tableStamp != null && tableStamp.longValue() > queryStamp)
+                  return;
+              }
+
+            remove(key);
+            results.put(key, new Entry(cachedRows, tables, size));
+            bytes += size;
+
+            for (int i = 0; i < tables.length; i++)
+              {
+                Set keys = (Set)tableKeys.get(tables[i]);
+
+                if (keys == null)
+                  tableKeys.put(tables[i], keys = new HashSet());
+
+                keys.add(key);
+              }
+
+            for (Iterator it = results.entrySet().iterator(); bytes > maxBytes && it.hasNext();)
+              {
+                Map.Entry eldest = (Map.Entry)it.next();
+
+                it.remove();
+                removed(eldest.getKey(), (Entry)eldest.getValue());
+              }
+          }
+      }
+
+    /* drops the results of the tables updated by the statement */
+    void invalidate(String updateSql)
+      {
+        String[] tables = getTables(updateSql, true);
+
+        if (logger.isLoggable(Level.FINER))
+          logger.finer("Invalidating query results of tables " + (tables != null ? Arrays.asList(tables).toString() : "(all)"));
+
+        invalidateTables(tables);
+      }
+
+    /* drops the results of the tables, all results if tables is null */
+    synchronized void invalidateTables(String[] tables)
+      {
+        stamp++;
+
+        if (tables == null)
+          {
+            allTablesStamp = stamp;
+            results.clear();
+            tableKeys.clear();
+            bytes = 0;
+          }
+        else
+          for (int i = 0; i < tables.length; i++)
+            {
+              tableStamps.put(tables[i], new Long(stamp));
+
+              Set keys = (Set)tableKeys.remove(tables[i]);
+
+              if (keys != null)
+                for (Iterator it = keys.iterator(); it.hasNext();)
+                  remove(it.next());
+            }
+      }
+
+    /* must be synchronized */
+    void remove(Object key)
+      {
+        removed(key, (Entry)results.remove(key));
+      }
+
+    /* must be synchronized, removes a removed entry from the table index */
+    void removed(Object key, Entry entry)
+      {
+        if (entry != null)
+          {
+            bytes -= entry.size;
+
+            for (int i = 0; i < entry.tables.length; i++)
+              {
+                Set keys = (Set)tableKeys.get(entry.tables[i]);
+
+                if (keys != null)
+                  {
+                    keys.remove(key);
+
+                    if (keys.isEmpty())
+                      tableKeys.remove(entry.tables[i]);
+                  }
+              }
+          }
+      }
+
+    /* rows are copied in and out of the cache, along with their mutable values (dates, byte arrays) */
+    static Object copyRow(Object row)
+      {
+        if (!(row instanceof Object[]))
+          return EntityCache.copyValue(row);
+
+        Object[] values = ((Object[])row).clone();
+
+        for (int i = 0; i < values.length; i++)
+          values[i] = EntityCache.copyValue(values[i]);
+
+        return values;
+      }
+
+    /* returns the estimated size of the row, or -1 if it can't be cached */
+    static long estimateSize(Object row)
+      {
+        if (!(row instanceof Object[]))
+          return estimateValueSize(row);
+
+        Object[] values = (Object[])row;
+        long size = 16 + values.length * 4;
+
+        for (int i = 0; i < values.length; i++)
+          {
+            long valueSize = estimateValueSize(values[i]);
+
+            if (valueSize < 0)
+              return -1;
+
+            size += valueSize;
+          }
+
+        return size;
+      }
+
+    static long estimateValueSize(Object value)
+      {
+        if (value == null)
+          return 0;
+        else if (value instanceof String)
+          return 40 + ((String)value).length() * 2;
+        else if (value instanceof BigDecimal || value instanceof BigInteger)
+          return 64;
+        else if (value instanceof Number || value instanceof Boolean || value instanceof Character)
+          return 24;
+        else if (value instanceof java.util.Date)
+          return 32;
+        else if (value instanceof byte[])
+          return 16 + ((byte[])value).length;
+        else if (value instanceof java.util.UUID)
+          return 32;
+
+        return -1;  // LOBs, arrays, etc. aren't valid once the result set is closed
+      }
+
+    /*
+     * Returns the (lowercase, unqualified) tables the statement reads or
+     * updates, following from, join, into, update and table.  For updates,
+     * null is returned if no tables are found.
+     */
+    static String[] getTables(String sql, boolean update)
+      {
+        String[] tables = (String[])parsedStatements.get(sql);
+
+        if (tables == null)
+          {
+            List tokens = tokenize(sql);
+            Set tableSet = new HashSet();
+
+            for (int i = 0; i < tokens.size(); i++)
+              {
+                String token = (String)tokens.get(i);
+
+                if (token.equals("from") || token.equals("join") || token.equals("into") || token.equals("update") || token.equals("table"))
+                  for (int j = i + 1; j < tokens.size();)
+                    {
+                      String name = (String)tokens.get(j++);
+
+                      if (!isIdentifier(name))
+                        break;
+
+                      tableSet.add(getTableName(name));
+
+                      if (j < tokens.size() && tokens.get(j).equals("as"))
+                        j++;
+
+                      if (j < tokens.size() && isIdentifier((String)tokens.get(j)))
+                        j++;
+
+                      if (!token.equals("from") || j >= tokens.size() || !tokens.get(j).equals(","))
+                        break;
+
+                      j++;
+                    }
+              }
+
+            tables = (String[])tableSet.toArray(new String[tableSet.size()]);
+
+            if (parsedStatements.size() >= MAX_PARSED_STATEMENTS)
+              parsedStatements.clear();
+
+            parsedStatements.put(sql, tables);
+          }
+
+        return update && tables.length == 0 ? null : tables;
+      }
+
+    /* splits the statement into lowercase words and punctuation, skipping literals and comments */
+    static List tokenize(String sql)
+      {
+        List tokens = new ArrayList();
+        int length = sql.length();
+
+        for (int i = 0; i < length;)
+          {
+            char c = sql.charAt(i);
+
+            if (c == '\'')
+              {
+                for (i++; i < length && sql.charAt(i) != '\''; i++);
+
+                i++;
+              }
+            else if (c == '-' && i + 1 < length && sql.charAt(i + 1) == '-')
+              {
+                for (; i < length && sql.charAt(i) != '\n'; i++);
+              }
+            else if (c == '/' && i + 1 < length && sql.charAt(i + 1) == '*')
+              {
+                int end = sql.indexOf("*/", i + 2);
+
+                i = end < 0 ? length : end + 2;
+              }
+            else if (isWordChar(c))
+              {
+                int start = i;
+
+                for (; i < length && isWordChar(sql.charAt(i)); i++);
+
+                tokens.add(sql.substring(start, i).toLowerCase());
+              }
+            else
+              {
+                if (c == '(' || c == ')' || c == ',')
+                  tokens.add(String.valueOf(c));
+
+                i++;
+              }
+          }
+
+        return tokens;
+      }
+
+    static boolean isWordChar(char c)
+      {
+        return Character.isLetterOrDigit(c) || c == '_' || c == '$' || c == '#' || c == '.' || c == '"' || c == '`' || c == '[' || c == ']';
+      }
+
+    static boolean isIdentifier(String token)
+      {
+        return isWordChar(token.charAt(0)) && !KEYWORDS.contains(token);
+      }
+
+    /* removes quotes and any catalog/schema qualifiers */
+    static String getTableName(String name)
+      {
+        StringBuffer tableName = new StringBuffer();
+
+        for (int i = name.lastIndexOf('.') + 1; i < name.length(); i++)
+          {
+            char c = name.charAt(i);
+
+            if (c != '"' && c != '`' && c != '[' && c != ']')
+              tableName.append(c);
+          }
+
+        return tableName.toString();
+      }
+
+    static class Entry
+      {
+        List rows;
+        String[] tables;
+        long size, time = System.nanoTime();
+
+        Entry(List rows, String[] tables, long size)
+          {
+            this.rows = rows;
+            this.tables = tables;
+            this.size = size;
+          }
+      }
+  }
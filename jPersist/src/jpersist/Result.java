@@ -17,6 +17,7 @@ package jpersist;
 
 import java.io.InputStream;
 import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
 import java.lang.reflect.Proxy;
 import java.math.BigDecimal;
 import java.net.URL;
@@ -26,12 +27,19 @@ import java.sql.Clob;
 import java.sql.Date;
 import java.sql.Ref;
 import java.sql.ResultSet;
+import java.sql.SQLException;
 import java.sql.Statement;
 import java.sql.Time;
 import java.sql.Timestamp;
+import java.util.ArrayList;
 import java.util.Collection;
+import java.util.HashMap;
 import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
 import java.util.NoSuchElementException;
+import java.util.stream.Stream;
+import java.util.stream.StreamSupport;
 import java.util.logging.Level;
 import java.util.logging.Logger;
 
@@ -52,10 +60,16 @@ import jpersist.interfaces.ResultObject;
 public class Result<T> implements ResultObject<T>
   {
     private static Logger logger = Logger.getLogger(Result.class.getName());
-    private boolean isClosed, resultSetIsEmpty;
+
+    /* states of the one row lookahead used by hasNext() with forward only result sets */
+    private static final int LOOKAHEAD_NONE = 0, LOOKAHEAD_ROW = 1, LOOKAHEAD_END = 2;
+
+    private boolean isClosed, resultSetIsEmpty, isForwardOnly;
+    private int lookahead = LOOKAHEAD_NONE;
     private ResultSet resultSet;
     private Database db;
     private Class<T> cs;
+    private Map rowMappers;
     
     /**
      * Create an instance of Result by passing in a jpersist.Database instance 
@@ -71,8 +85,7 @@ public class Result<T> implements ResultObject<T>
         
         try
           {
-            boolean beforeFirst = resultSet.isBeforeFirst(), afterLast = resultSet.isAfterLast();
-            resultSetIsEmpty = !(beforeFirst || afterLast) || (beforeFirst && afterLast);
+            resultSetChanged();
           }
         catch (Exception e)
           {
@@ -98,8 +111,7 @@ public class Result<T> implements ResultObject<T>
         
         try
           {
-            boolean beforeFirst = resultSet.isBeforeFirst(), afterLast = resultSet.isAfterLast();
-            resultSetIsEmpty = !(beforeFirst || afterLast) || (beforeFirst && afterLast);
+            resultSetChanged();
           }
         catch (Exception e)
           {
@@ -107,6 +119,27 @@ public class Result<T> implements ResultObject<T>
           }
       }
 
+    /*
+     * Resets the state kept for the current result set.  Forward only result 
+     * sets (see Database.setStreamingMode()) aren't asked where they're 
+     * positioned (which is optional for them, and can make drivers read the 
+     * whole result), instead hasNext() reads one row ahead.
+     */
+    private void resultSetChanged() throws SQLException
+      {
+        rowMappers = null;
+        lookahead = LOOKAHEAD_NONE;
+        isForwardOnly = resultSet.getType() == ResultSet.TYPE_FORWARD_ONLY;
+
+        if (isForwardOnly)
+          resultSetIsEmpty = false;
+        else
+          {
+            boolean beforeFirst = resultSet.isBeforeFirst(), afterLast = resultSet.isAfterLast();
+            resultSetIsEmpty = !(beforeFirst || afterLast) || (beforeFirst && afterLast);
+          }
+      }
+
     /**
      * If class (see setClass()) is defined, iteration will return instances of 
      * class loaded with the current row of data.
@@ -116,6 +149,52 @@ public class Result<T> implements ResultObject<T>
     
     public Iterator<T> iterator() { return this; }
 
+    /**
+     * Returns a sequential stream over the remaining rows, which returns the 
+     * same objects as iteration does.  Closing the stream closes this result.
+     *
+     * @return a stream of the loaded objects (or this if class isn't defined)
+     */
+    
+    public Stream<T> stream()
+      {
+        return createStream(false);
+      }
+
+    /**
+     * Returns a parallel stream over the remaining rows.  Rows are still read 
+     * from the result set by one thread at a time, in batches, but objects 
+     * are loaded from the batches in parallel.  Associations are not loaded, 
+     * since that requires the connection.  The class must be defined (see 
+     * setClass()), otherwise the stream is sequential.  Closing the stream 
+     * closes this result.
+     *
+     * @return a parallel stream of the loaded objects
+     */
+    
+    public Stream<T> parallelStream()
+      {
+        return createStream(true);
+      }
+
+    private Stream<T> createStream(boolean parallel)
+      {
+        return StreamSupport.stream(new ResultSpliterator<T>(this, cs, parallel), parallel).onClose(new Runnable()
+          {
+            public void run()
+              {
+                try
+                  {
+                    close();
+                  }
+                catch (JPersistException e)
+                  {
+                    throw new RuntimeException(e);
+                  }
+              }
+          });
+      }
+
     /**
      * Setting the class allows next() and previous() to return loaded 
      * (with data from the current row) objects of the class.
@@ -258,15 +337,14 @@ public class Result<T> implements ResultObject<T>
             if (statement != null && statement.getMoreResults())
               {
                 resultSet = statement.getResultSet();
-                
-                boolean beforeFirst = resultSet.isBeforeFirst(), afterLast = resultSet.isAfterLast();
-                resultSetIsEmpty = !(beforeFirst || afterLast) || (beforeFirst && afterLast);
+                resultSetChanged();
                 
                 return true;
               }
             
             resultSet = null;
             resultSetIsEmpty = false;
+            rowMappers = null;
 
             return false;
           }
@@ -296,15 +374,14 @@ public class Result<T> implements ResultObject<T>
             if (statement != null && statement.getMoreResults(doWhatWithCurrent))
               {
                 resultSet = statement.getResultSet();
-                
-                boolean beforeFirst = resultSet.isBeforeFirst(), afterLast = resultSet.isAfterLast();
-                resultSetIsEmpty = !(beforeFirst || afterLast) || (beforeFirst && afterLast);
+                resultSetChanged();
                 
                 return true;
               }
             
             resultSet = null;
             resultSetIsEmpty = false;
+            rowMappers = null;
 
             return false;
           }
@@ -397,6 +474,27 @@ public class Result<T> implements ResultObject<T>
           }
       }
     
+    /**
+     * Returns the compiled row mapper for the object's class and the current 
+     * result set, or null if the class can't be mapped by column index.
+     */
+    
+    RowMapper getRowMapper(Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        if (rowMappers == null)
+          rowMappers = new HashMap();
+
+        Object rowMapper = rowMappers.get(object.getClass());
+
+        if (rowMapper == null)
+          {
+            rowMapper = RowMapper.compile(this, object);
+            rowMappers.put(object.getClass(), rowMapper != null ? rowMapper : Boolean.FALSE);
+          }
+
+        return rowMapper instanceof RowMapper ? (RowMapper)rowMapper : null;
+      }
+
     /**
      * Loads objects (using set methods that match columns in a table matched to the class name) 
      * into a collection with the results of the current ResultSet.
@@ -434,8 +532,21 @@ public class Result<T> implements ResultObject<T>
 
         try
           {
+            List objects = loadAssociations ? new ArrayList() : null;
+
+            // associations are loaded for all the objects at once (see ObjectSupport.loadAssociations(Database, List))
             while (hasNext())
-              collection.add((C)next(cs.newInstance(), loadAssociations));
+              {
+                C object = (C)next(cs.newInstance(), false);
+
+                collection.add(object);
+
+                if (loadAssociations && (!(object instanceof PersistentObject) || !((PersistentObject)object).getIgnoreAssociations()))
+                  objects.add(object);
+              }
+
+            if (objects != null && objects.size() > 0)
+              ObjectSupport.loadAssociations(getDatabase(), objects);
           }
         catch (Exception e)
           {
@@ -852,6 +963,10 @@ public class Result<T> implements ResultObject<T>
     
     /**
      * See same in java.sql.ListIterator
+     * 
+     * <p>With forward only result sets (see Database.setStreamingMode()), 
+     * hasNext() reads the next row ahead, so column values should be read 
+     * (or the object loaded with next()) before calling hasNext().
      *
      * @see java.util.ListIterator
      */
@@ -862,6 +977,14 @@ public class Result<T> implements ResultObject<T>
           {
             ResultSet resultSet = getResultSet();
             
+            if (isForwardOnly)
+              {
+                if (lookahead == LOOKAHEAD_NONE)
+                  lookahead = resultSet.next() ? LOOKAHEAD_ROW : LOOKAHEAD_END;
+
+                return lookahead == LOOKAHEAD_ROW;
+              }
+
             return !resultSetIsEmpty && (resultSet.isBeforeFirst() || !resultSet.isLast());
           }
         catch (Exception e)
@@ -976,8 +1099,20 @@ public class Result<T> implements ResultObject<T>
         try
           {
             ResultSet resultSet = getResultSet();
-            
-            if (resultSet.next())
+            boolean hasRow = false;
+
+            if (isForwardOnly && lookahead != LOOKAHEAD_NONE)
+              {
+                hasRow = lookahead == LOOKAHEAD_ROW;
+
+                // stay at the end once it's been reached
+                if (hasRow)
+                  lookahead = LOOKAHEAD_NONE;
+              }
+            else
+              hasRow = resultSet.next();
+
+            if (hasRow)
               {
                 if (object == null)
                   return (C)this;
@@ -0,0 +1,192 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.util.Spliterator;
+import java.util.function.Consumer;
+
+/**
+ * A spliterator over the rows of a Result.  The ResultSet is only ever read
+ * by one thread at a time, but when splitting (for parallel streams) rows
+ * are read in batches of column value snapshots (see RowMapper.readRow()),
+ * which are then mapped to objects by whichever thread processes the batch.
+ * Anything needing the database (the tables persistent objects are snapshot
+ * with) is found under the lock, so mapping threads never use the database.
+ * Objects returned by parallel streams don't have their associations loaded,
+ * since loading them would need the connection.
+ */
+
+@SuppressWarnings("unchecked")
+final class ResultSpliterator<T> implements Spliterator<T>
+  {
+    static final int BATCH_UNIT = 1024, MAX_BATCH = 1 << 16;
+
+    private Result<T> result;
+    private Class<T> cs;
+    private boolean parallel, atEnd;
+    private int batchSize;
+    private RowMapper rowMapper;
+    private ObjectSupport.ClassTables classTables;
+    private boolean rowMapperCompiled;
+
+    ResultSpliterator(Result<T> result, Class<T> cs, boolean parallel)
+      {
+        this.result = result;
+        this.cs = cs;
+        this.parallel = parallel && cs != null;
+      }
+
+    public boolean tryAdvance(Consumer<? super T> action)
+      {
+        T object;
+
+        synchronized (result)
+          {
+            if (atEnd || (atEnd = !result.hasNext()))
+              return false;
+
+            object = result.next(!parallel);
+          }
+
+        action.accept(object);
+
+        return true;
+      }
+
+    public Spliterator<T> trySplit()
+      {
+        if (!parallel)
+          return null;
+
+        try
+          {
+            synchronized (result)
+              {
+                if (atEnd)
+                  return null;
+
+                int size = Math.min(batchSize + BATCH_UNIT, MAX_BATCH), count = 0;
+                Object[] batch = new Object[size];
+
+                if (!rowMapperCompiled)
+                  {
+                    T object = cs.newInstance();
+
+                    rowMapper = result.getRowMapper(object);
+
+                    if (rowMapper != null && object instanceof PersistentObject)
+                      classTables = ObjectSupport.getClassTables(result.getDatabase(), cs, object, true, false);
+
+                    rowMapperCompiled = true;
+                  }
+
+                while (count < size && !(atEnd = !result.hasNext()))
+                  {
+                    // without a row mapper (can't compile) objects are loaded here, under the lock
+                    if (rowMapper != null)
+                      {
+                        result.next((Object)null, false);
+                        batch[count++] = rowMapper.readRow(result);
+                      }
+                    else
+                      batch[count++] = result.next(cs.newInstance(), false);
+                  }
+
+                if (count == 0)
+                  return null;
+
+                batchSize = count;
+
+                return new BatchSpliterator(batch, 0, count);
+              }
+          }
+        catch (RuntimeException e)
+          {
+            throw e;
+          }
+        catch (Exception e)
+          {
+            throw new RuntimeException(e);
+          }
+      }
+
+    public long estimateSize() { return Long.MAX_VALUE; }
+
+    public int characteristics() { return ORDERED | NONNULL; }
+
+    /*
+     * A batch of rows read by trySplit(), either loaded objects or row
+     * snapshots that are mapped when they are consumed.
+     */
+    final class BatchSpliterator implements Spliterator<T>
+      {
+        private Object[] batch;
+        private int index, fence;
+
+        BatchSpliterator(Object[] batch, int index, int fence)
+          {
+            this.batch = batch;
+            this.index = index;
+            this.fence = fence;
+          }
+
+        public boolean tryAdvance(Consumer<? super T> action)
+          {
+            if (index >= fence)
+              return false;
+
+            Object row = batch[index];
+
+            batch[index++] = null;
+            action.accept(getObject(row));
+
+            return true;
+          }
+
+        public Spliterator<T> trySplit()
+          {
+            int middle = (index + fence) >>> 1;
+
+            if (middle <= index)
+              return null;
+
+            BatchSpliterator prefix = new BatchSpliterator(batch, index, middle);
+
+            index = middle;
+
+            return prefix;
+          }
+
+        private T getObject(Object row)
+          {
+            if (rowMapper == null)
+              return (T)row;
+
+            try
+              {
+                return (T)ObjectSupport.loadObject(classTables, cs.newInstance(), rowMapper, (Object[])row);
+              }
+            catch (Exception e)
+              {
+                throw new RuntimeException(e);
+              }
+          }
+
+        public long estimateSize() { return fence - index; }
+
+        public int characteristics() { return ORDERED | NONNULL | SIZED | SUBSIZED; }
+      }
+  }
@@ -0,0 +1,610 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.lang.invoke.LambdaMetafactory;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.ResultSet;
+import java.sql.ResultSetMetaData;
+import java.sql.SQLException;
+import java.sql.Types;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.BiConsumer;
+import java.util.function.ObjDoubleConsumer;
+import java.util.function.ObjIntConsumer;
+import java.util.function.ObjLongConsumer;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+import jcommontk.object.ObjectAccessors;
+import jcommontk.object.ObjectConverter;
+import jpersist.annotations.ConcreteTableInheritance;
+import jpersist.annotations.SingleTableInheritance;
+import jpersist.interfaces.ColumnMapping;
+
+/**
+ * A row mapper compiled for a class and a result set (see
+ * Database.setCompiledRowMapping()).  The set methods of the class are matched
+ * to result set columns by index once, when the mapper is compiled, and each
+ * row is then loaded with typed ResultSet calls (getInt(), getLong(),
+ * getDouble(), getString(), ...) into set methods invoked through accessors
+ * generated with LambdaMetafactory (falling back to reflection where the set
+ * method can't be linked directly).
+ * <p>
+ * Values are converted as ObjectFiller converts them when loading by name,
+ * including null columns, which are only set (null, or zero/false for
+ * primitives) where loading by name would set them.
+ * <p>
+ * Mappers are only compiled for classes that match tables; classes without
+ * table information are loaded by name as before.
+ */
+
+@SuppressWarnings("unchecked")
+final class RowMapper
+  {
+    private static Logger logger = Logger.getLogger(RowMapper.class.getName());
+
+    /* per class, the accessor generated for each set method (or the method itself if one can't be generated) */
+    private static ClassValue generatedSetters = new ClassValue()
+      {
+        protected Object computeValue(Class c)
+          {
+            return new ConcurrentHashMap();
+          }
+      };
+
+    private MappedTable[] mappedTables;
+    private int valueCount;
+
+    private RowMapper(MappedTable[] mappedTables)
+      {
+        this.mappedTables = mappedTables;
+
+        for (int i = 0; i < mappedTables.length; i++)
+          valueCount += mappedTables[i].columnSetters.length + mappedTables[i].keyNames.length;
+      }
+
+    /**
+     * Returns a row mapper for the object's class and the result's current
+     * result set, or null if the class can't be mapped by index.
+     */
+
+    static RowMapper compile(final Result result, final Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        final ResultSet resultSet = result.getResultSet();
+        final List mappings = new ArrayList();
+        final boolean[] compilable = { true };
+
+        ObjectSupport.processClasses(result.getDatabase(), object.getClass(), object, false, false, false, false, null, new ObjectSupport.ClassHandler()
+          {
+            public void processClass(Class objectClass, Object obj, MetaData.Table table, int numberTables, char tableAlias, Map valuesMap, Set selectableColumns) throws JPersistException, SQLException
+              {
+                if (table == null)
+                  compilable[0] = false;
+                else if (compilable[0])
+                  {
+                    MappedTable mappedTable = compileTable(result, resultSet, objectClass, object, table, tableAlias);
+
+                    if (mappedTable == null)
+                      compilable[0] = false;
+                    else
+                      mappings.add(mappedTable);
+                  }
+              }
+          });
+
+        if (!compilable[0] || mappings.size() == 0)
+          {
+            if (logger.isLoggable(Level.FINE))
+              logger.fine("Class " + object.getClass().getName() + " can't be mapped by column index; loading by column name");
+
+            return null;
+          }
+
+        return new RowMapper((MappedTable[])mappings.toArray(new MappedTable[mappings.size()]));
+      }
+
+    static MappedTable compileTable(Result result, ResultSet resultSet, Class objectClass, Object object, MetaData.Table table, char tableAlias) throws JPersistException, SQLException
+      {
+        ResultSetMetaData resultSetMetaData = resultSet.getMetaData();
+        Class declaringClass = objectClass;
+        ObjectAccessors.Accessor[] setters = null;
+        List columnSetters = new ArrayList();
+        Set memberSet = new HashSet();
+
+        // as with LoadClassHandler, inheritance annotations load all set methods
+        if (objectClass.isAnnotationPresent(SingleTableInheritance.class) || objectClass.isAnnotationPresent(ConcreteTableInheritance.class))
+          declaringClass = null;
+
+        setters = ObjectAccessors.getAccessors(declaringClass != null ? declaringClass : object.getClass()).getSetters();
+
+        for (int i = 0; i < setters.length; i++)
+          {
+            String valueName = setters[i].getValueName();
+
+            if ((declaringClass == null || setters[i].getDeclaringClass().equals(declaringClass))
+                  && valueName != null && memberSet.add(valueName) && setters[i].getParameterTypes().length == 1)
+              {
+                MetaData.Table.Column column = table.getColumn(result.getDatabase().getColumnMapper(), valueName, object);
+
+                if (column != null)
+                  {
+                    int index = findColumn(resultSet, column.getColumnName(), tableAlias);
+                    Boolean setsNulls = getSetsNulls(result, table, object, setters[i], column);
+
+                    if (setsNulls == null)
+                      return null;
+
+                    if (index > 0)
+                      columnSetters.add(createColumnSetter(setters[i], index, resultSetMetaData.getColumnType(index), setsNulls.booleanValue()));
+                    else if (logger.isLoggable(Level.FINE))
+                      logger.fine("Column " + column.getColumnName() + " is not in the result set");
+                  }
+              }
+          }
+
+        Map primaryKeys = table.getPrimaryKeys();
+        String[] keyNames = new String[primaryKeys.size()];
+        int[] keyIndexes = new int[keyNames.length];
+        int k = 0;
+
+        for (Iterator it = primaryKeys.keySet().iterator(); it.hasNext(); k++)
+          {
+            keyNames[k] = (String)it.next();
+
+            // missing keys are an error when loading by name, so leave them to that path
+            if ((keyIndexes[k] = findColumn(resultSet, keyNames[k], tableAlias)) < 1)
+              return null;
+          }
+
+        return new MappedTable((ColumnSetter[])columnSetters.toArray(new ColumnSetter[columnSetters.size()]), keyNames, keyIndexes);
+      }
+
+    /*
+     * Returns whether loading by name sets the property when its column is null,
+     * or null if it can't be mapped by index.  ObjectFiller retries a null value
+     * with the underlined and lowercase names of the property, and skips the
+     * property when either doesn't match a column, or reads that column when
+     * it's a different one.
+     */
+    static Boolean getSetsNulls(Result result, MetaData.Table table, Object object, ObjectAccessors.Accessor setter, MetaData.Table.Column column) throws JPersistException
+      {
+        ColumnMapping columnMapper = result.getDatabase().getColumnMapper();
+        MetaData.Table.Column underlineColumn = table.getColumn(columnMapper, setter.getUnderlineValueName(), object),
+                              lowerCaseColumn = table.getColumn(columnMapper, setter.getLowerCaseValueName(), object);
+
+        if ((underlineColumn != null && !underlineColumn.getColumnName().equals(column.getColumnName()))
+              || (lowerCaseColumn != null && !lowerCaseColumn.getColumnName().equals(column.getColumnName())))
+          return null;
+
+        return Boolean.valueOf(underlineColumn != null && lowerCaseColumn != null);
+      }
+
+    static int findColumn(ResultSet resultSet, String columnName, char tableAlias)
+      {
+        try
+          {
+            return resultSet.findColumn(columnName);
+          }
+        catch (SQLException e)
+          {
+            try
+              {
+                return resultSet.findColumn(tableAlias + "." + columnName);
+              }
+            catch (SQLException e2)
+              {
+                return 0;
+              }
+          }
+      }
+
+    /**
+     * Loads the object with the current row.
+     */
+
+    void mapRow(Result result, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+      {
+        ResultSet resultSet = result.getResultSet();
+        boolean isPersistentObject = object instanceof PersistentObject;
+
+        for (int i = 0; i < mappedTables.length; i++)
+          {
+            MappedTable mapping = mappedTables[i];
+
+            if (isPersistentObject && mapping.keyNames.length == 0)
+              ((PersistentObject)object).setObjectPersistence(PersistentObject.MISSING_ROW_ID);
+
+            for (int i2 = 0; i2 < mapping.columnSetters.length; i2++)
+              mapping.columnSetters[i2].set(result, resultSet, object);
+
+            if (isPersistentObject)
+              for (int i2 = 0; i2 < mapping.keyNames.length; i2++)
+                ((PersistentObject)object).getObjectKeyValues().put(mapping.keyNames[i2], resultSet.getObject(mapping.keyIndexes[i2]));
+          }
+      }
+
+    /**
+     * Returns the current row's values, as mapRow() would set them, so the
+     * row can be mapped later (and on another thread) with mapRow(Object[], Object).
+     */
+
+    Object[] readRow(Result result) throws JPersistException, SQLException
+      {
+        ResultSet resultSet = result.getResultSet();
+        Object[] row = new Object[valueCount];
+        int v = 0;
+
+        for (int i = 0; i < mappedTables.length; i++)
+          {
+            MappedTable mapping = mappedTables[i];
+
+            for (int i2 = 0; i2 < mapping.columnSetters.length; i2++)
+              row[v++] = mapping.columnSetters[i2].read(result, resultSet);
+
+            for (int i2 = 0; i2 < mapping.keyNames.length; i2++)
+              row[v++] = resultSet.getObject(mapping.keyIndexes[i2]);
+          }
+
+        return row;
+      }
+
+    /**
+     * Loads the object with a row read by readRow().
+     */
+
+    void mapRow(Object[] row, Object object) throws IllegalAccessException, InvocationTargetException
+      {
+        boolean isPersistentObject = object instanceof PersistentObject;
+        int v = 0;
+
+        for (int i = 0; i < mappedTables.length; i++)
+          {
+            MappedTable mapping = mappedTables[i];
+
+            if (isPersistentObject && mapping.keyNames.length == 0)
+              ((PersistentObject)object).setObjectPersistence(PersistentObject.MISSING_ROW_ID);
+
+            for (int i2 = 0; i2 < mapping.columnSetters.length; i2++, v++)
+              if (row[v] != ColumnSetter.NOT_SET)
+                mapping.columnSetters[i2].setValue(object, row[v]);
+
+            for (int i2 = 0; i2 < mapping.keyNames.length; i2++, v++)
+              if (isPersistentObject)
+                ((PersistentObject)object).getObjectKeyValues().put(mapping.keyNames[i2], row[v]);
+          }
+      }
+
+    static final class MappedTable
+      {
+        ColumnSetter[] columnSetters;
+        String[] keyNames;
+        int[] keyIndexes;
+
+        MappedTable(ColumnSetter[] columnSetters, String[] keyNames, int[] keyIndexes)
+          {
+            this.columnSetters = columnSetters;
+            this.keyNames = keyNames;
+            this.keyIndexes = keyIndexes;
+          }
+      }
+
+    /*
+     * Column readers.  Typed reads are only used where they give the same value
+     * ObjectConverter would produce from getObject() (integral columns into
+     * integral types, character columns into strings, and so on), everything
+     * else is read and converted as before.
+     */
+
+    static final int READ_CONVERTED = 0, READ_STRING = 1, READ_INT = 2, READ_LONG = 3, READ_DOUBLE = 4,
+                     READ_FLOAT = 5, READ_SHORT = 6, READ_BOOLEAN = 7;
+
+    static ColumnSetter createColumnSetter(ObjectAccessors.Accessor setter, int index, int sqlType, boolean setsNulls)
+      {
+        Class type = setter.getType();
+        Method method = setter.getMethod();
+        int readType = READ_CONVERTED;
+        boolean tinyOrSmall = sqlType == Types.TINYINT || sqlType == Types.SMALLINT,
+                integral = tinyOrSmall || sqlType == Types.INTEGER || sqlType == Types.BIGINT,
+                floating = sqlType == Types.REAL || sqlType == Types.FLOAT || sqlType == Types.DOUBLE,
+                character = sqlType == Types.CHAR || sqlType == Types.VARCHAR || sqlType == Types.LONGVARCHAR
+                            || sqlType == Types.NCHAR || sqlType == Types.NVARCHAR || sqlType == Types.LONGNVARCHAR;
+
+        if (type == String.class && character)
+          readType = READ_STRING;
+        else if ((type == int.class || type == Integer.class) && (tinyOrSmall || sqlType == Types.INTEGER))
+          readType = READ_INT;
+        else if ((type == long.class || type == Long.class) && integral)
+          readType = READ_LONG;
+        else if ((type == double.class || type == Double.class) && (integral || floating))
+          readType = READ_DOUBLE;
+        else if ((type == float.class || type == Float.class) && (tinyOrSmall || sqlType == Types.REAL))
+          readType = READ_FLOAT;
+        else if ((type == short.class || type == Short.class) && tinyOrSmall)
+          readType = READ_SHORT;
+        else if ((type == boolean.class || type == Boolean.class) && (sqlType == Types.BOOLEAN || sqlType == Types.BIT))
+          readType = READ_BOOLEAN;
+
+        Object accessor = null;
+
+        if (readType == READ_INT && type == int.class)
+          {
+            if ((accessor = generateSetter(method, ObjIntConsumer.class, int.class)) != null)
+              return new IntColumnSetter(index, setsNulls, (ObjIntConsumer)accessor);
+          }
+        else if (readType == READ_LONG && type == long.class)
+          {
+            if ((accessor = generateSetter(method, ObjLongConsumer.class, long.class)) != null)
+              return new LongColumnSetter(index, setsNulls, (ObjLongConsumer)accessor);
+          }
+        else if (readType == READ_DOUBLE && type == double.class)
+          {
+            if ((accessor = generateSetter(method, ObjDoubleConsumer.class, double.class)) != null)
+              return new DoubleColumnSetter(index, setsNulls, (ObjDoubleConsumer)accessor);
+          }
+
+        return new ObjectColumnSetter(index, setsNulls, readType, type, method, (BiConsumer)generateSetter(method, BiConsumer.class, Object.class));
+      }
+
+    /**
+     * Returns an instance of functionalInterface that invokes the set method
+     * directly, or null if one can't be generated (in which case the method
+     * is invoked reflectively).
+     */
+
+    static Object generateSetter(Method method, Class functionalInterface, Class valueType)
+      {
+        Map setters = (Map)generatedSetters.get(method.getDeclaringClass());
+        List key = new ArrayList(2);
+
+        key.add(method);
+        key.add(functionalInterface);
+
+        Object setter = setters.get(key);
+
+        if (setter == null)
+          {
+            setter = method;
+
+            try
+              {
+                Class declaringClass = method.getDeclaringClass();
+
+                // the generated class links against the declaring class through our class loader
+                if (Class.forName(declaringClass.getName(), false, RowMapper.class.getClassLoader()) == declaringClass)
+                  {
+                    MethodHandles.Lookup lookup = MethodHandles.lookup();
+                    MethodHandle handle = lookup.unreflect(method);
+                    MethodType instantiatedType = MethodType.methodType(void.class, declaringClass, valueType == Object.class ? method.getParameterTypes()[0] : valueType);
+
+                    if (valueType == Object.class && instantiatedType.parameterType(1).isPrimitive())
+                      instantiatedType = instantiatedType.changeParameterType(1, MethodType.methodType(instantiatedType.parameterType(1)).wrap().returnType());
+
+                    setter = LambdaMetafactory.metafactory(lookup, "accept", MethodType.methodType(functionalInterface),
+                                                           MethodType.methodType(void.class, Object.class, valueType),
+                                                           handle, instantiatedType).getTarget().invoke();
+                  }
+              }
+            catch (Throwable t)
+              {
+                if (logger.isLoggable(Level.FINE))
+                  logger.fine("Set method " + method + " will be invoked reflectively: " + t.toString());
+              }
+
+            setters.put(key, setter);
+          }
+
+        return setter instanceof Method ? null : setter;
+      }
+
+    abstract static class ColumnSetter
+      {
+        /* read() returns this for null columns that aren't set */
+        static final Object NOT_SET = new Object();
+
+        int index;
+        boolean setsNulls;
+
+        ColumnSetter(int index, boolean setsNulls)
+          {
+            this.index = index;
+            this.setsNulls = setsNulls;
+          }
+
+        /* reads the column and sets it (without boxing where possible) */
+        abstract void set(Result result, ResultSet resultSet, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException;
+
+        /* reads the column value, for setValue(), or NOT_SET */
+        abstract Object read(Result result, ResultSet resultSet) throws JPersistException, SQLException;
+
+        abstract void setValue(Object object, Object value) throws IllegalAccessException, InvocationTargetException;
+      }
+
+    static final class IntColumnSetter extends ColumnSetter
+      {
+        ObjIntConsumer setter;
+
+        IntColumnSetter(int index, boolean setsNulls, ObjIntConsumer setter)
+          {
+            super(index, setsNulls);
+            this.setter = setter;
+          }
+
+        void set(Result result, ResultSet resultSet, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            int value = resultSet.getInt(index);
+
+            if (setsNulls || !resultSet.wasNull())
+              setter.accept(object, value);
+          }
+
+        Object read(Result result, ResultSet resultSet) throws SQLException
+          {
+            int value = resultSet.getInt(index);
+
+            return setsNulls || !resultSet.wasNull() ? Integer.valueOf(value) : NOT_SET;
+          }
+
+        void setValue(Object object, Object value)
+          {
+            setter.accept(object, ((Integer)value).intValue());
+          }
+      }
+
+    static final class LongColumnSetter extends ColumnSetter
+      {
+        ObjLongConsumer setter;
+
+        LongColumnSetter(int index, boolean setsNulls, ObjLongConsumer setter)
+          {
+            super(index, setsNulls);
+            this.setter = setter;
+          }
+
+        void set(Result result, ResultSet resultSet, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            long value = resultSet.getLong(index);
+
+            if (setsNulls || !resultSet.wasNull())
+              setter.accept(object, value);
+          }
+
+        Object read(Result result, ResultSet resultSet) throws SQLException
+          {
+            long value = resultSet.getLong(index);
+
+            return setsNulls || !resultSet.wasNull() ? Long.valueOf(value) : NOT_SET;
+          }
+
+        void setValue(Object object, Object value)
+          {
+            setter.accept(object, ((Long)value).longValue());
+          }
+      }
+
+    static final class DoubleColumnSetter extends ColumnSetter
+      {
+        ObjDoubleConsumer setter;
+
+        DoubleColumnSetter(int index, boolean setsNulls, ObjDoubleConsumer setter)
+          {
+            super(index, setsNulls);
+            this.setter = setter;
+          }
+
+        void set(Result result, ResultSet resultSet, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            double value = resultSet.getDouble(index);
+
+            if (setsNulls || !resultSet.wasNull())
+              setter.accept(object, value);
+          }
+
+        Object read(Result result, ResultSet resultSet) throws SQLException
+          {
+            double value = resultSet.getDouble(index);
+
+            return setsNulls || !resultSet.wasNull() ? Double.valueOf(value) : NOT_SET;
+          }
+
+        void setValue(Object object, Object value)
+          {
+            setter.accept(object, ((Double)value).doubleValue());
+          }
+      }
+
+    static final class ObjectColumnSetter extends ColumnSetter
+      {
+        int readType;
+        Class type;
+        Method method;
+        BiConsumer setter;
+
+        ObjectColumnSetter(int index, boolean setsNulls, int readType, Class type, Method method, BiConsumer setter)
+          {
+            super(index, setsNulls);
+            this.readType = readType;
+            this.type = type;
+            this.method = method;
+            this.setter = setter;
+          }
+
+        void set(Result result, ResultSet resultSet, Object object) throws JPersistException, SQLException, IllegalAccessException, InvocationTargetException
+          {
+            Object value = read(result, resultSet);
+
+            if (value != NOT_SET)
+              setValue(object, value);
+          }
+
+        void setValue(Object object, Object value) throws IllegalAccessException, InvocationTargetException
+          {
+            if (setter != null)
+              setter.accept(object, value);
+            else
+              method.invoke(object, new Object[] { value });
+          }
+
+        Object read(Result result, ResultSet resultSet) throws JPersistException, SQLException
+          {
+            Object value = null;
+
+            switch (readType)
+              {
+                case READ_STRING:
+                  value = resultSet.getString(index);
+                  break;
+                case READ_INT:
+                  value = Integer.valueOf(resultSet.getInt(index));
+                  break;
+                case READ_LONG:
+                  value = Long.valueOf(resultSet.getLong(index));
+                  break;
+                case READ_DOUBLE:
+                  value = Double.valueOf(resultSet.getDouble(index));
+                  break;
+                case READ_FLOAT:
+                  value = Float.valueOf(resultSet.getFloat(index));
+                  break;
+                case READ_SHORT:
+                  value = Short.valueOf(resultSet.getShort(index));
+                  break;
+                case READ_BOOLEAN:
+                  value = Boolean.valueOf(resultSet.getBoolean(index));
+                  break;
+                default:
+                  if ((value = result.getColumnValue(type, index)) != null)
+                    return ObjectConverter.convertObject(type, value);
+              }
+
+            // null columns are converted as ObjectFiller converts them (null, or zero/false for primitives), if they're set
+            if (resultSet.wasNull() || value == null)
+              return setsNulls ? ObjectConverter.convertObject(type, null) : NOT_SET;
+
+            return value;
+          }
+      }
+  }
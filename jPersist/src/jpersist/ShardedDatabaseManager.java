@@ -0,0 +1,587 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+import jpersist.interfaces.ShardFunction;
+import jpersist.interfaces.ShardKey;
+
+/**
+ * Spreads the rows of the same tables across several databases (shards), each
+ * with its own DatabaseManager.  Objects are routed to a shard by their shard
+ * key (an id, or ShardKey.getShardKey()) using a ShardFunction (see
+ * jpersist.utils.ConsistentHashShardFunction and RangeShardFunction), so
+ * loading, saving and deleting an object only touches the shard that holds it.
+ * Queries that aren't limited to a key (loadObjects(), executeQuery(),
+ * parameterizedQuery()) are run on all of the shards in parallel, and the
+ * results are merged in shard order.
+ *
+ * <p>Each shard keeps its own pool, caches and transactions, so a transaction
+ * can't span shards, and ordering, grouping and aggregates across shards
+ * (order by, count(), etc. apply to each shard's results) are left to the
+ * caller.  Objects are not moved between shards when the shard function
+ * changes.
+ *
+ * <p>For example:
+ * <pre>
+ *     ShardedDatabaseManager sdbm = new ShardedDatabaseManager(new ConsistentHashShardFunction(),
+ *                                                              dbm1, dbm2, dbm3);
+ *
+ *     Customer customer = sdbm.loadObject(customerId, Customer.class);
+ *     Collection&lt;Customer&gt; customers = sdbm.loadObjects(new ArrayList&lt;Customer&gt;(), Customer.class,
+ *                                                          "where :balance &gt; ?", 1000);
+ * </pre>
+ */
+
+public final class ShardedDatabaseManager
+  {
+    private static Logger logger = Logger.getLogger(ShardedDatabaseManager.class.getName());
+
+    private ShardFunction shardFunction;
+    private DatabaseManager[] shards;
+    private ExecutorService executor;
+
+    /**
+     * Creates a sharded database manager.
+     *
+     * @param shardFunction the function that maps shard keys to shards
+     * @param shards the database managers of the shards, in shard order
+     */
+
+    public ShardedDatabaseManager(ShardFunction shardFunction, DatabaseManager... shards)
+      {
+        if (shardFunction == null || shards == null || shards.length == 0)
+          throw new IllegalArgumentException("A shard function and at least one shard are required");
+
+        this.shardFunction = shardFunction;
+        this.shards = shards.clone();
+      }
+
+    /**
+     * Returns the number of shards.
+     *
+     * @return the number of shards
+     */
+
+    public int getShardCount() { return shards.length; }
+
+    /**
+     * Returns the database manager of a shard, for work that only applies to
+     * one shard (transactions, updates, etc.).
+     *
+     * @param shard the shard index
+     *
+     * @return the shard's database manager
+     */
+
+    public DatabaseManager getShard(int shard) { return shards[shard]; }
+
+    /**
+     * Returns the database manager of the shard for the shard key.
+     *
+     * @param shardKey the shard key (an id, customer id, etc.)
+     *
+     * @return the shard's database manager
+     *
+     * @throws JPersistException
+     */
+
+    public DatabaseManager getShardFor(Object shardKey) throws JPersistException
+      {
+        return shards[getShardIndex(shardKey)];
+      }
+
+    /* returns the index of the shard for the key */
+    int getShardIndex(Object shardKey) throws JPersistException
+      {
+        if (shardKey == null)
+          throw new JPersistException("The shard key is null");
+
+        int shard = shardFunction.getShard(shardKey, shards.length);
+
+        if (shard < 0 || shard >= shards.length)
+          throw new JPersistException("Shard function returned shard " + shard + " for " + shardKey + ", with " + shards.length + " shards");
+
+        if (logger.isLoggable(Level.FINEST))
+          logger.finest("Shard key " + shardKey + " is in shard " + shard);
+
+        return shard;
+      }
+
+    /* returns the shard key of an object, which must implement ShardKey */
+    static Object getShardKey(Object object) throws JPersistException
+      {
+        if (!(object instanceof ShardKey))
+          throw new JPersistException("Objects of " + object.getClass().getName() + " must implement ShardKey to find their shard");
+
+        return ((ShardKey)object).getShardKey();
+      }
+
+    /**
+     * Loads the object with the id from the shard for the id (the id is the shard key).
+     *
+     * @param id the id (and shard key) of the object
+     * @param cs the class of the object
+     *
+     * @return the object or null if it isn't found
+     *
+     * @throws JPersistException
+     */
+
+    public <T> T loadObject(Object id, Class<T> cs) throws JPersistException
+      {
+        return getShardFor(id).loadObject(id, cs);
+      }
+
+    /**
+     * Loads an object from the shard for the shard key.
+     *
+     * @param shardKey the shard key
+     * @param cs the class of the object
+     * @param externalClauses where, order by, etc.
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the object or null if it isn't found
+     *
+     * @throws JPersistException
+     */
+
+    public <T> T loadObject(Object shardKey, Class<T> cs, String externalClauses, Object... externalClausesParameters) throws JPersistException
+      {
+        return getShardFor(shardKey).loadObject(cs, externalClauses, externalClausesParameters);
+      }
+
+    /**
+     * Loads the object (using its values as the example) from the shard for
+     * the object's shard key.
+     *
+     * @param object the object to load, which must implement ShardKey
+     *
+     * @return the object or null if it isn't found
+     *
+     * @throws JPersistException
+     */
+
+    public <T> T loadObject(T object) throws JPersistException
+      {
+        return getShardFor(getShardKey(object)).loadObject(object);
+      }
+
+    /**
+     * Saves the object to the shard for the object's shard key.
+     *
+     * @param object the object to save, which must implement ShardKey
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+
+    public int saveObject(Object object) throws JPersistException
+      {
+        return getShardFor(getShardKey(object)).saveObject(object);
+      }
+
+    /**
+     * Saves the object to the shard for the object's shard key, with the
+     * clauses (e.g. "where :id = ?" to update a POJO).
+     *
+     * @param object the object to save, which must implement ShardKey
+     * @param externalClauses where, etc.
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+
+    public int saveObject(Object object, String externalClauses, Object... externalClausesParameters) throws JPersistException
+      {
+        return getShardFor(getShardKey(object)).saveObject(object, externalClauses, externalClausesParameters);
+      }
+
+    /**
+     * Saves the objects, grouped by shard, to all of the shards in parallel.
+     * Each shard saves its objects in its own transaction (see
+     * DatabaseManager.saveObjects()), so a failure only rolls back the
+     * objects of the shard that failed.
+     *
+     * @param objects the objects to save, which must implement ShardKey
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+
+    @SuppressWarnings("unchecked")
+    public int saveObjects(Collection<?> objects) throws JPersistException
+      {
+        final List[] shardObjects = new List[shards.length];
+
+        for (Iterator it = objects.iterator(); it.hasNext();)
+          {
+            Object object = it.next();
+            int shard = getShardIndex(getShardKey(object));
+
+            if (shardObjects[shard] == null)
+              shardObjects[shard] = new ArrayList();
+
+            shardObjects[shard].add(object);
+          }
+
+        Object[] results = forEachShard(new ShardTask()
+          {
+            Object run(int shard, DatabaseManager databaseManager) throws JPersistException
+              {
+                return shardObjects[shard] != null ? Integer.valueOf(databaseManager.saveObjects(shardObjects[shard])) : null;
+              }
+          });
+
+        int count = 0;
+
+        for (int i = 0; i < results.length; i++)
+          if (results[i] != null)
+            count += ((Integer)results[i]).intValue();
+
+        return count;
+      }
+
+    /**
+     * Deletes the object from the shard for the object's shard key.
+     *
+     * @param object the object to delete, which must implement ShardKey
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+
+    public int deleteObject(Object object) throws JPersistException
+      {
+        return getShardFor(getShardKey(object)).deleteObject(object);
+      }
+
+    /**
+     * Deletes the object from the shard for the object's shard key, with the clauses.
+     *
+     * @param object the object to delete, which must implement ShardKey
+     * @param externalClauses where, etc.
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+
+    public int deleteObject(Object object, String externalClauses, Object... externalClausesParameters) throws JPersistException
+      {
+        return getShardFor(getShardKey(object)).deleteObject(object, externalClauses, externalClausesParameters);
+      }
+
+    /**
+     * Deletes the object with the id from the shard for the id (the id is the shard key).
+     *
+     * @param id the id (and shard key) of the object
+     * @param cs the class of the object
+     *
+     * @return the number of rows updated
+     *
+     * @throws JPersistException
+     */
+
+    public int deleteObject(Object id, Class<?> cs) throws JPersistException
+      {
+        return getShardFor(id).deleteObject(id, cs);
+      }
+
+    /**
+     * Loads the objects of the class from all of the shards.
+     *
+     * @param collection the collection to add the objects to
+     * @param cs the class of the objects
+     *
+     * @return the collection
+     *
+     * @throws JPersistException
+     */
+
+    public <T> Collection<T> loadObjects(Collection<T> collection, Class<T> cs) throws JPersistException
+      {
+        return loadObjects(collection, cs, null, (Object[])null);
+      }
+
+    /**
+     * Loads the objects of the class matching the clauses from all of the shards.
+     *
+     * @param collection the collection to add the objects to
+     * @param cs the class of the objects
+     * @param externalClauses where, order by, etc. (applied to each shard)
+     * @param externalClausesParameters the parameters of the clauses
+     *
+     * @return the collection
+     *
+     * @throws JPersistException
+     */
+
+    @SuppressWarnings("unchecked")
+    public <T> Collection<T> loadObjects(Collection<T> collection, final Class<T> cs, final String externalClauses, final Object... externalClausesParameters) throws JPersistException
+      {
+        Object[] results = forEachShard(new ShardTask()
+          {
+            Object run(int shard, DatabaseManager databaseManager) throws JPersistException
+              {
+                return databaseManager.loadObjects(new ArrayList<T>(), cs, externalClauses, externalClausesParameters);
+              }
+          });
+
+        for (int i = 0; i < results.length; i++)
+          collection.addAll((Collection<T>)results[i]);
+
+        return collection;
+      }
+
+    /**
+     * Loads the objects matching the example object from all of the shards.
+     *
+     * @param collection the collection to add the objects to
+     * @param object the example object
+     *
+     * @return the collection
+     *
+     * @throws JPersistException
+     */
+
+    @SuppressWarnings("unchecked")
+    public <T> Collection<T> loadObjects(Collection<T> collection, final T object) throws JPersistException
+      {
+        Object[] results = forEachShard(new ShardTask()
+          {
+            Object run(int shard, DatabaseManager databaseManager) throws JPersistException
+              {
+                return databaseManager.loadObjects(new ArrayList<T>(), object);
+              }
+          });
+
+        for (int i = 0; i < results.length; i++)
+          collection.addAll((Collection<T>)results[i]);
+
+        return collection;
+      }
+
+    /**
+     * Runs the query on all of the shards.
+     *
+     * @param c the collection to add the rows to
+     * @param sql the query (applied to each shard)
+     *
+     * @return the collection
+     *
+     * @throws JPersistException
+     */
+
+    public Collection<Object[]> executeQuery(Collection<Object[]> c, String sql) throws JPersistException
+      {
+        return parameterizedQuery(c, false, sql, (Object[])null);
+      }
+
+    /**
+     * Runs the parameterized query on all of the shards.
+     *
+     * @param c the collection to add the rows to
+     * @param sql the query (applied to each shard)
+     * @param parameters the parameters of the query
+     *
+     * @return the collection
+     *
+     * @throws JPersistException
+     */
+
+    public Collection<Object[]> parameterizedQuery(Collection<Object[]> c, String sql, Object... parameters) throws JPersistException
+      {
+        return parameterizedQuery(c, false, sql, parameters);
+      }
+
+    /**
+     * Runs the parameterized query on all of the shards.
+     *
+     * @param c the collection to add the rows to
+     * @param singleObject true to add the first column of each row instead of the row
+     * @param sql the query (applied to each shard)
+     * @param parameters the parameters of the query
+     *
+     * @return the collection
+     *
+     * @throws JPersistException
+     */
+
+    @SuppressWarnings("unchecked")
+    public Collection<Object[]> parameterizedQuery(Collection<Object[]> c, final boolean singleObject, final String sql, final Object... parameters) throws JPersistException
+      {
+        Object[] results = forEachShard(new ShardTask()
+          {
+            Object run(int shard, DatabaseManager databaseManager) throws JPersistException
+              {
+                if (parameters == null)
+                  return databaseManager.executeQuery(new ArrayList<Object[]>(), singleObject, sql);
+
+                return databaseManager.parameterizedQuery(new ArrayList<Object[]>(), singleObject, sql, parameters);
+              }
+          });
+
+        for (int i = 0; i < results.length; i++)
+          c.addAll((Collection<Object[]>)results[i]);
+
+        return c;
+      }
+
+    /**
+     * Closes all of the shards, and the threads querying them.
+     *
+     * @throws JPersistException
+     */
+
+    public void close() throws JPersistException
+      {
+        synchronized (this)
+          {
+            if (executor != null)
+              executor.shutdown();
+
+            executor = null;
+          }
+
+        JPersistException exception = null;
+
+        for (int i = 0; i < shards.length; i++)
+          try
+            {
+              shards[i].close();
+            }
+          catch (JPersistException e)
+            {
+              if (exception == null)
+                exception = e;
+            }
+
+        if (exception != null)
+          throw exception;
+      }
+
+    /*
+     * Runs the task on all of the shards, in parallel, and returns the results
+     * in shard order.  The calling thread runs the first shard's task, while the
+     * others are run by the shard threads.  If any of the tasks fail, the first
+     * failure is thrown once all of the tasks have finished.
+     */
+    Object[] forEachShard(final ShardTask task) throws JPersistException
+      {
+        Object[] results = new Object[shards.length];
+
+        if (shards.length == 1)
+          {
+            results[0] = task.run(0, shards[0]);
+
+            return results;
+          }
+
+        Future[] futures = new Future[shards.length];
+        ExecutorService executor = getExecutor();
+
+        for (int i = 1; i < shards.length; i++)
+          {
+            final int shard = i;
+
+            futures[i] = executor.submit(new Callable<Object>()
+              {
+                public Object call() throws Exception
+                  {
+                    return task.run(shard, shards[shard]);
+                  }
+              });
+          }
+
+        JPersistException exception = null;
+
+        try
+          {
+            results[0] = task.run(0, shards[0]);
+          }
+        catch (JPersistException e)
+          {
+            exception = e;
+          }
+
+        for (int i = 1; i < shards.length; i++)
+          try
+            {
+              results[i] = futures[i].get();
+            }
+          catch (ExecutionException e)
+            {
+              if (exception == null)
+                exception = e.getCause() instanceof JPersistException ? (JPersistException)e.getCause()
+                                                                       : new JPersistException("Shard " + i + " failed", e.getCause());
+            }
+          catch (InterruptedException e)
+            {
+              for (int j = i; j < shards.length; j++)
+                futures[j].cancel(true);
+
+              Thread.currentThread().interrupt();
+
+              throw new JPersistException(e);
+            }
+
+        if (exception != null)
+          throw exception;
+
+        return results;
+      }
+
+    synchronized ExecutorService getExecutor()
+      {
+        if (executor == null)
+          executor = Executors.newCachedThreadPool(new ThreadFactory()
+            {
+              public Thread newThread(Runnable runnable)
+                {
+                  Thread thread = new Thread(runnable, "jPersist shard worker");
+
+                  thread.setDaemon(true);
+
+                  return thread;
+                }
+            });
+
+        return executor;
+      }
+
+    static abstract class ShardTask
+      {
+        abstract Object run(int shard, DatabaseManager databaseManager) throws JPersistException;
+      }
+  }
@@ -0,0 +1,122 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A compiled SQL statement generated for an object operation.  The plan holds
+ * the SQL text and, for each parameter, the column whose value is bound (either
+ * the object's value or the persistent object's key value).  Plans are cached in
+ * MetaData keyed by the operation's shape (operation, class, tables, the state of
+ * each column and the external clauses), so objects with the same shape only
+ * need their values bound.
+ */
+
+@SuppressWarnings("unchecked")
+final class SqlPlan
+  {
+    static final int OBJECT_VALUE = 0;
+    static final int KEY_VALUE = 1;
+
+    private String sql;
+    private MetaData.Table.Column[] columns;
+    private int[] sources;
+    private boolean hasParameters;
+
+    SqlPlan(String sql, Binder binder, boolean hasParameters)
+      {
+        this.sql = sql;
+        this.columns = (MetaData.Table.Column[])binder.columns.toArray(new MetaData.Table.Column[binder.columns.size()]);
+        this.sources = new int[binder.sources.size()];
+        this.hasParameters = hasParameters;
+
+        for (int i = 0; i < sources.length; i++)
+          sources[i] = ((Integer)binder.sources.get(i)).intValue();
+      }
+
+    String getSql() { return sql; }
+
+    /**
+     * Returns true if the statement has parameters to bind.
+     */
+
+    boolean isParameterized() { return columns.length > 0 || hasParameters; }
+
+    /**
+     * Returns the parameter values for the statement, taken from the values map
+     * (object values), the persistent object (key values) and the external clause
+     * parameters.
+     */
+
+    Object[] bind(Object object, Map valuesMap, Object[] parameters)
+      {
+        int parameterCount = parameters != null ? parameters.length : 0;
+        Object[] values = new Object[columns.length + parameterCount];
+
+        for (int i = 0; i < columns.length; i++)
+          if (sources[i] == KEY_VALUE)
+            values[i] = ((PersistentObject)object).getObjectKeyValue(columns[i].getColumnName());
+          else
+            values[i] = valuesMap.get(columns[i]);
+
+        if (parameterCount > 0)
+          System.arraycopy(parameters, 0, values, columns.length, parameterCount);
+
+        return values;
+      }
+
+    /**
+     * Collects the parameter sources while the SQL is being generated.
+     */
+
+    static class Binder
+      {
+        List columns = new ArrayList(), sources = new ArrayList();
+
+        void add(MetaData.Table.Column column, int source)
+          {
+            columns.add(column);
+            sources.add(new Integer(source));
+          }
+
+        int size() { return columns.size(); }
+      }
+
+    /**
+     * Builds a shape string for a table, one character per column (in column
+     * order) representing the column's state for the operation.
+     */
+
+    static class Shape
+      {
+        char[] states;
+
+        Shape(MetaData.Table table)
+          {
+            states = new char[table.getColumnCount()];
+          }
+
+        void set(MetaData.Table.Column column, int state)
+          {
+            states[column.getIndex()] = (char)('0' + state);
+          }
+
+        public String toString() { return new String(states); }
+      }
+  }
@@ -0,0 +1,177 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist;
+
+import java.sql.PreparedStatement;
+import java.util.IdentityHashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.logging.Level;
+import java.util.logging.Logger;
+
+/**
+ * A least recently used cache of prepared statements for a single connection.
+ * Statements are keyed by SQL, result set type and concurrency, and the generated
+ * keys requested.  Statements dropped from the cache are closed, unless the
+ * database is still using them (in which case they are closed as uncached
+ * statements once the database is done with them).
+ */
+
+@SuppressWarnings("unchecked")
+final class StatementCache
+  {
+    private static Logger logger = Logger.getLogger(StatementCache.class.getName());
+
+    private Database database;
+    private Map statements, cachedStatements = new IdentityHashMap();
+    private int maxSize;
+    private long hits, misses;
+
+    static class Key
+      {
+        String sql, keysSpec;
+        int resultSetType, resultSetConcurrency, hashCode;
+
+        Key(String sql, int resultSetType, int resultSetConcurrency, List keys)
+          {
+            this.sql = sql;
+            this.resultSetType = resultSetType;
+            this.resultSetConcurrency = resultSetConcurrency;
+
+            if (keys == null)
+              keysSpec = "";
+            else if (keys.size() == 0)
+              keysSpec = "*";
+            else
+              {
+                StringBuffer buffer = new StringBuffer();
+
+                for (Iterator it = keys.iterator(); it.hasNext();)
+                  buffer.append(it.next()).append(',');
+
+                keysSpec = buffer.toString();
+              }
+
+            hashCode = ((sql.hashCode() * 31 + keysSpec.hashCode()) * 31 + resultSetType) * 31 + resultSetConcurrency;
+          }
+
+        public int hashCode() { return hashCode; }
+
+        public boolean equals(Object object)
+          {
+            if (!(object instanceof Key))
+              return false;
+
+            Key key = (Key)object;
+
+            return hashCode == key.hashCode && resultSetType == key.resultSetType
+                   && resultSetConcurrency == key.resultSetConcurrency
+                   && sql.equals(key.sql) && keysSpec.equals(key.keysSpec);
+          }
+      }
+
+    StatementCache(Database database, int maxSize)
+      {
+        this.database = database;
+        this.maxSize = maxSize;
+
+        statements = new LinkedHashMap(16, 0.75f, true)
+          {
+            protected boolean removeEldestEntry(Map.Entry eldest)
+              {
+                if (size() > StatementCache.this.maxSize)
+                  {
+                    release((PreparedStatement)eldest.getValue());
+
+                    return true;
+                  }
+
+                return false;
+              }
+          };
+      }
+
+    int getMaxSize() { return maxSize; }
+
+    void setMaxSize(int maxSize)
+      {
+        this.maxSize = maxSize;
+
+        for (Iterator it = statements.values().iterator(); statements.size() > maxSize && it.hasNext();)
+          {
+            release((PreparedStatement)it.next());
+            it.remove();
+          }
+      }
+
+    long getHits() { return hits; }
+
+    long getMisses() { return misses; }
+
+    int size() { return statements.size(); }
+
+    boolean contains(Object statement)
+      {
+        return cachedStatements.containsKey(statement);
+      }
+
+    PreparedStatement get(Key key)
+      {
+        return (PreparedStatement)statements.get(key);
+      }
+
+    void recordHit() { hits++; }
+
+    void recordMiss() { misses++; }
+
+    void put(Key key, PreparedStatement statement)
+      {
+        cachedStatements.put(statement, key);
+        statements.put(key, statement);
+      }
+
+    /**
+     * Closes and removes all cached statements (statements still in use are
+     * closed as uncached statements once the database is done with them).
+     */
+
+    void clear()
+      {
+        for (Iterator it = statements.values().iterator(); it.hasNext();)
+          release((PreparedStatement)it.next());
+
+        statements.clear();
+        cachedStatements.clear();
+      }
+
+    private void release(PreparedStatement statement)
+      {
+        cachedStatements.remove(statement);
+
+        if (!database.isStatementInUse(statement))
+          try
+            {
+              statement.close();
+            }
+          catch (Exception e)
+            {
+              if (logger.isLoggable(Level.FINE))
+                logger.fine("Error closing cached statement: " + e.toString());
+            }
+      }
+  }
@@ -16,6 +16,7 @@
 package jpersist;
 
 import java.sql.Savepoint;
+import java.util.Collection;
 import java.util.Set;
 
 /**
@@ -111,6 +112,14 @@ public abstract class TransactionManager
         return database.saveObject(object, nullValuesToInclude, externalClauses, externalClausesParameters);
       }
     
+    /**
+     * Calls the jpersist.Database version.
+     */
+    public int saveObjects(Collection<?> objects) throws JPersistException
+      {
+        return database.saveObjects(objects);
+      }
+    
     /**
      * Calls the jpersist.Database version.
      */
@@ -176,10 +185,16 @@ public abstract class TransactionManager
     /**
      * Call this method to execute the transaction on the updates defined in the run() method.  
      * If no exceptions occur the transaction will be commited.  Othwerwise, the 
-     * transaction will be rolled back.
+     * transaction will be rolled back.  Reads with the DatabaseManager during the
+     * transaction go to the primary database, rather than read replicas.
      */
     public void executeTransaction() throws JPersistException
       {
+        DatabaseManager databaseManager = database.getDatabaseManager();
+
+        if (databaseManager != null)
+          databaseManager.pinReadsToPrimary(true);
+
         try
           {
             database.beginTransaction();
@@ -194,6 +209,9 @@ public abstract class TransactionManager
           }
         finally
           {
+            if (databaseManager != null)
+              databaseManager.pinReadsToPrimary(false);
+
             database.endTransaction();
             
             if (closeDatabase)
@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.  
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT 
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license 
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not, 
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.annotations;
+
+import java.lang.annotation.ElementType;
+import java.lang.annotation.Retention;
+import java.lang.annotation.RetentionPolicy;
+import java.lang.annotation.Target;
+
+/**
+ * This annotation can be used if the database changes rows of the class's tables 
+ * when they're saved (with triggers, etc.).  Persistent objects are then always 
+ * reloaded following a save (see PersistentObject.setReloadAfterSave()), rather 
+ * than only when the database provided some of the values (column defaults, 
+ * generated columns, keys that couldn't be retrieved).
+ */
+
+@Target(ElementType.TYPE)
+@Retention(RetentionPolicy.RUNTIME)
+public @interface ReloadAfterSave { }
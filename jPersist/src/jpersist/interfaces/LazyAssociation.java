@@ -0,0 +1,33 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.  
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT 
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or 
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license 
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not, 
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.interfaces;
+
+/**
+ * This interface is implemented by the collections jPersist sets on objects 
+ * in place of associations when lazy associations are enabled (see 
+ * jpersist.Database.setLazyAssociations()).  The association is queried 
+ * the first time the collection is accessed.
+ */
+
+public interface LazyAssociation 
+  {
+    /**
+     * Returns true if the association has been queried.
+     *
+     * @return true if the association has been queried
+     */
+    boolean isLoaded();
+  }
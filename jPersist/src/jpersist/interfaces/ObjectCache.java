@@ -0,0 +1,52 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.interfaces;
+
+/**
+ * This interface is optionally implemented to provide the storage for a class's
+ * second level cache (see DatabaseManager.setObjectCache()).  jPersist handles
+ * the keys, copying objects in and out of the cache, and invalidation, so an
+ * implementation only needs to store objects, and is free to drop them (for
+ * expiration, size limits, etc.) at any time.  Implementations must be thread safe.
+ */
+
+public interface ObjectCache
+  {
+    /**
+     * Returns the cached object for the key.
+     *
+     * @param key the key
+     *
+     * @return the cached object, or null if it isn't cached
+     */
+
+    Object get(Object key);
+
+    /**
+     * Caches the object for the key.
+     *
+     * @param key the key
+     * @param object the object to cache
+     */
+
+    void put(Object key, Object object);
+
+    /**
+     * Removes all of the cached objects.
+     */
+
+    void clear();
+  }
@@ -0,0 +1,41 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.interfaces;
+
+import jpersist.JPersistException;
+
+/**
+ * This interface is implemented to map shard keys to shards for a
+ * ShardedDatabaseManager (see jpersist.utils.ConsistentHashShardFunction and
+ * jpersist.utils.RangeShardFunction).  Implementations must be thread safe,
+ * and must always map a key to the same shard.
+ */
+
+public interface ShardFunction
+  {
+    /**
+     * Returns the shard the key belongs to.
+     *
+     * @param shardKey the shard key (not null)
+     * @param shardCount the number of shards
+     *
+     * @return the shard index, from 0 to shardCount - 1
+     *
+     * @throws JPersistException if the key can't be mapped
+     */
+
+    int getShard(Object shardKey, int shardCount) throws JPersistException;
+  }
@@ -0,0 +1,32 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.interfaces;
+
+/**
+ * This interface is implemented by objects stored in a ShardedDatabaseManager,
+ * so the shard holding the object can be found from the object itself.
+ */
+
+public interface ShardKey
+  {
+    /**
+     * Returns the key that determines the object's shard (e.g. a customer id).
+     *
+     * @return the shard key
+     */
+
+    Object getShardKey();
+  }
@@ -0,0 +1,143 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.utils;
+
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import jcommontk.utils.ValueHasher;
+import jpersist.interfaces.ShardFunction;
+
+/**
+ * Maps shard keys to shards with consistent hashing.  Each shard owns a number
+ * of points (virtual nodes) on a hash ring, and a key belongs to the shard
+ * owning the first point at or after the key's hash.  The points of a shard
+ * don't depend on the number of shards, so adding a shard only moves the keys
+ * the new shard takes over (about 1 / shards of them).  Keys are hashed by
+ * value (see jcommontk.utils.ValueHasher), so the mapping is the same across JVMs.
+ * Integral numbers hash the same regardless of type (as RangeShardFunction
+ * compares them), so an Integer, a Long, a BigInteger and a BigDecimal of 
+ * any scale with the same whole value map to the same shard.
+ */
+
+public class ConsistentHashShardFunction implements ShardFunction
+  {
+    public static final int DEFAULT_VIRTUAL_NODES = 160;
+
+    private int virtualNodes;
+    private volatile Ring ring;
+
+    public ConsistentHashShardFunction()
+      {
+        this(DEFAULT_VIRTUAL_NODES);
+      }
+
+    /**
+     * Creates a consistent hash shard function.
+     *
+     * @param virtualNodes the number of points each shard has on the ring (more points spread keys more evenly)
+     */
+
+    public ConsistentHashShardFunction(int virtualNodes)
+      {
+        if (virtualNodes < 1)
+          throw new IllegalArgumentException("virtualNodes must be at least 1");
+
+        this.virtualNodes = virtualNodes;
+      }
+
+    public int getShard(Object shardKey, int shardCount)
+      {
+        Ring ring = this.ring;
+
+        if (ring == null || ring.shardCount != shardCount)
+          this.ring = ring = new Ring(shardCount, virtualNodes);
+
+        return ring.getShard(new ValueHasher().update(normalizeKey(shardKey)).getValue());
+      }
+
+    /* integral numbers are reduced to a Long (or a BigInteger beyond the range of long), BigDecimals lose trailing zeros */
+    static Object normalizeKey(Object shardKey)
+      {
+        if (shardKey instanceof Integer || shardKey instanceof Short || shardKey instanceof Byte 
+              || shardKey instanceof AtomicInteger || shardKey instanceof AtomicLong)
+          return Long.valueOf(((Number)shardKey).longValue());
+        else if (shardKey instanceof BigDecimal)
+          {
+            BigDecimal decimal = (BigDecimal)shardKey;
+
+            if (decimal.signum() != 0 && decimal.scale() > 0 && decimal.stripTrailingZeros().scale() > 0)
+              return decimal.stripTrailingZeros();
+
+            shardKey = decimal.toBigInteger();
+          }
+
+        if (shardKey instanceof BigInteger && ((BigInteger)shardKey).bitLength() < 64)
+          return Long.valueOf(((BigInteger)shardKey).longValue());
+
+        return shardKey;
+      }
+
+    static class Ring
+      {
+        int shardCount;
+        long[] points;
+        int[] shards;
+
+        Ring(int shardCount, int virtualNodes)
+          {
+            this.shardCount = shardCount;
+
+            long[][] nodes = new long[shardCount * virtualNodes][];
+            ValueHasher hasher = new ValueHasher();
+
+            for (int shard = 0, n = 0; shard < shardCount; shard++)
+              for (int node = 0; node < virtualNodes; node++)
+                nodes[n++] = new long[] { hasher.reset().update(shard).update(node).getValue(), shard };
+
+            Arrays.sort(nodes, new Comparator<long[]>()
+              {
+                public int compare(long[] node1, long[] node2)
+                  {
+                    return node1[0] < node2[0] ? -1 : node1[0] > node2[0] ? 1 : (int)(node1[1] - node2[1]);
+                  }
+              });
+
+            points = new long[nodes.length];
+            shards = new int[nodes.length];
+
+            for (int i = 0; i < nodes.length; i++)
+              {
+                points[i] = nodes[i][0];
+                shards[i] = (int)nodes[i][1];
+              }
+          }
+
+        int getShard(long hash)
+          {
+            int i = Arrays.binarySearch(points, hash);
+
+            if (i < 0)
+              i = -i - 1;
+
+            return shards[i < points.length ? i : 0];
+          }
+      }
+  }
@@ -0,0 +1,110 @@
+/**
+ * Copyright (C) 2006 - present Software Sensation Inc.
+ * All Rights Reserved.
+ *
+ * This file is part of jPersist.
+ *
+ * jPersist is distributed in the hope that it will be useful, but WITHOUT
+ * ANY WARRANTY; without even the implied warranty of MERCHANTABILITY or
+ * FITNESS FOR A PARTICULAR PURPOSE. See the accompanying license
+ * for more details.
+ *
+ * You should have received a copy of the license along with jPersist; if not,
+ * go to http://www.softwaresensation.com and download the latest version.
+ */
+
+package jpersist.utils;
+
+import java.math.BigDecimal;
+
+import jpersist.JPersistException;
+import jpersist.interfaces.ShardFunction;
+
+/**
+ * Maps shard keys to shards by range.  The function is defined with the first
+ * key of each shard after the first, so with bounds 1000000 and 2000000 keys
+ * below 1000000 belong to shard 0, keys from 1000000 to 1999999 to shard 1, 
+ * and the rest to shard 2.  Numbers are compared by value (regardless of 
+ * type), other keys must be Comparable with the bounds.
+ */
+
+@SuppressWarnings("unchecked")
+public class RangeShardFunction implements ShardFunction
+  {
+    private Object[] bounds;
+
+    /**
+     * Creates a range shard function.
+     *
+     * @param bounds the first key of each shard after the first, in ascending order
+     */
+
+    public RangeShardFunction(Object... bounds)
+      {
+        try
+          {
+            for (int i = 1; i < bounds.length; i++)
+              if (compare(bounds[i - 1], bounds[i]) >= 0)
+                throw new IllegalArgumentException("bounds must be in ascending order: " + bounds[i - 1] + " >= " + bounds[i]);
+          }
+        catch (NumberFormatException e)
+          {
+            throw new IllegalArgumentException("bounds must be finite numbers", e);
+          }
+
+        this.bounds = (Object[])bounds.clone();
+      }
+
+    public int getShard(Object shardKey, int shardCount) throws JPersistException
+      {
+        if (bounds.length + 1 != shardCount)
+          throw new JPersistException("RangeShardFunction defines " + (bounds.length + 1) + " shards, but there are " + shardCount);
+
+        int low = 0, high = bounds.length;
+
+        try
+          {
+            while (low < high)
+              {
+                int mid = (low + high) >>> 1;
+
+                if (compare(bounds[mid], shardKey) <= 0)
+                  low = mid + 1;
+                else
+                  high = mid;
+              }
+          }
+        catch (ClassCastException e)
+          {
+            throw new JPersistException("Shard key " + shardKey + " can't be compared with the range bounds");
+          }
+        catch (NumberFormatException e) // NaN and infinity
+          {
+            throw new JPersistException("Shard key " + shardKey + " isn't a finite number");
+          }
+
+        return low;
+      }
+
+    static int compare(Object value1, Object value2)
+      {
+        if (value1 instanceof Number && value2 instanceof Number)
+          {
+            if (isIntegral(value1) && isIntegral(value2))
+              {
+                long long1 = ((Number)value1).longValue(), long2 = ((Number)value2).longValue();
+
+                return long1 < long2 ? -1 : long1 > long2 ? 1 : 0;
+              }
+
+            return new BigDecimal(value1.toString()).compareTo(new BigDecimal(value2.toString()));
+          }
+
+        return ((Comparable)value1).compareTo(value2);
+      }
+
+    static boolean isIntegral(Object value)
+      {
+        return value instanceof Integer || value instanceof Long || value instanceof Short || value instanceof Byte;
+      }
+  }